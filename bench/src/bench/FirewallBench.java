@@ -0,0 +1,55 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Firewall check benchmarks, for Switch (local node rules) and CentralSwitch (network rules)
+ * <p>Each check is made with a frame that passes (no rule matches, so every rule is looked at) and one that is
+ * blocked by the last rule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirewallBench {
+    @Param({"0", "4", "32", "254"})
+    public int rules;
+
+    private ArrayList<Integer> firewall;
+    private Frame pass, blocked;
+
+    @Setup
+    public void setup(){
+        firewall = new ArrayList<>();
+        //rules are IDs 2 and up; 1 is never firewalled
+        for(int i = 2; i < rules + 2; i++) firewall.add(i);
+        //from network 9 into network 1 (or network 9's node 1 at the master); the blocked frame hits the last rule
+        pass = new Frame(9, 1, 1, 1, 0, "firewall benchmark");
+        blocked = new Frame(9, 1, rules + 1, rules + 1, 0, "firewall benchmark");
+    }
+
+    @Benchmark
+    public boolean switchPass(){
+        return Switch.firewalled(firewall, 1, pass);
+    }
+
+    @Benchmark
+    public boolean switchBlocked(){
+        return Switch.firewalled(firewall, 1, blocked);
+    }
+
+    @Benchmark
+    public boolean masterPass(){
+        return CentralSwitch.firewalled(firewall, pass);
+    }
+
+    @Benchmark
+    public boolean masterBlocked(){
+        return CentralSwitch.firewalled(firewall, blocked);
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame codec benchmarks: encode, decode from a byte array, decode from a stream, and the CRC
+ * <p>Payload length 0 is an ack frame; 255 is the largest payload the 1 byte size field allows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBench {
+    @Param({"0", "16", "64", "255"})
+    public int payload;
+
+    private Frame frame;
+    private byte[] encoded;
+    private ByteArrayInputStream bytes;
+    private DataInputStream stream;
+
+    @Setup
+    public void setup(){
+        if(payload == 0){
+            frame = new Frame(1, 2, 3, 4, 5, 3);
+        } else {
+            StringBuilder b = new StringBuilder();
+            while(b.length() < payload) b.append((char) ('a' + b.length() % 26));
+            frame = new Frame(1, 2, 3, 4, 5, b.toString());
+        }
+        encoded = frame.encode();
+        bytes = new ByteArrayInputStream(encoded);
+        stream = new DataInputStream(bytes);
+    }
+
+    @Benchmark
+    public byte[] encode(){
+        return frame.encode();
+    }
+
+    @Benchmark
+    public Frame decode() throws FrameLostException{
+        return Frame.decode(encoded);
+    }
+
+    @Benchmark
+    public Frame decodeFromChannel() throws Exception{
+        //rewind to the start of the same frame every time
+        bytes.reset();
+        return Frame.decodeFromChannel(stream);
+    }
+
+    @Benchmark
+    public byte calcCrc(){
+        return frame.calcCrc();
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Switch buffer queue benchmarks, with 1, 2, 4 and 8 producers
+ * <p>Every NodeThread of a switch queues frames on the switch's buffer, and the manager thread takes them off, all
+ * under the buffer's lock. Here each thread of a group queues a frame and takes one off, through the switch's own
+ * enqueueMessage and dequeueMessage. The buffer never runs dry (every thread queues before it takes) and never
+ * grows, so the numbers show the cost of the lock and of the queue under contention, not of a backlog.
+ * <p>Each thread queues its own frames (its own source node, and a different sequence number every time), since a
+ * switch coalesces a frame that is still queued with its retransmission, and a copy would never come back out.
+ * <p>Run with -prof gc to see the queue's per-frame allocation.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBench {
+    private Switch server;
+
+    //one thread's frames: a source node of its own, and every sequence number
+    @State(Scope.Thread)
+    public static class Producer {
+        private final static AtomicInteger ids = new AtomicInteger();
+        private Frame[] frames;
+        private int next;
+
+        @Setup
+        public void setup(){
+            int id = ids.getAndIncrement() % 255 + 1;
+            frames = new Frame[256];
+            for(int sn = 0; sn < frames.length; sn++) frames[sn] = new Frame(1, id, 1, 3, sn, "queue benchmark");
+        }
+    }
+
+    @Setup
+    public void setup(){
+        //never started; only its buffer is used
+        server = new Switch(0, 1, 0, 0, false);
+    }
+
+    private Frame cycle(Producer p){
+        //the buffer never holds more than one frame per thread, so a frame is long gone by the time it comes round again
+        server.enqueueMessage(p.frames[p.next++ & 0xFF]);
+        return server.dequeueMessage();
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public Frame producers1(Producer p){
+        return cycle(p);
+    }
+
+    @Benchmark
+    @Group("producers2")
+    @GroupThreads(2)
+    public Frame producers2(Producer p){
+        return cycle(p);
+    }
+
+    @Benchmark
+    @Group("producers4")
+    @GroupThreads(4)
+    public Frame producers4(Producer p){
+        return cycle(p);
+    }
+
+    @Benchmark
+    @Group("producers8")
+    @GroupThreads(8)
+    public Frame producers8(Producer p){
+        return cycle(p);
+    }
+}
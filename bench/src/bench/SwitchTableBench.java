@@ -0,0 +1,55 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Switch table lookup benchmarks, for Switch (by node) and CentralSwitch (by network)
+ * <p>The table is scanned in order, so the cost depends on where the entry is: the first entry, the last entry,
+ * or no entry at all (the case that ends in a flood or a spool).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SwitchTableBench {
+    @Param({"1", "16", "64", "255"})
+    public int entries;
+
+    private ArrayList<Integer[]> table;
+    private int first, last, missing;
+
+    @Setup
+    public void setup(){
+        table = new ArrayList<>();
+        //IDs are 1 byte on the wire, so a table never has more than 255 entries
+        for(int i = 1; i <= entries; i++) table.add(new Integer[]{i, i - 1});
+        first = 1;
+        last = entries;
+        missing = entries + 1;
+    }
+
+    @Benchmark
+    public Integer[] switchFirst(){
+        return Switch.lookup(table, first);
+    }
+
+    @Benchmark
+    public Integer[] switchLast(){
+        return Switch.lookup(table, last);
+    }
+
+    @Benchmark
+    public Integer[] switchMissing(){
+        return Switch.lookup(table, missing);
+    }
+
+    @Benchmark
+    public Integer[] masterLast(){
+        return CentralSwitch.lookup(table, last);
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Active queue management for a switch queue (Switch and CentralSwitch buffers, and the trunk egress queues)
+ * <p>Bounds the queue, and decides which data frames to shed when frames come in faster than they can be forwarded.
+ * A shed frame is replaced by a congestion nack (code 8) to its source, so the sender backs off and resends right
+ * away instead of waiting out its timeout. Control frames and acks are never shed, so they may go over the bound.
+ * <p>Policies:
+ * <br>NONE: unbounded, nothing is shed
+ * <br>TAIL: data frames arriving at a full queue are shed
+ * <br>RED: as TAIL, and data frames arriving at a queue that isn't empty are also shed with a probability that grows
+ * with the average sojourn time (time spent in the queue): from 0 at the target to 10% at twice the target and above.
+ * Past that the capacity bound takes over; shedding every arrival would only shed the resends too.
+ * <br>CODEL: as TAIL, and once every frame leaving the queue for an interval has waited longer than the target (with
+ * more frames behind it; a slow drain of a short queue is not a standing queue), frames are shed as they leave, at a
+ * rate that rises until the sojourn time is back under the target
+ * <p>Not thread-safe: admit is called under the queue's lock, and depart by the one thread taking frames out of it.
+ * All times are in nanoseconds.
+ */
+public class Aqm {
+    public final static int NONE = 0, TAIL = 1, RED = 2, CODEL = 3;
+    private final static String[] POLICIES = {"none", "tail drop", "RED", "CoDel"};
+    //RED: highest early shedding probability
+    private final static double MAX_P = 0.1;
+    private final int policy, capacity;
+    private final long target, interval;
+    //RED: moving average of the sojourn time (weight 1/16; updated as frames leave, read as they arrive)
+    private volatile long average;
+    //CoDel: when the sojourn time first went over the target (0 if it is under), whether frames are being shed,
+    //the next time one is due, and how many have been shed since shedding started
+    private long firstAbove, dropNext;
+    private boolean dropping;
+    private int count;
+    private final LongAdder drops;
+
+    /**
+     * Aqm constructor
+     * @param policy NONE, TAIL, RED or CODEL
+     * @param capacity queue depth (in frames) at which arriving data frames are shed
+     * @param target acceptable sojourn time (RED and CODEL)
+     * @param interval how long the sojourn time may stay over the target before shedding starts (CODEL)
+     */
+    public Aqm(int policy, int capacity, long target, long interval){
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+        this.target = Math.max(1, target);
+        this.interval = Math.max(1, interval);
+        this.drops = new LongAdder();
+    }
+
+    /**
+     * Get a new, empty queue manager with the same settings (e.g. one per port)
+     * @return new manager
+     */
+    public Aqm copy(){
+        return new Aqm(policy, capacity, target, interval);
+    }
+
+    public int getPolicy(){return this.policy;}
+    public long getDrops(){return this.drops.sum();}
+    public String toString(){return POLICIES[policy] + (policy == NONE ? "" : ", " + capacity + " frames");}
+
+    /**
+     * Check whether a frame may be shed: node data only. Firewall rules, control frames and acks never are.
+     * @param f frame
+     * @return true if the frame is node data
+     */
+    public static boolean sheddable(Frame f){
+        return PriorityBuffer.isBulk(f);
+    }
+
+    /**
+     * Decide whether a frame joins the queue
+     * @param f arriving frame
+     * @param depth frames in the queue now
+     * @return true to queue it, false to shed it
+     */
+    public boolean admit(Frame f, int depth){
+        if(policy == NONE || !sheddable(f)) return true;
+        boolean shed = depth >= capacity;
+        if(!shed && policy == RED && depth > 0 && average > target){
+            double p = average < 2 * target ? MAX_P * (average - target) / target : MAX_P;
+            shed = ThreadLocalRandom.current().nextDouble() < p;
+        }
+        if(shed) drops.increment();
+        return !shed;
+    }
+
+    /**
+     * Decide whether a frame leaving the queue is shed after all
+     * @param f departing frame
+     * @param sojourn how long it was queued
+     * @param depth frames left in the queue behind it
+     * @param now current time
+     * @return true to shed it
+     */
+    public boolean depart(Frame f, long sojourn, int depth, long now){
+        if(policy == RED) average += (sojourn - average) / 16;
+        if(policy != CODEL) return false;
+        if(sojourn < target || depth == 0){
+            //back under the target; a queue that fills again soon resumes near the old rate (see below)
+            firstAbove = 0;
+            dropping = false;
+            return false;
+        }
+        if(!sheddable(f)) return false;
+        boolean shed = false;
+        if(dropping){
+            if(now >= dropNext){
+                count++;
+                dropNext += (long) (interval / Math.sqrt(count));
+                shed = true;
+            }
+        } else if(firstAbove == 0){
+            firstAbove = now + interval;
+        } else if(now >= firstAbove){
+            dropping = true;
+            count = count > 2 && now - dropNext < 16 * interval ? count - 2 : 1;
+            dropNext = now + (long) (interval / Math.sqrt(count));
+            shed = true;
+        }
+        if(shed) drops.increment();
+        return shed;
+    }
+}
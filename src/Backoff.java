@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connect helper with bounded exponential backoff
+ * <p>Startup is readiness-driven (see Main), so a connect normally succeeds on the first try. When it doesn't (a
+ * switch that is not listening yet, or a node reconnecting after a lost connection), retries start at 1 ms and
+ * double up to a cap, with a little jitter so many clients don't retry in lockstep.
+ */
+public class Backoff {
+    //first and largest delay between attempts, in milliseconds
+    private final static long FIRST = 1;
+    private final static long MAX = 100;
+
+    /**
+     * Connect to a port, retrying until it works or the timeout runs out
+     * @param transport transport to connect over
+     * @param port port number
+     * @param timeout how long to keep trying, in milliseconds
+     * @return connection
+     * @throws ConnectException if nothing started listening on the port in time
+     * @throws InterruptedIOException if interrupted while waiting to retry
+     */
+    public static Connection connect(Transport transport, int port, long timeout) throws IOException{
+        long delay = FIRST;
+        long deadline = System.currentTimeMillis() + timeout;
+        while(true){
+            try{
+                return transport.connect(port);
+            } catch (ConnectException e){
+                //e.g. a node trying to resume after its switch has already shut down
+                if(System.currentTimeMillis() >= deadline) throw e;
+                try{
+                    Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay + 1) / 2);
+                } catch (InterruptedException x){
+                    throw new InterruptedIOException("interrupted while connecting to port " + port);
+                }
+                delay = Math.min(MAX, delay * 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer, single-consumer byte ring; one direction of a MemoryTransport connection
+ * <p>The reader only moves head and the writer only moves tail, so neither side takes a lock. A side that has to
+ * wait (reader on an empty ring, writer on a full one) parks, and the other side unparks it once it has made
+ * progress. Several threads may write, as long as they never write at the same time; every writer in this project
+ * already holds the stream's lock while it writes.
+ */
+public class ByteRing {
+    //longest a waiting side parks before checking again, in case a wakeup was missed
+    private final static long PARK = 1_000_000L;
+    private final byte[] buffer;
+    private final int mask;
+    //total number of bytes ever read and written; the difference is what is in the ring
+    private volatile long head, tail;
+    private volatile boolean writerClosed, readerClosed;
+    //side currently parked, if any
+    private volatile Thread reader, writer;
+
+    /**
+     * ByteRing constructor
+     * @param capacity size in bytes, rounded up to a power of two
+     */
+    public ByteRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        this.head = 0;
+        this.tail = 0;
+        this.writerClosed = false;
+        this.readerClosed = false;
+    }
+
+    /**
+     * @return number of bytes that can be read without waiting
+     */
+    public int available(){
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return true once the writer has closed and everything it wrote has been read
+     */
+    public boolean isDrained(){
+        return writerClosed && tail == head;
+    }
+
+    /**
+     * Write bytes, waiting for room as needed
+     * @throws SocketException if either side has closed
+     */
+    public void write(byte[] b, int off, int len) throws IOException{
+        while(len > 0){
+            if(writerClosed) throw new SocketException("Socket closed");
+            if(readerClosed) throw new SocketException("Connection closed by peer");
+            long t = tail;
+            int room = buffer.length - (int) (t - head);
+            if(room == 0){
+                writer = Thread.currentThread();
+                if(buffer.length - (int) (tail - head) == 0 && !readerClosed) LockSupport.parkNanos(this, PARK);
+                writer = null;
+                continue;
+            }
+            int n = Math.min(len, room);
+            int at = (int) (t & mask);
+            int first = Math.min(n, buffer.length - at);
+            System.arraycopy(b, off, buffer, at, first);
+            System.arraycopy(b, off + first, buffer, 0, n - first);
+            //publishing the new tail makes the bytes visible to the reader
+            tail = t + n;
+            off += n;
+            len -= n;
+            Thread r = reader;
+            if(r != null) LockSupport.unpark(r);
+        }
+    }
+
+    /**
+     * Read at least one byte, waiting for data as needed
+     * @return number of bytes read, or -1 at end of stream
+     * @throws SocketException if the reading side has closed
+     */
+    public int read(byte[] b, int off, int len) throws IOException{
+        if(len == 0) return 0;
+        while(true){
+            if(readerClosed) throw new SocketException("Socket closed");
+            long h = head;
+            int count = (int) (tail - h);
+            if(count == 0){
+                if(writerClosed){
+                    //the writer may have written its last bytes just before closing
+                    if(tail == h) return -1;
+                    continue;
+                }
+                reader = Thread.currentThread();
+                if(tail == head && !writerClosed) LockSupport.parkNanos(this, PARK);
+                reader = null;
+                continue;
+            }
+            int n = Math.min(len, count);
+            int at = (int) (h & mask);
+            int first = Math.min(n, buffer.length - at);
+            System.arraycopy(buffer, at, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            //publishing the new head hands the space back to the writer
+            head = h + n;
+            Thread w = writer;
+            if(w != null) LockSupport.unpark(w);
+            return n;
+        }
+    }
+
+    /**
+     * End the stream; the reader sees end of stream once it has read everything written before this
+     */
+    public void closeWriter(){
+        writerClosed = true;
+        Thread r = reader;
+        if(r != null) LockSupport.unpark(r);
+    }
+
+    /**
+     * Stop reading; the writer's next write fails
+     */
+    public void closeReader(){
+        readerClosed = true;
+        Thread w = writer;
+        if(w != null) LockSupport.unpark(w);
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packet capture tap: every frame through a switch's ports, as it was on the wire, with a timestamp, written into a
+ * preallocated memory-mapped ring file (see Switch.setCapture, CentralSwitch.setCapture and Replay)
+ * <p>Recording claims a slot with one atomic increment and copies the frame into the mapped file, so port threads
+ * never wait on each other or on the disk. Once the ring is full the oldest records are overwritten.
+ * <p>File format (big endian):
+ * <br>header, 64 bytes: [magic "NETCAP01", 8][slot size, 4][slots, 4][start, epoch ms, 8][start, System.nanoTime, 8]
+ *   [zero padding]
+ * <br>slots: [record number, 8][System.nanoTime, 8][port ID, 4][direction, 1][0, 1][frame length, 2][frame]
+ * <br>Record numbers start at 1 and a slot still holding 0 is empty. The record number is written last, so a slot
+ * caught mid-write by a crash reads as empty or as its previous record.
+ */
+public class Capture {
+    //directions, from the switch's point of view
+    public final static byte IN = 0, OUT = 1;
+    private final static long MAGIC = 0x4E45544341503031L;
+    private final static int HEADER = 64;
+    //room for the largest frame (255 byte payload and a full trace) plus the slot's own header
+    public final static int SLOT = 512;
+    private final static int SLOT_HEADER = 24;
+    private final File file;
+    private final int slots;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final AtomicLong next;
+    private final long start;
+
+    /**
+     * A captured frame
+     */
+    public static class Record {
+        public final long number, time;
+        public final int port;
+        public final byte direction;
+        public final Frame frame;
+
+        private Record(long number, long time, int port, byte direction, Frame frame){
+            this.number = number;
+            this.time = time;
+            this.port = port;
+            this.direction = direction;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Create a capture file (replacing any file already there), sized for a number of records
+     * @param file capture file
+     * @param slots number of records the ring holds
+     */
+    public Capture(File file, int slots) throws IOException{
+        this.file = file;
+        this.slots = Math.max(1, Math.min(slots, (Integer.MAX_VALUE - HEADER) / SLOT));
+        this.raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.setLength(HEADER + (long) this.slots * SLOT);
+        this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) this.slots * SLOT);
+        this.next = new AtomicLong();
+        this.start = System.nanoTime();
+        map.putLong(0, MAGIC);
+        map.putInt(8, SLOT);
+        map.putInt(12, this.slots);
+        map.putLong(16, System.currentTimeMillis());
+        map.putLong(24, start);
+    }
+
+    public File getFile(){return this.file;}
+
+    /**
+     * Record a frame. Thread-safe, and never blocks.
+     * @param port ID of the port (NodeThread or SwitchThread) the frame went through
+     * @param direction IN (to the switch) or OUT (from the switch)
+     * @param f frame
+     */
+    public void record(int port, byte direction, Frame f){
+        byte[] raw = f.encode();
+        long n = next.getAndIncrement();
+        int offset = HEADER + (int) (n % slots) * SLOT;
+        map.putLong(offset, 0);
+        map.putLong(offset + 8, System.nanoTime());
+        map.putInt(offset + 16, port);
+        map.put(offset + 20, direction);
+        map.put(offset + 21, (byte) 0);
+        map.putShort(offset + 22, (short) raw.length);
+        map.put(offset + SLOT_HEADER, raw);
+        map.putLong(offset, n + 1);
+    }
+
+    /**
+     * Get the number of frames recorded so far, including any that have since been overwritten
+     * @return record count
+     */
+    public long count(){return next.get();}
+
+    /**
+     * Write the capture out and close it
+     */
+    public void close() throws IOException{
+        map.force();
+        raf.close();
+    }
+
+    /**
+     * Read a capture file
+     * @param file capture file
+     * @return the records still in the ring, oldest first
+     */
+    public static ArrayList<Record> read(File file) throws IOException{
+        ArrayList<Record> records = new ArrayList<>();
+        try(RandomAccessFile in = new RandomAccessFile(file, "r")){
+            MappedByteBuffer map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if(in.length() < HEADER || map.getLong(0) != MAGIC) throw new IOException(file + " is not a capture file");
+            int slot = map.getInt(8), slots = map.getInt(12);
+            for(int i = 0; i < slots; i++){
+                int offset = HEADER + i * slot;
+                long number = map.getLong(offset);
+                if(number == 0) continue;
+                byte[] raw = new byte[Short.toUnsignedInt(map.getShort(offset + 22))];
+                map.get(offset + SLOT_HEADER, raw);
+                try{
+                    records.add(new Record(number, map.getLong(offset + 8), map.getInt(offset + 16),
+                            map.get(offset + 20), Frame.decode(raw)));
+                } catch (FrameLostException e){
+                    System.out.println("Capture: skipping unreadable record " + number + " in " + file);
+                }
+            }
+        }
+        records.sort((a, b) -> Long.compare(a.number, b.number));
+        return records;
+    }
+
+    //Prints a capture as text
+    public static void main(String[] args) throws IOException{
+        if(args.length != 1){
+            System.out.println("Use: java Capture [capture file]");
+            return;
+        }
+        ArrayList<Record> records = read(new File(args[0]));
+        long first = records.isEmpty() ? 0 : records.get(0).time;
+        for(Record r: records){
+            System.out.println(String.format("%12.6f ms  port %-4d %-3s %s", (r.time - first) / 1e6, r.port,
+                    r.direction == IN ? "in" : "out", r.frame));
+        }
+        System.out.println(records.size() + " frames");
+    }
+}
@@ -1,12 +1,13 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Global level switch thread
@@ -23,26 +24,99 @@ public class CentralSwitch extends Thread{
     //do that, I will dispute the point, since nowhere is it implied or explicitly stated that the frame cannot be
     //a dynamic object. This is just the cleanest and easiest way to implement such a thing, despite it being extremely
     //unnecessary with java's implementation of sockets.
-    private final LinkedList<Frame> buffer;
+    //Two priority classes (acks and control first, then node data), see setPriorityWeight.
+    private final PriorityBuffer buffer;
     private volatile boolean finished;
     private final boolean debugInfo;
+    //number of switches in the network, and the keys of the ones that have sent their fin (network ID, or -thread ID
+    //for a connection that failed before its switch was identified)
+    private final int expected;
+    private final HashSet<Integer> done;
+    //released once the master is listening, and once every expected switch has connected
+    private final CountDownLatch ready, connected;
+    //time the last switch's fin arrived (System.nanoTime), for measuring teardown
+    private volatile long finishedAt;
+    //store-and-forward spool for networks whose switch is not connected (see Spool); null if disabled
+    private Spool spool;
+    //packet capture tap on every port (null for none)
+    private Capture capture;
+    //sampled flow statistics, written to flowFile every flowInterval ms (null for none)
+    private FlowStats flows;
+    private File flowFile;
+    private long flowInterval;
+    private boolean spoolEnabled;
+    private long spoolBytes, spoolAge;
+    private Transport transport;
+    //credits granted to each switch on the trunk (0 for no flow control, see setTrunkCredits)
+    private int trunkCredits;
+    //overload shedding (see setQueuePolicy) for the buffer, and the settings each port's egress queue starts from
+    private Aqm queue, egress;
+    //ingress policing settings for each SwitchThread (null for none)
+    private Policer policer;
+    //multicast groups each network has members of, by network ID
+    private final GroupTable groups;
+    //metrics (network:type=CentralSwitch); forwarding latency is the time frames wait in the buffer
+    private final Metrics metrics;
+    private final LongAdder framesIn, framesOut, bytesIn, bytesOut, floods, firewallDrops, nacks, crcErrors, spooled,
+            coalesced, groupCopies;
+    private final Histogram forwarding;
 
     /**
      * Switch constructor
      * @param port Local listen port (communication port is dynamic per connection)
+     * @param switches number of switches that will connect
      * @param debugInfo enable debug information
      */
-    public CentralSwitch(int port, boolean debugInfo){
+    public CentralSwitch(int port, int switches, boolean debugInfo){
+        this(port, switches, new File("firewall.txt"), debugInfo);
+    }
+
+    /**
+     * Switch constructor
+     * @param port Local listen port (communication port is dynamic per connection)
+     * @param switches number of switches that will connect
+     * @param firewallFile firewall rules, one per line (see README)
+     * @param debugInfo enable debug information
+     */
+    public CentralSwitch(int port, int switches, File firewallFile, boolean debugInfo){
         this.debugInfo = debugInfo;
+        this.expected = switches;
+        this.done = new HashSet<>();
+        this.ready = new CountDownLatch(1);
+        this.connected = new CountDownLatch(switches);
         this.port = port;
         this.firewall = new ArrayList<>();
         this.clients = new ArrayList<>();
-        this.buffer = new LinkedList<>();
+        this.buffer = new PriorityBuffer(0);
         this.switchTable = new ArrayList<>();
+        this.spoolEnabled = false;
+        this.transport = new SocketTransport();
+        this.trunkCredits = 64;
+        this.queue = new Aqm(Aqm.TAIL, 4096, 5_000_000L, 100_000_000L);
+        this.egress = queue.copy();
+        this.groups = new GroupTable();
+        this.metrics = new Metrics("type=CentralSwitch");
+        this.framesIn = metrics.counter("FramesIn");
+        this.framesOut = metrics.counter("FramesOut");
+        this.bytesIn = metrics.counter("BytesIn");
+        this.bytesOut = metrics.counter("BytesOut");
+        this.floods = metrics.counter("Floods");
+        this.firewallDrops = metrics.counter("FirewallDrops");
+        this.nacks = metrics.counter("Nacks");
+        this.crcErrors = metrics.counter("CrcErrors");
+        this.spooled = metrics.counter("Spooled");
+        this.coalesced = metrics.counter("Coalesced");
+        this.groupCopies = metrics.counter("GroupCopies");
+        this.forwarding = metrics.histogram("ForwardingLatency");
+        metrics.gauge("QueueDepth", buffer::size);
+        metrics.gauge("ControlQueueDepth", buffer::controlSize);
+        metrics.gauge("Ports", clients::size);
+        metrics.gauge("QueueDrops", () -> queue.getDrops());
+        metrics.gauge("Groups", groups::size);
         //Initialize data from file
         try{
             //Set scanner to read config file
-            Scanner scanner = new Scanner(new File("firewall.txt"));
+            Scanner scanner = new Scanner(firewallFile);
             while (scanner.hasNextLine()){
                 //get data line
                 String s = scanner.nextLine();
@@ -65,14 +139,215 @@ public class CentralSwitch extends Thread{
         if(debugInfo) System.out.println("Master: firewall " + firewall);
     }
 
+    /**
+     * Enable the store-and-forward spool. Must be called before the switch is started.
+     * <p>With the spool on, switch traffic for a network whose switch has not registered yet, or whose connection
+     * is down, is held on disk and replayed when its port comes up, instead of being flooded.
+     * @param enabled use the spool
+     * @param maxBytes spool size cap, in bytes
+     * @param maxAge spooled frame age cap, in milliseconds
+     */
+    public void setSpoolPolicy(boolean enabled, long maxBytes, long maxAge){
+        this.spoolEnabled = enabled;
+        this.spoolBytes = maxBytes;
+        this.spoolAge = maxAge;
+    }
+
+    /**
+     * Capture every frame through this switch's ports, both ways. Must be called before the switch is started.
+     * @param capture capture file to write to, or null for none
+     */
+    public void setCapture(Capture capture){
+        this.capture = capture;
+    }
+
+    public Capture getCapture(){return this.capture;}
+
+    /**
+     * Set credit-based flow control on the trunks to the switches. Must be called before the master is started, with
+     * the same value as every switch's (see Switch.setTrunkCredits).
+     * <p>A frame from a switch holds one of its credits from when it is read until it is written to its destination
+     * port (or flooded, or spooled), so each switch can have at most this many frames in the master at once.
+     * @param credits node frames the master may buffer from each switch, and each switch from the master, or 0 for
+     *                no flow control
+     */
+    public void setTrunkCredits(int credits){
+        this.trunkCredits = Math.max(0, credits);
+    }
+
+    public int getTrunkCredits(){return this.trunkCredits;}
+
+    /**
+     * Set how the buffer shares forwarding between its classes (see PriorityBuffer). Must be called before the master is
+     * started.
+     * <p>Acks and control frames are always forwarded ahead of node data; on the trunk they also go ahead of the node
+     * data waiting for credits, since they need none.
+     * @param weight acks and control frames forwarded per data frame while both are waiting (0 for strict priority)
+     */
+    public void setPriorityWeight(int weight){
+        buffer.setWeight(weight);
+    }
+
+    /**
+     * Set how the master sheds node data under overload (see Aqm), in its buffer and in each port's egress queue (the
+     * frames waiting for trunk credits). Must be called before the master is started.
+     * <p>A shed frame is replaced by a congestion nack (code 8) to its source. Control frames and acks are never shed.
+     * @param policy Aqm.NONE, TAIL, RED or CODEL
+     * @param capacity queue depth at which node data is shed
+     * @param target acceptable time in the queue, in nanoseconds (RED and CODEL)
+     * @param interval how long that time may stay over the target before shedding starts, in nanoseconds (CODEL)
+     */
+    public void setQueuePolicy(int policy, int capacity, long target, long interval){
+        this.queue = new Aqm(policy, capacity, target, interval);
+        this.egress = queue.copy();
+    }
+
+    //settings for a new port's egress queue
+    public Aqm getEgressPolicy(){return this.egress;}
+
+    /**
+     * Police the node data each switch port takes in (see Policer). Must be called before the master is started.
+     * <p>Acks and control frames are never policed.
+     * @param rate sustained rate per port, in frames per second (0 for no policing)
+     * @param burst frames a port may take in back to back on top of that
+     * @param action Policer.DELAY, DROP or NACK, for frames over the rate
+     */
+    public void setPolicer(double rate, int burst, int action){
+        this.policer = rate > 0 ? new Policer(rate, burst, action) : null;
+    }
+
+    //settings for a new port's policer (null for none)
+    public Policer getPolicer(){return this.policer;}
+
+    /**
+     * Thread-safe helper function; a frame from a switch has left the master, so its credit goes back to the port it
+     * came in on (once; the frame is marked as released)
+     * @param message frame
+     */
+    public void release(Frame message){
+        int ingress = message.getIngress();
+        if(ingress <= 0) return;
+        message.setIngress(0);
+        synchronized (clients){
+            for(SwitchThread t: clients){
+                if(t.getID() == ingress){
+                    t.release();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sample the frames through the master and keep the top flows by network pair and by node pair (see FlowStats).
+     * Must be called before the master is started.
+     * @param rate sample one frame in this many
+     * @param topK flows kept of each kind
+     * @param file report file, rewritten every interval and when the master finishes
+     * @param interval report interval, in milliseconds
+     */
+    public void setFlowSampling(int rate, int topK, File file, long interval){
+        this.flows = new FlowStats(rate, topK, System.nanoTime());
+        this.flowFile = file;
+        this.flowInterval = Math.max(1, interval);
+        metrics.gauge("FlowFramesSeen", flows::getSeen);
+        metrics.gauge("FlowFramesSampled", flows::getSampled);
+    }
+
+    //write the flow report, if sampling
+    private void exportFlows(){
+        if(flows == null) return;
+        try{
+            flows.export(flowFile);
+        } catch (IOException e){
+            System.out.println("Master: could not write flow statistics to " + flowFile);
+        }
+    }
+
+    /**
+     * Set the transport used to reach switches (sockets by default). Must be called before the switch is started.
+     * @param transport transport shared by the whole network
+     */
+    public void setTransport(Transport transport){
+        this.transport = transport;
+    }
+
+    public Transport getTransport(){return this.transport;}
+
+    public long getFinishedAt(){return this.finishedAt;}
+
+    /**
+     * Wait until the master is listening for switches
+     * <p>Also returns if the master thread dies before getting there, so callers never wait forever.
+     */
+    public void awaitReady() throws InterruptedException{
+        while(!ready.await(100, TimeUnit.MILLISECONDS) && this.isAlive()) Thread.onSpinWait();
+    }
+
     /**
      * Thread-safe helper function.
      * <p>Synchronized message queue access means frames are sent out in order they arrive here.
      * @param message message to queue
      */
     public void enqueueMessage(Frame message){
+        long now = System.nanoTime();
+        message.setQueued(now);
+        message.stamp(now);
+        framesIn.increment();
+        bytesIn.add(message.length());
+        int depth;
         synchronized (buffer){
-            this.buffer.add(message);
+            //a retransmission of a frame that is still waiting here (see Switch.enqueueMessage)
+            if(buffer.isPending(message)) depth = -1;
+            else {
+                //over capacity (or shed early): the frame's congestion nack goes in its place
+                if(!queue.admit(message, buffer.bulkSize())) message = shed(message, 0);
+                this.buffer.add(message);
+                depth = buffer.size();
+            }
+        }
+        if(depth < 0) coalesce(message);
+        else FrameEvent.enqueued("CentralSwitch", 0, message, depth);
+    }
+
+    /**
+     * Helper function; drops a retransmitted copy of a data frame that is still waiting in the buffer or a port's
+     * egress queue. No nack: the original will be acked. The copy's trunk credit goes straight back to its switch.
+     * <p>Called outside the buffer's and the ports' locks.
+     * @param message the copy
+     */
+    public void coalesce(Frame message){
+        coalesced.increment();
+        EventLog.log(EventLog.CENTRAL, EventLog.COALESCED, 0, 0, message, 0);
+        FrameEvent.forwarded("CentralSwitch", 0, message, "coalesced", 0);
+        release(message);
+    }
+
+    /**
+     * Helper function; replaces a frame the master sheds with a congestion nack to its source. The nack takes the
+     * frame's place, trunk credit and all.
+     * @param message shed frame
+     * @param queued how long it had been queued
+     * @return the nack
+     */
+    public Frame shed(Frame message, long queued){
+        EventLog.log(EventLog.CENTRAL, EventLog.DROPPED, 0, 0, message, queued);
+        FrameEvent.forwarded("CentralSwitch", 0, message, "dropped", 0);
+        Frame nack = message.congested();
+        nack.setIngress(message.getIngress());
+        nack.setQueued(message.getQueued());
+        return nack;
+    }
+
+    /**
+     * Thread-safe helper function; queues a nack the master made itself (e.g. for a frame shed from a port's egress
+     * queue)
+     * @param nack nack frame
+     */
+    public void bounce(Frame nack){
+        nack.setQueued(System.nanoTime());
+        synchronized (buffer){
+            this.buffer.add(nack);
         }
     }
 
@@ -107,36 +382,138 @@ public class CentralSwitch extends Thread{
         if(j==-1) return;
         //add entry to switch table
         synchronized (switchTable){
-            switchTable.add(new Integer[]{key, j});
+            //a network that reconnected gets its entry pointed at the new port, not a second entry behind the old one
+            Integer[] entry = lookup(switchTable, key);
+            if(entry != null) entry[1] = j;
+            else switchTable.add(new Integer[]{key, j});
+            //the network's port is up: deliver anything spooled for it. This happens under the table lock, so
+            //the manager can't slip a newer frame in ahead of the spooled ones.
+            if(spool != null){
+                for(Frame f: spool.replay(key)){
+                    EventLog.log(EventLog.CENTRAL, EventLog.REPLAYED, 0, 0, f, clients.get(j).getID());
+                    f.stamp(System.nanoTime());
+                    clients.get(j).newMessage(f);
+                    sent(f);
+                }
+            }
         }
     }
 
     /**
-     * helper function
-     * <p>checks whether all clients are done sending messages
+     * Thread-safe helper function; adds a network to a multicast group
+     * <p>Called in SwitchThread when a switch joins on behalf of its network (see Switch.join)
+     * @param group group number
+     * @param net network ID
      */
-    public void checkFinished() {
-        try {
-            //check 1
-            for(SwitchThread thread: this.clients){
-                if(!thread.finished()) return;
-            }
-            //sleep for 1 second
-            Thread.sleep(1000);
-            //check again
-            for(SwitchThread thread: this.clients){
-                if(!thread.finished()) return;
+    public void join(int group, int net){
+        if(groups.join(group, net) && debugInfo) System.out.println("Master: group " + group + " created by network " + net);
+    }
+
+    /**
+     * Helper function; forwards a group frame: one copy down each trunk to a network with members, other than the one
+     * it came from (that switch has served its own members already). Firewalled networks don't get it; no nack,
+     * since the other members still get theirs.
+     * @param message group frame
+     */
+    private void multicast(Frame message){
+        //one frame goes to many ports, so its credit is returned up front
+        release(message);
+        int copies = 0;
+        synchronized (switchTable){
+            for(int net: groups.members(message.getDest()[1])){
+                if(net == message.getSource()[0] || firewall.contains(net)) continue;
+                Integer[] entry = lookup(switchTable, net);
+                if(entry == null || !clients.get(entry[1]).isOnline()) continue;
+                //every member's port gets the same Frame: a port waiting for credits keeps its own time for it
+                clients.get(entry[1]).newMessage(message);
+                sent(message);
+                copies++;
             }
-            //reasonably certain that all nodes that will connect have connected and have finished.
+        }
+        groupCopies.add(copies);
+        EventLog.log(EventLog.CENTRAL, EventLog.MULTICAST, 0, 0, message, copies);
+        FrameEvent.forwarded("CentralSwitch", 0, message, "multicast", copies);
+    }
+
+    /**
+     * Helper function; checks a frame against the global firewall
+     * <p>Acks pass; data to a firewalled network doesn't. Shared with Simulator, so the simulated master filters
+     * exactly like this one.
+     * @param firewall firewalled network IDs
+     * @param message frame
+     * @return true if the frame must be replaced with a nack
+     */
+    public static boolean firewalled(ArrayList<Integer> firewall, Frame message){
+        return message.getSize() > 0 && firewall.contains(message.getDest()[0]);
+    }
+
+    //count a frame going out of the master
+    private void sent(Frame message){
+        framesOut.increment();
+        bytesOut.add(message.length());
+    }
+
+    /**
+     * Helper function; finds a network's entry in the switch table. The caller holds the table's lock.
+     * @param switchTable entries of form {network ID, logical port}
+     * @param net network ID
+     * @return the network's entry, or null if it has none
+     */
+    public static Integer[] lookup(ArrayList<Integer[]> switchTable, int net){
+        for(Integer[] entry : switchTable){
+            if(entry[0] == net) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Helper function; appends a frame for a network to the spool
+     * @param message frame
+     * @return true if spooled, false if it could not be (the caller falls back to the old behavior)
+     */
+    private boolean spool(Frame message){
+        try{
+            EventLog.log(EventLog.CENTRAL, EventLog.SPOOLED, 0, 0, message, 0);
+            FrameEvent.forwarded("CentralSwitch", 0, message, "spooled", 0);
+            spool.append(message.getDest()[0], message);
+            spooled.increment();
+            release(message);
+            return true;
+        } catch (IOException e){
+            System.out.println("Master: could not spool " + message);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Thread-safe helper function; records a switch's fin
+     * <p>Called in SwitchThread once per switch. When the last expected switch is done, the manager drains its
+     * buffer and shuts the network down.
+     * @param key network ID (or -thread ID if the switch never identified itself)
+     */
+    public void switchFinished(int key) {
+        synchronized (done){
+            if(!done.add(key) || done.size() < expected || finished) return;
+            this.finishedAt = System.nanoTime();
             this.finished = true;
-        } catch (InterruptedException e){
-            System.out.println("Unknown system interrupt encountered... retrying...");
-            checkFinished();
         }
+        if(debugInfo) System.out.println("Master: all " + expected + " switches finished");
     }
 
     @Override
     public void run() {
+        metrics.register();
+        //open spool
+        if(spoolEnabled){
+            try{
+                spool = new Spool(new File("master.spool"), 1 << 20, spoolBytes, spoolAge, "Master");
+            } catch (IOException e){
+                System.out.println("Master: could not open spool; unknown networks will be flooded");
+                e.printStackTrace();
+            }
+        }
+
         //as in project 1, this class contains 2 threads
 
         //This is necessary for thread 1, as it is an abstract thread object, but still needs switch reference
@@ -144,17 +521,19 @@ public class CentralSwitch extends Thread{
         //Thread 1: accepts incoming connections, creates NodeThreads to handle communication.
         //this is an abstract class, as I have to override interrupt as well as run to terminate it on cleanup.
         Thread acceptor = new Thread(){
-            private ServerSocket serverSocket;
+            private Listener serverSocket;
             @Override
             public void run() {
                 //set up server socket
                 try {
                     if(debugInfo) System.out.println("Master: creating server on port " + port);
-                    serverSocket = new ServerSocket(port);
+                    serverSocket = transport.listen(port);
+                    //switches can connect from here on
+                    ready.countDown();
                     //deadloop -- listen for client connection and handle it
                     while (!finished) {
                         //wait for client connection
-                        Socket client = serverSocket.accept();
+                        Connection client = serverSocket.accept();
                         if(debugInfo) System.out.println("Master: New client connected");
                         SwitchThread switchThread = new SwitchThread(self, client, debugInfo);
                         switchThread.start();
@@ -162,12 +541,17 @@ public class CentralSwitch extends Thread{
                         synchronized (clients){
                             clients.add(switchThread);
                         }
+                        connected.countDown();
                     }
                 } catch (SocketException e){
                     if(debugInfo) System.out.println("Master: acceptor thread forced close");
                 } catch (IOException e) {
                     System.out.println("Master: unknown IOException encountered");
                     e.printStackTrace();
+                } finally {
+                    //could not listen (or stopped listening); don't leave anyone waiting on this switch
+                    ready.countDown();
+                    while(connected.getCount() > 0) connected.countDown();
                 }
             }
             @Override
@@ -184,56 +568,96 @@ public class CentralSwitch extends Thread{
         //Thread 2: Manages buffer and switching messages to correct client
         //this one is a lambda, because it's cleaner, and I only need to implement run() here
         Thread manager = new Thread(() -> {
-            while(!finished){
+            //keep going after the last fin until the buffer is drained, so nothing queued before it is lost
+            while(!finished || !buffer.isEmpty()){
                 //skip over until there is data to send
                 if(buffer.isEmpty()) {
+                    //idle: hand back any credits still owed, rather than waiting for a full batch
+                    synchronized (clients){
+                        for(SwitchThread t: clients) t.flushCredits();
+                    }
                     Thread.yield();
                     continue;
                 }
                 Frame message = dequeueMessage();
-                if(debugInfo) System.out.println("Master: message found in buffer " + message);
+                //(the firewall rules queued by the constructor never went through enqueueMessage)
+                long queued = message.getQueued() != 0 ? System.nanoTime() - message.getQueued() : 0;
+                if(message.getQueued() != 0) forwarding.record(queued);
+                if(message.getSize() == 0 && message.getAck() == 2) crcErrors.increment();
+                if(message.getSize() == 0 && message.getAck() == 4) nacks.increment();
+                EventLog.log(EventLog.CENTRAL, EventLog.FORWARDING, 0, 0, message, queued);
+                FrameEvent.dequeued("CentralSwitch", 0, message, queued);
+                if(flows != null) flows.offer(message);
+                //queued too long (see Aqm): shed it, and send its congestion nack on instead
+                if(message.getQueued() != 0 && queue.depart(message, queued, buffer.bulkSize(), System.nanoTime())){
+                    message = shed(message, queued);
+                }
                 //Note that the SwitchThread automatically informs Switch of unidentified clients (see addEntry)
                 //The switch object therefore adds entries to the switching table in that method automatically
                 //That is why adding entries to the switch table is not handled in this block
 
-                //check for firewall; if local node is firewalled, nack
-                for(int i: firewall){
-                    if(message.getDest()[0] == i){
-                        //firewall found
-                        //acks need to pass through the firewall
-                        if(message.getSize() == 0) break;
-                        //not an ack message, so replace it with a nack back to the source.
-                        if(debugInfo) System.out.println("Master: message firewalled. bouncing nack." + message);
-                        message = new Frame(i, message.getDest()[1], message.getSource()[0], message.getSource()[1],
-                                message.getSN(), 4);
-                        break;
-                    }
+                //multicast traffic: the firewall applies per member network
+                if(message.isGroup()){
+                    multicast(message);
+                    continue;
+                }
+
+                //check for firewall; if the destination network is firewalled, nack
+                if(firewalled(firewall, message)){
+                    //not an ack message, so replace it with a nack back to the source.
+                    EventLog.log(EventLog.CENTRAL, EventLog.FIREWALLED, 0, 0, message, 0);
+                    FrameEvent.forwarded("CentralSwitch", 0, message, "firewalled", 0);
+                    firewallDrops.increment();
+                    nacks.increment();
+                    Frame nack = message.nack();
+                    //the nack takes the frame's place in the master, credit and all
+                    nack.setIngress(message.getIngress());
+                    message = nack;
                 }
 
                 //check switch table for sending area -- because of firewall data packets, all networks are guaranteed to be identified
                 boolean found = false;
                 int key = -1;
                 synchronized (switchTable){
-                    for(Integer[] entry : switchTable){
-                        //look for destination in table
-                        if(message.getDest()[0] == entry[0]){
+                    //look for destination in table
+                    Integer[] entry = lookup(switchTable, message.getDest()[0]);
+                    if(entry != null){
+                        SwitchThread port = clients.get(entry[1]);
+                        //known network, but its connection is down: hold the frame until it is back
+                        if(spool != null && !port.isOnline()) found = spool(message);
+                        if(!found){
                             //pass along the message
-                            if(debugInfo) System.out.println("Master: message passed to communication thread" + message);
-                            clients.get(entry[1]).newMessage(message);
+                            EventLog.log(EventLog.CENTRAL, EventLog.SWITCHED, 0, 0, message, port.getID());
+                            FrameEvent.forwarded("CentralSwitch", 0, message, "switched", port.getID());
+                            message.stamp(System.nanoTime());
+                            port.newMessage(message);
+                            sent(message);
                             found = true;
-                            break;
                         }
-                        //this is for next block for flooding purposes; it isn't used if dest is present in the table
-                        if(message.getSource()[0] == entry[0]) key = entry[1];
+                    } else {
+                        //this is for next block for flooding purposes; the source's port is skipped
+                        Integer[] source = lookup(switchTable, message.getSource()[0]);
+                        if(source != null) key = source[1];
+                        //network hasn't registered yet: switch traffic is spooled rather than flooded and lost.
+                        //control traffic from this switch (firewall rules, ack 1) is still flooded.
+                        if(spool != null && message.getSource()[0] > 0 && message.getDest()[0] != 0){
+                            found = spool(message);
+                        }
                     }
                 }
                 if(found) continue;
                 //this block will only be reached if the target not found in switch table, so here we flood
-                if(debugInfo) System.out.println("Master: message will be flooded " + message);
+                floods.increment();
+                message.stamp(System.nanoTime());
+                //one frame goes to many ports, so its credit is returned up front
+                release(message);
                 synchronized (clients){
+                    EventLog.log(EventLog.CENTRAL, EventLog.FLOODED, 0, 0, message, clients.size() - (key < 0 ? 0 : 1));
+                    FrameEvent.forwarded("CentralSwitch", 0, message, "flooded", clients.size() - (key < 0 ? 0 : 1));
                     for(int i = 0; i < clients.size(); i++){
                         if(i == key) continue;
                         clients.get(i).newMessage(message);
+                        sent(message);
                     }
                 }
             }
@@ -248,14 +672,39 @@ public class CentralSwitch extends Thread{
         });
         //start threads. they will exit automatically when every node informs the server it is finished
         acceptor.start();
-        //give time for acceptors to connect
+        //firewall rules and ack 1 are flooded, so every switch has to be connected before the manager starts
         try {
-            Thread.sleep(3000);
+            connected.await();
+            if(debugInfo) System.out.println("Master: all " + expected + " switches connected");
         } catch (InterruptedException e) {
             System.out.println("Master: Unknown interruption encountered at startup");
             throw new RuntimeException(e);
         }
-        //start manager
+        //start manager, and the flow reporter if sampling
         manager.start();
+        Thread reporter = new Thread(() -> {
+            while(!finished){
+                try{
+                    Thread.sleep(flowInterval);
+                } catch (InterruptedException e){
+                    return;
+                }
+                exportFlows();
+            }
+        });
+        reporter.setDaemon(true);
+        if(flows != null) reporter.start();
+        //this thread stays alive until everything it started has shut down, so callers can join it
+        try{
+            manager.join();
+            acceptor.join();
+            for(SwitchThread t: clients){
+                t.join();
+            }
+            reporter.interrupt();
+        } catch (InterruptedException e){
+            System.out.println("Master: interrupted while shutting down");
+        }
+        exportFlows();
     }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One end of a Transport connection; the Socket of the socket transport
+ * <p>Reads block until data or end of stream, as on a socket. Closing a connection ends the stream for the peer
+ * once it has read everything that was sent.
+ */
+public interface Connection extends Closeable {
+    InputStream getInputStream() throws IOException;
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return true once this end has been closed
+     */
+    boolean isClosed();
+
+    /**
+     * Check whether the peer has gone away (see LinkProbe)
+     * @param in buffered input stream over this connection
+     * @return true if the connection is gone
+     */
+    boolean peerClosed(DataInputStream in) throws IOException;
+}
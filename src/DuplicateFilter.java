@@ -0,0 +1,99 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Receiver-side duplicate detection
+ * <p>Senders keep several frames in flight, so retransmissions can arrive after newer frames from the same source.
+ * Remembering only the last sequence number is no longer enough; instead each source gets a sliding window over
+ * the 256 sequence numbers.
+ * <p>Senders number their frames per destination (and per group, for group frames), so every source's frames
+ * arrive numbered in an unbroken run, and the frames a sender has in flight never span more than
+ * SendWindow.MAX_WINDOW sequence numbers. So only the MAX_WINDOW most recent sequence numbers can still be
+ * retransmissions; anything further behind the highest one seen has wrapped around, and is a new frame.
+ */
+public class DuplicateFilter {
+    private final static int ENTRY = 12;
+    //Format: {network ID, node ID, group (0 for frames to this node), highest sequence number seen, 8 words of "seen"
+    //bits (one bit per sequence number, only trusted for the MAX_WINDOW most recent ones)}
+    private final ArrayList<int[]> sources;
+
+    public DuplicateFilter(){
+        this.sources = new ArrayList<>();
+    }
+
+    /**
+     * Check a data frame and record it as seen
+     * @param net source network ID
+     * @param node source node ID
+     * @param group group the frame was sent to, or 0 for a frame sent to this node
+     * @param sn sequence number
+     * @return true if this is the first copy of the frame, false if it is a duplicate
+     */
+    public boolean accept(int net, int node, int group, int sn){
+        sn &= 0xFF;
+        int[] entry = null;
+        for(int[] i: sources){
+            if(i[0] == net && i[1] == node && i[2] == group){
+                entry = i;
+                break;
+            }
+        }
+        //if new source, add new entry
+        if(entry == null){
+            entry = new int[ENTRY];
+            entry[0] = net;
+            entry[1] = node;
+            entry[2] = group;
+            entry[3] = sn;
+            sources.add(entry);
+        }
+        int ahead = (sn - entry[3]) & 0xFF;
+        if(ahead > 0 && ahead <= 256 - SendWindow.MAX_WINDOW){
+            //window slides forward: the sequence numbers it passes over were last seen a lap ago (if ever), so
+            //forget them
+            for(int k = 1; k <= ahead; k++){
+                int old = (entry[3] + k) & 0xFF;
+                entry[4 + (old >> 5)] &= ~(1 << (old & 31));
+            }
+            entry[3] = sn;
+        }
+        //check and set the seen bit
+        int word = 4 + (sn >> 5), bit = 1 << (sn & 31);
+        if((entry[word] & bit) != 0) return false;
+        entry[word] |= bit;
+        return true;
+    }
+
+    /**
+     * Get the number of bytes save() will write
+     * @return saved size
+     */
+    public int savedSize(){
+        return 4 + sources.size() * ENTRY * 4;
+    }
+
+    /**
+     * Write the filter state, so a restarted node doesn't write duplicate output
+     * @param b destination buffer
+     */
+    public void save(ByteBuffer b){
+        b.putInt(sources.size());
+        for(int[] i: sources){
+            for(int v: i) b.putInt(v);
+        }
+    }
+
+    /**
+     * Replace the filter state with one written by save()
+     * @param b source buffer
+     */
+    public void load(ByteBuffer b){
+        sources.clear();
+        int count = b.getInt();
+        for(int n = 0; n < count; n++){
+            int[] entry = new int[ENTRY];
+            for(int k = 0; k < entry.length; k++) entry[k] = b.getInt();
+            sources.add(entry);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Binary event log for the hot paths (frames sent, switched, flooded, retransmitted...)
+ * <p>Logging an event writes one fixed size record (4 longs: time, who and what, the frame's header, and an argument)
+ * into a ring owned by the calling thread, with no locks, no allocation and no string formatting. A background
+ * thread drains every ring into the log file. If a ring is full the event is dropped and counted, so logging never
+ * holds up the network. Events below their component's level cost one array read.
+ * <p>Levels are set per component (Node, NodeThread, Switch, SwitchThread, CentralSwitch) with setLevel, or at
+ * runtime through the network:type=EventLog MBean. Decode a log with: java EventLog [log file]
+ * <p>Record: [nanoTime][component:8 event:8 net:16 ID:32][frame header, see Frame.header][argument]
+ */
+public class EventLog implements EventLogMBean {
+    //components
+    public final static int NODE = 0, NODE_THREAD = 1, SWITCH = 2, SWITCH_THREAD = 3, CENTRAL = 4;
+    private final static String[] COMPONENTS = {"Node", "NodeThread", "Switch", "SwitchThread", "CentralSwitch"};
+    //levels
+    public final static int OFF = 0, INFO = 1, DEBUG = 2, TRACE = 3;
+    private final static String[] LEVELS = {"OFF", "INFO", "DEBUG", "TRACE"};
+    //events: node
+    public final static int SENT = 1, RETRANSMITTED = 2, ACKED = 3, NACKED = 4, CRC_ERROR = 5, TIMEOUT = 6,
+            RECEIVED = 7, DUPLICATE = 8, GARBAGE = 9;
+    //events: switches
+    public final static int FORWARDING = 10, SWITCHED = 11, TRUNKED = 12, FLOODED = 13, FIREWALLED = 14,
+            SPOOLED = 15, REPLAYED = 16;
+    //events: ports
+    public final static int PORT_IN = 17, PORT_OUT = 18, CONTROL = 19;
+    //events: overload (a switch shedding a frame, a node told so, a port policing its ingress, a switch dropping a
+    //retransmission of a frame it still holds)
+    public final static int DROPPED = 20, CONGESTED = 21, POLICED = 22, COALESCED = 23;
+    //events: multicast (a switch handing a group frame to its members)
+    public final static int MULTICAST = 24;
+    //name, level and argument of each event
+    private final static String[] EVENTS = {"", "sent", "retransmitted", "acked", "nacked", "crc error", "timeout",
+            "received", "duplicate", "garbage", "forwarding", "switched", "trunked", "flooded", "firewalled", "spooled",
+            "replayed", "port in", "port out", "control", "dropped", "congested", "policed",
+            "coalesced", "multicast"};
+    private final static int[] EVENT_LEVELS = {OFF, DEBUG, DEBUG, DEBUG, INFO, DEBUG, INFO, DEBUG, DEBUG, INFO,
+            DEBUG, DEBUG, DEBUG, INFO, INFO, INFO, INFO, TRACE, TRACE, DEBUG, INFO, INFO, INFO,
+            DEBUG, DEBUG};
+    private final static String[] ARGUMENTS = {"", "in flight", "attempt", "", "", "", "", "ack dropped", "", "",
+            "queued ns", "port", "", "ports", "", "", "port", "", "", "", "queued ns", "in flight", "early ns",
+            "", "copies"};
+    //records per thread ring (a power of two), longs per record, and the file's magic number ("EVLOG" and version)
+    private final static int RECORDS = 1 << 12;
+    private final static int WIDTH = 4;
+    private final static long MAGIC = 0x45564C4F47000001L;
+    private final static int BUFFER = 1 << 16;
+
+    private final static AtomicIntegerArray levels = new AtomicIntegerArray(COMPONENTS.length);
+    private final static CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<>();
+    private final static ThreadLocal<Ring> ring = ThreadLocal.withInitial(Ring::new);
+    private final static LongAdder dropped = new LongAdder();
+    private static volatile boolean open;
+    private static FileChannel channel;
+    private static Thread drainer;
+
+    /**
+     * A thread's ring of records. Only the owner writes records and tail; only the drainer moves head.
+     */
+    private static class Ring {
+        private final Thread owner;
+        private final long[] records;
+        private volatile long head, tail;
+
+        private Ring(){
+            this.owner = Thread.currentThread();
+            this.records = new long[RECORDS * WIDTH];
+            rings.add(this);
+        }
+    }
+
+    /**
+     * Check whether a component logs an event
+     * @param component component, e.g. EventLog.SWITCH
+     * @param event event, e.g. EventLog.SWITCHED
+     * @return true if the log is open and the component's level covers the event
+     */
+    public static boolean enabled(int component, int event){
+        return EVENT_LEVELS[event] <= levels.get(component) && open;
+    }
+
+    /**
+     * Log an event, if the component's level covers it
+     * @param component component logging, e.g. EventLog.NODE
+     * @param event event, e.g. EventLog.SENT
+     * @param net network ID of the component (0 for the central switch)
+     * @param ID node or port ID of the component (0 for a switch)
+     * @param f frame the event is about, or null
+     * @param argument event specific value (see the decoder's output)
+     */
+    public static void log(int component, int event, int net, int ID, Frame f, long argument){
+        if(!enabled(component, event)) return;
+        Ring r = ring.get();
+        long t = r.tail;
+        if(t - r.head >= RECORDS){
+            dropped.increment();
+            return;
+        }
+        int i = (int) (t & (RECORDS - 1)) * WIDTH;
+        r.records[i] = System.nanoTime();
+        r.records[i + 1] = ((long) component << 56) | ((long) event << 48) | ((long) (net & 0xFFFF) << 32)
+                | (ID & 0xFFFFFFFFL);
+        r.records[i + 2] = f == null ? 0 : f.header();
+        r.records[i + 3] = argument;
+        r.tail = t + 1;
+    }
+
+    /**
+     * Set a component's level
+     * @param component component, e.g. EventLog.NODE
+     * @param level OFF, INFO (rare events: timeouts, nacks, floods, firewall drops, spooling), DEBUG (every frame
+     *              handled) or TRACE (every frame through every port as well)
+     */
+    public static void setLevel(int component, int level){
+        levels.set(component, Math.max(OFF, Math.min(TRACE, level)));
+    }
+
+    public static int getLevel(int component){return levels.get(component);}
+
+    //number of events dropped because a ring was full
+    public static long getDropped(){return dropped.sum();}
+
+    /**
+     * Start logging to a file (replacing it), and publish the network:type=EventLog MBean
+     * @param file log file
+     */
+    public static synchronized void open(File file) throws IOException{
+        if(open) close();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer magic = ByteBuffer.allocate(8).putLong(MAGIC);
+        magic.flip();
+        while(magic.hasRemaining()) channel.write(magic);
+        //anything left over from an earlier log is not for this one
+        for(Ring r: rings) r.head = r.tail;
+        dropped.reset();
+        open = true;
+        drainer = new Thread(EventLog::drain, "EventLog");
+        drainer.setDaemon(true);
+        drainer.start();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try{
+            ObjectName name = new ObjectName("network:type=EventLog");
+            if(!server.isRegistered(name)) server.registerMBean(new EventLog(), name);
+        } catch (JMException e){
+            System.out.println("EventLog: could not register MBean: " + e);
+        }
+    }
+
+    /**
+     * Stop logging: write out everything logged so far and close the file
+     */
+    public static synchronized void close(){
+        if(!open) return;
+        open = false;
+        try{
+            drainer.join();
+        } catch (InterruptedException e){
+            System.out.println("EventLog: interrupted while closing");
+        }
+        try{
+            channel.close();
+        } catch (IOException e){
+            System.out.println("EventLog: could not close the log file");
+            e.printStackTrace();
+        }
+        if(dropped.sum() > 0) System.out.println("EventLog: " + dropped.sum() + " events dropped (ring full)");
+    }
+
+    //drainer: copy every ring into the file until the log is closed, then once more for the stragglers
+    private static void drain(){
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+        try{
+            boolean last = false;
+            while(!last){
+                last = !open;
+                long n = 0;
+                for(Ring r: rings){
+                    n += drain(r, buffer);
+                    //rings of finished threads are dropped once empty
+                    if(!r.owner.isAlive() && r.head == r.tail) rings.remove(r);
+                }
+                write(buffer);
+                if(n == 0 && !last) LockSupport.parkNanos(1_000_000);
+            }
+        } catch (IOException e){
+            System.out.println("EventLog: could not write the log file; logging stopped");
+            e.printStackTrace();
+            open = false;
+        }
+    }
+
+    //copy one ring's records into the buffer, writing it out whenever it fills
+    private static long drain(Ring r, ByteBuffer buffer) throws IOException{
+        long h = r.head, t = r.tail;
+        for(long k = h; k < t; k++){
+            if(buffer.remaining() < WIDTH * 8) write(buffer);
+            int i = (int) (k & (RECORDS - 1)) * WIDTH;
+            for(int j = 0; j < WIDTH; j++) buffer.putLong(r.records[i + j]);
+        }
+        r.head = t;
+        return t - h;
+    }
+
+    private static void write(ByteBuffer buffer) throws IOException{
+        buffer.flip();
+        while(buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /*-------------MBean (network:type=EventLog)--------------*/
+
+    private static String level(int component){return LEVELS[levels.get(component)];}
+
+    private static void level(int component, String level){
+        for(int i = 0; i < LEVELS.length; i++){
+            if(LEVELS[i].equalsIgnoreCase(level)){
+                setLevel(component, i);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("unknown level " + level + "; use OFF, INFO, DEBUG or TRACE");
+    }
+
+    @Override public String getNodeLevel(){return level(NODE);}
+    @Override public void setNodeLevel(String level){level(NODE, level);}
+    @Override public String getNodeThreadLevel(){return level(NODE_THREAD);}
+    @Override public void setNodeThreadLevel(String level){level(NODE_THREAD, level);}
+    @Override public String getSwitchLevel(){return level(SWITCH);}
+    @Override public void setSwitchLevel(String level){level(SWITCH, level);}
+    @Override public String getSwitchThreadLevel(){return level(SWITCH_THREAD);}
+    @Override public void setSwitchThreadLevel(String level){level(SWITCH_THREAD, level);}
+    @Override public String getCentralSwitchLevel(){return level(CENTRAL);}
+    @Override public void setCentralSwitchLevel(String level){level(CENTRAL, level);}
+    @Override public long getDroppedEvents(){return getDropped();}
+
+    /*-------------Decoder--------------*/
+
+    /**
+     * Render a log as text, in time order
+     * @param record one record (4 longs)
+     * @param start time of the first record
+     * @return text line
+     */
+    public static String toString(long[] record, long start){
+        int component = (int) (record[1] >>> 56), event = (int) ((record[1] >>> 48) & 0xFF);
+        int net = (int) ((record[1] >>> 32) & 0xFFFF), ID = (int) record[1];
+        StringBuilder b = new StringBuilder();
+        b.append(String.format("%12.6f ms  ", (record[0] - start) / 1e6));
+        String who = component < COMPONENTS.length ? COMPONENTS[component] : "?" + component;
+        if(component == NODE) who += " " + net + ":" + ID;
+        else if(component == NODE_THREAD) who += " " + ID + " (net " + net + ")";
+        else if(component == SWITCH) who += " " + net;
+        else if(component == SWITCH_THREAD) who += " " + ID;
+        b.append(String.format("%-24s ", who));
+        b.append(String.format("%-14s", event < EVENTS.length ? EVENTS[event] : "?" + event));
+        long h = record[2];
+        if(h != 0){
+            int size = (int) ((h >>> 16) & 0xFF);
+            b.append(String.format(" [%d][%d][%d][%d] SN %d ", (h >>> 56) & 0xFF, (h >>> 48) & 0xFF,
+                    (h >>> 40) & 0xFF, (h >>> 32) & 0xFF, (h >>> 24) & 0xFF));
+            b.append(size > 0 ? "size " + size : "ack " + ((h >>> 8) & 0xFF));
+        }
+        if(event < ARGUMENTS.length && !ARGUMENTS[event].isEmpty()) b.append(", ").append(ARGUMENTS[event])
+                .append(' ').append(record[3]);
+        return b.toString();
+    }
+
+    public static void main(String[] args){
+        File file = new File(args.length > 0 ? args[0] : "events.log");
+        ArrayList<long[]> records = new ArrayList<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if(in.readLong() != MAGIC){
+                System.out.println(file + " is not an event log");
+                return;
+            }
+            while(true){
+                long[] record = new long[WIDTH];
+                try{
+                    for(int j = 0; j < WIDTH; j++) record[j] = in.readLong();
+                } catch (EOFException e){
+                    break;
+                }
+                records.add(record);
+            }
+        } catch (IOException e){
+            System.out.println("Could not read " + file);
+            e.printStackTrace();
+            return;
+        }
+        //each thread's records are in order, but threads are drained in turn, so put them back in time order
+        records.sort((a, b) -> Long.compare(a[0], b[0]));
+        long start = records.isEmpty() ? 0 : records.get(0)[0];
+        for(long[] record: records) System.out.println(toString(record, start));
+        System.out.println(records.size() + " events");
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * Management interface of the event log (network:type=EventLog): per component levels, settable at runtime
+ * (OFF, INFO, DEBUG or TRACE), and the number of events dropped because a ring was full.
+ */
+public interface EventLogMBean {
+    String getNodeLevel();
+    void setNodeLevel(String level);
+    String getNodeThreadLevel();
+    void setNodeThreadLevel(String level);
+    String getSwitchLevel();
+    void setSwitchLevel(String level);
+    String getSwitchThreadLevel();
+    void setSwitchThreadLevel(String level);
+    String getCentralSwitchLevel();
+    void setCentralSwitchLevel(String level);
+    long getDroppedEvents();
+}
@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * sFlow style sampled flow statistics (used by CentralSwitch)
+ * <p>One frame in every N (on average; the gap between samples is random, so periodic traffic can't hide from it) is
+ * sampled, and counted against its network pair and its node pair in two space-saving top-K sketches. A sketch keeps
+ * K flows: a sampled flow already in it is counted, and a new one replaces the smallest, inheriting its count as an
+ * error bound. Every flow carrying more than 1/K of the samples is guaranteed to be kept. Estimates are the sampled
+ * counts times N.
+ * <p>Offering a frame that isn't sampled is a countdown; sampling one is a short scan of fixed arrays. Nothing is
+ * allocated either way, so it can stay on at full rate.
+ */
+public class FlowStats {
+    private final int rate;
+    private final Sketch networks, nodes;
+    //frames until the next sample, and the generator for sample gaps (xorshift)
+    private int skip;
+    private long random;
+    private final LongAdder seen, sampled;
+
+    /**
+     * A space-saving top-K sketch over long keys
+     */
+    private static class Sketch {
+        private final long[] keys, frames, bytes, errors;
+        private int size;
+
+        private Sketch(int k){
+            this.keys = new long[k];
+            this.frames = new long[k];
+            this.bytes = new long[k];
+            this.errors = new long[k];
+        }
+
+        private void add(long key, int length){
+            int min = 0;
+            for(int i = 0; i < size; i++){
+                if(keys[i] == key){
+                    frames[i]++;
+                    bytes[i] += length;
+                    return;
+                }
+                if(frames[i] < frames[min]) min = i;
+            }
+            if(size < keys.length){
+                min = size++;
+                errors[min] = 0;
+            } else {
+                //replace the smallest flow; whatever it had may have belonged to the new one
+                errors[min] = frames[min];
+            }
+            keys[min] = key;
+            frames[min]++;
+            bytes[min] += length;
+        }
+
+        //slots in order of count, largest first
+        private int[] order(){
+            int[] order = new int[size];
+            for(int i = 0; i < size; i++) order[i] = i;
+            for(int i = 1; i < size; i++){
+                int o = order[i], j = i;
+                while(j > 0 && frames[order[j - 1]] < frames[o]){
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = o;
+            }
+            return order;
+        }
+
+        private void reset(){
+            size = 0;
+            for(int i = 0; i < keys.length; i++){
+                frames[i] = 0;
+                bytes[i] = 0;
+                errors[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * FlowStats constructor
+     * @param rate sample one frame in this many, on average
+     * @param k flows kept per sketch
+     * @param seed seed for the sample gaps
+     */
+    public FlowStats(int rate, int k, long seed){
+        this.rate = Math.max(1, rate);
+        this.networks = new Sketch(Math.max(1, k));
+        this.nodes = new Sketch(Math.max(1, k));
+        this.random = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+        this.seen = new LongAdder();
+        this.sampled = new LongAdder();
+        this.skip = gap();
+    }
+
+    //gap to the next sample: uniform over 1 .. 2N - 1, so N on average
+    private int gap(){
+        if(rate == 1) return 1;
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return 1 + (int) Long.remainderUnsigned(random, 2L * rate - 1);
+    }
+
+    /**
+     * Offer a frame to the sampler. Meant to be called by one thread (the central switch's manager).
+     * @param f frame
+     */
+    public void offer(Frame f){
+        seen.increment();
+        if(--skip > 0) return;
+        skip = gap();
+        sampled.increment();
+        //[SourceNetwork][SourceNode][DestNetwork][DestNode] from the packed header
+        long pair = f.header() >>> 32;
+        synchronized (this){
+            networks.add(((pair >>> 16) & 0xFF00) | ((pair >>> 8) & 0xFF), f.length());
+            nodes.add(pair, f.length());
+        }
+    }
+
+    public long getSeen(){return seen.sum();}
+    public long getSampled(){return sampled.sum();}
+
+    /**
+     * Forget the flows counted so far (e.g. to start a new measurement interval)
+     */
+    public synchronized void reset(){
+        networks.reset();
+        nodes.reset();
+    }
+
+    /**
+     * Write the current top flows to a file (replacing it in one step, so readers never see half a report)
+     * <p>One line per flow: source -> destination, estimated frames and bytes, and how many of those frames may
+     * belong to flows it replaced in the sketch (the estimate is high by at most that).
+     * @param file report file
+     */
+    public synchronized void export(File file) throws IOException{
+        File temp = new File(file.getPath() + ".tmp");
+        try(FileWriter writer = new FileWriter(temp)){
+            writer.write("# sampling 1 in " + rate + ": " + seen.sum() + " frames seen, " + sampled.sum() + " sampled\n");
+            writer.write("# network pairs: source -> destination, estimated frames, estimated bytes, error\n");
+            for(int i: networks.order()){
+                long key = networks.keys[i];
+                writer.write(String.format("%d -> %d  %d  %d  %d%n", (key >>> 8) & 0xFF, key & 0xFF,
+                        networks.frames[i] * rate, networks.bytes[i] * rate, networks.errors[i] * rate));
+            }
+            writer.write("# node pairs: source -> destination, estimated frames, estimated bytes, error\n");
+            for(int i: nodes.order()){
+                long key = nodes.keys[i];
+                writer.write(String.format("%d_%d -> %d_%d  %d  %d  %d%n", (key >>> 24) & 0xFF, (key >>> 16) & 0xFF,
+                        (key >>> 8) & 0xFF, key & 0xFF, nodes.frames[i] * rate, nodes.bytes[i] * rate,
+                        nodes.errors[i] * rate));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -7,11 +7,34 @@ import java.util.Random;
 /**
  * Frame object class
  * Format: [SourceNetwork][SourceNode][DestNetwork][DestNode][SequenceNumber][CRC][Size][Ack/Data]
+ * <p>A traced data frame has the high bit of its DestNetwork byte set (network IDs are below 128), and carries a
+ * trailer after its data: [Hops][Timestamp]..., one 8 byte System.nanoTime stamp per hop so far. The CRC covers
+ * the header and data as usual, not the flag or the trailer.
+ * <p>A frame to destination network GROUP goes to every member of the multicast group in its DestNode byte.
  */
 public class Frame {
+    //trace flag, in the DestNetwork byte
+    public final static int TRACED = 0x80;
+    //most hop timestamps a trace can hold
+    public final static int MAX_HOPS = 15;
+    //ack code of a trunk credit frame (switch <-> master flow control); the credits are carried in its sequence number
+    public final static int CREDIT = 7;
+    //ack code of a congestion nack: a switch shed the frame under overload (see Aqm)
+    public final static int CONGESTED = 8;
+    //destination network of a multicast group frame (the group is the DestNode byte; network IDs stay below this),
+    //and ack code of the control frame a node sends to join a group (see GroupTable)
+    public final static int GROUP = 127;
+    public final static int JOIN = 9;
     private final int sourceNode, sourceNet, destNode, destNet, ack, size, sequence;
     byte crc;
     private final String data;
+    //when the frame entered a switch's buffer (System.nanoTime); local bookkeeping, never sent
+    private long queued;
+    //port the frame came in on, for returning its flow control credit (see SwitchThread); local bookkeeping, never sent
+    private int ingress;
+    //hop timestamps of a traced frame, oldest first (null if the frame is not traced)
+    private long[] trace;
+    private int hops;
 
     /**
      * Frame class constructor (data)
@@ -81,6 +104,73 @@ public class Frame {
     public String getData(){return this.data;}
     public byte getCrc(){return this.crc;}
     public int getSN(){return this.sequence;}
+    public long getQueued(){return this.queued;}
+    public void setQueued(long queued){this.queued = queued;}
+    public int getIngress(){return this.ingress;}
+    public void setIngress(int ingress){this.ingress = ingress;}
+
+    /**
+     * Get the header packed into a long, for compact logging (see EventLog)
+     * @return [SourceNetwork][SourceNode][DestNetwork][DestNode][SequenceNumber][Size][Ack][CRC], a byte each
+     */
+    public long header(){
+        return ((long) (sourceNet & 0xFF) << 56) | ((long) (sourceNode & 0xFF) << 48) | ((long) (destNet & 0xFF) << 40)
+                | ((long) (destNode & 0xFF) << 32) | ((long) (sequence & 0xFF) << 24) | ((long) (size & 0xFF) << 16)
+                | ((long) (ack & 0xFF) << 8) | (crc & 0xFF);
+    }
+
+    /**
+     * Get the length of the frame on the wire
+     * @return encoded length, in bytes
+     */
+    public int length(){return this.size > 0 ? 7 + this.size + (trace != null ? 1 + 8 * hops : 0) : 8;}
+
+    /**
+     * Start tracing this data frame, with its first hop timestamp (acks are never traced)
+     * @param now time the frame is first sent
+     */
+    public void startTrace(long now){
+        if(this.size == 0) return;
+        this.trace = new long[MAX_HOPS];
+        this.hops = 0;
+        stamp(now);
+    }
+
+    /**
+     * Add a hop timestamp, if the frame is traced (an untraced frame is left alone, at no cost)
+     * @param now time the frame passes this hop
+     */
+    public void stamp(long now){
+        if(trace != null && hops < MAX_HOPS) trace[hops++] = now;
+    }
+
+    public boolean isTraced(){return this.trace != null;}
+
+    /**
+     * Check whether this frame is addressed to a multicast group (a join is not: it is addressed to the switch)
+     * @return true for group data
+     */
+    public boolean isGroup(){return this.destNet == GROUP && this.size > 0;}
+
+    /**
+     * Return the control frame (code 9) a node sends its switch to join a group, or a switch the master to join on
+     * behalf of its network
+     * @param sourceNet network joining
+     * @param sourceNode node joining (0 for a whole network)
+     * @param group group number, 1 to 255
+     * @return join frame
+     */
+    public static Frame join(int sourceNet, int sourceNode, int group){
+        return new Frame(sourceNet, sourceNode, GROUP, group, 0, JOIN);
+    }
+
+    /**
+     * Get the hop timestamps of a traced frame
+     * @return timestamps, oldest first (empty if the frame is not traced)
+     */
+    public long[] getTrace(){
+        return trace == null ? new long[0] : Arrays.copyOf(trace, hops);
+    }
 
     //calculate expected crc byte value for a given frame
     public byte calcCrc(){
@@ -107,8 +197,8 @@ public class Frame {
     public byte[] encode(){
         byte[] out;
         if(this.size > 0){
-            //data frame
-            out = new byte[7+this.size];
+            //data frame (and trace trailer)
+            out = new byte[length()];
         } else {
             //ack frame
             out = new byte[8];
@@ -124,6 +214,13 @@ public class Frame {
         if (this.size > 0){
             //set data if data frame
             System.arraycopy(data.getBytes(), 0, out, 7, this.size);
+            if(trace != null){
+                out[2] |= (byte) TRACED;
+                out[7 + this.size] = (byte) hops;
+                for(int i = 0; i < hops; i++){
+                    for(int b = 0; b < 8; b++) out[8 + this.size + 8 * i + b] = (byte) (trace[i] >>> (56 - 8 * b));
+                }
+            }
         } else {
             //set ack if ack frame
             out[7] = (byte) ack;
@@ -145,11 +242,24 @@ public class Frame {
         byte crc = msg[5];
         //data frame
         if(size > 0){
+            boolean traced = (destNet & TRACED) != 0;
+            destNet &= ~TRACED;
+            int hops = traced && msg.length > 7 + size ? Byte.toUnsignedInt(msg[7 + size]) : 0;
             //check for loss
-            if(msg.length != 7 + size) throw new FrameLostException("Frame decoding detected data loss");
+            if(msg.length != 7 + size + (traced ? 1 + 8 * hops : 0) || hops > MAX_HOPS)
+                throw new FrameLostException("Frame decoding detected data loss");
             //parse data and frame it
-            String data = new String(Arrays.copyOfRange(msg, 6, 6+size));
+            String data = new String(Arrays.copyOfRange(msg, 7, 7+size));
             f = new Frame(sourceNet, sourceNode, destNet, destNode, sequence, data);
+            if(traced){
+                f.trace = new long[MAX_HOPS];
+                f.hops = hops;
+                for(int i = 0; i < hops; i++){
+                    long t = 0;
+                    for(int b = 0; b < 8; b++) t = (t << 8) | Byte.toUnsignedLong(msg[8 + size + 8 * i + b]);
+                    f.trace[i] = t;
+                }
+            }
         }
         //ack frame
         else{
@@ -204,7 +314,21 @@ public class Frame {
             byte[] data = in.readNBytes(size);
             //Verify data size and return
             if(data.length != size) throw new FrameLostException("Frame decoding detected data loss");
+            boolean traced = (destNet & TRACED) != 0;
+            destNet &= ~TRACED;
             f = new Frame(sourceNet, sourceNode, destNet, destNode, sequence, new String(data));
+            //trace trailer
+            if(traced){
+                int hops = in.read();
+                if(hops < 0 || hops > MAX_HOPS) throw new FrameLostException("Frame decoding detected data loss");
+                f.trace = new long[MAX_HOPS];
+                f.hops = hops;
+                try{
+                    for(int i = 0; i < hops; i++) f.trace[i] = in.readLong();
+                } catch (EOFException e){
+                    throw new FrameLostException("Frame decoding detected data loss");
+                }
+            }
         }
         //set cyc (ensure original crc is used in case of error)
         f.setCrc(crc);
@@ -228,7 +352,15 @@ public class Frame {
      * @return erroneous frame
      */
     public Frame corrupt(){
-        Random r = new Random();
+        return corrupt(new Random());
+    }
+
+    /**
+     * Return a new frame with ""corrupted"" data, drawn from the given generator (for reproducible runs)
+     * @param r random generator
+     * @return erroneous frame
+     */
+    public Frame corrupt(Random r){
         String data = r.nextLong() + "(corrupt)";
         byte crc = this.crc;
         Frame f = new Frame(this.sourceNet, this.sourceNode, this.destNet, this.destNode, this.sequence, data);
@@ -236,6 +368,22 @@ public class Frame {
         return f;
     }
 
+    /**
+     * Return the nack (code 4) a firewall bounces back to this frame's source
+     * @return nack frame
+     */
+    public Frame nack(){
+        return new Frame(this.destNet, this.destNode, this.sourceNet, this.sourceNode, this.sequence, 4);
+    }
+
+    /**
+     * Return the congestion nack (code 8) a switch sends back to this frame's source when it sheds the frame
+     * @return nack frame
+     */
+    public Frame congested(){
+        return new Frame(this.destNet, this.destNode, this.sourceNet, this.sourceNode, this.sequence, CONGESTED);
+    }
+
     //A test example to show how to utilize this class, and to show that it works.
     public static void main(String[] args) throws Exception{
         Frame f1 = new Frame(0, 0, 0, 0, 0, "woah there its a message lol lmao");
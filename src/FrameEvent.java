@@ -0,0 +1,189 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the frame lifecycle, for lining up forwarding stalls with GC, monitor contention
+ * and socket I/O in JDK Mission Control
+ * <p>All of them are off by default. Touching an event class starts up the whole of JFR (a few hundred ms), so until
+ * a recording has been started the emitters below return after one flag read; after that each one creates its
+ * event and drops it after one check unless a recording asks for it. Record them with the settings in network.jfc,
+ * e.g.
+ * java -XX:StartFlightRecording:settings=default,settings=network.jfc,filename=network.jfr Main 20 4
+ * <p>Every event carries the frame's header fields, and the part that emitted it (component, network, ID).
+ */
+@Enabled(false)
+@StackTrace(false)
+@Category("Network")
+public abstract class FrameEvent extends Event {
+    @Label("Component") String component;
+    @Label("Network") int net;
+    @Label("ID") @Description("Node ID, or port ID of a NodeThread or SwitchThread") int ID;
+    @Label("Source Network") int sourceNet;
+    @Label("Source Node") int sourceNode;
+    @Label("Destination Network") int destNet;
+    @Label("Destination Node") int destNode;
+    @Label("Sequence Number") int sequence;
+    @Label("Size") int size;
+    @Label("Ack") int ack;
+
+    //fill in the common fields
+    void set(String component, int net, int ID, Frame f){
+        this.component = component;
+        this.net = net;
+        this.ID = ID;
+        this.sourceNet = f.getSource()[0];
+        this.sourceNode = f.getSource()[1];
+        this.destNet = f.getDest()[0];
+        this.destNode = f.getDest()[1];
+        this.sequence = f.getSN();
+        this.size = f.getSize();
+        this.ack = f.getSize() > 0 ? -1 : f.getAck();
+    }
+
+    @Name("network.Enqueued")
+    @Label("Frame Enqueued")
+    @Description("Frame added to a switch's buffer")
+    static class Enqueued extends FrameEvent {
+        @Label("Buffer Depth") int depth;
+    }
+
+    @Name("network.Dequeued")
+    @Label("Frame Dequeued")
+    @Description("Frame taken from a switch's buffer by its manager")
+    static class Dequeued extends FrameEvent {
+        @Label("Time Queued") @Timespan(Timespan.NANOSECONDS) long queued;
+    }
+
+    @Name("network.Forwarded")
+    @Label("Forwarding Decision")
+    @Description("What a switch did with a frame: switched, trunked, flooded, firewalled, spooled, dropped, coalesced or multicast")
+    static class Forwarded extends FrameEvent {
+        @Label("Decision") String decision;
+        @Label("Port") @Description("Port switched to, or number of ports flooded to") int port;
+    }
+
+    @Name("network.PortWrite")
+    @Label("Port Write")
+    @Description("A NodeThread or SwitchThread writing a frame to its connection, including the wait for the lock")
+    static class PortWrite extends FrameEvent {
+        @Label("Bytes") int bytes;
+    }
+
+    @Name("network.NodeSent")
+    @Label("Node Sent")
+    static class NodeSent extends FrameEvent {
+        @Label("In Flight") int inFlight;
+    }
+
+    @Name("network.NodeAcked")
+    @Label("Node Acked")
+    static class NodeAcked extends FrameEvent {
+        @Label("Round Trip") @Timespan(Timespan.NANOSECONDS) long rtt;
+    }
+
+    @Name("network.NodeRetransmitted")
+    @Label("Node Retransmitted")
+    static class NodeRetransmitted extends FrameEvent {
+        @Label("Attempt") int attempt;
+        @Label("Cause") String cause;
+    }
+
+    @Name("network.NodeTimeout")
+    @Label("Node Timeout")
+    @Description("Frame given up on after its last retry")
+    static class NodeTimeout extends FrameEvent {
+    }
+
+    /*-------------Emitters (no-ops unless a recording enables the event)--------------*/
+
+    public static void enqueued(String component, int net, Frame f, int depth){
+        if(!FlightRecorder.isInitialized()) return;
+        Enqueued e = new Enqueued();
+        if(!e.shouldCommit()) return;
+        e.set(component, net, 0, f);
+        e.depth = depth;
+        e.commit();
+    }
+
+    public static void dequeued(String component, int net, Frame f, long queued){
+        if(!FlightRecorder.isInitialized()) return;
+        Dequeued e = new Dequeued();
+        if(!e.shouldCommit()) return;
+        e.set(component, net, 0, f);
+        e.queued = queued;
+        e.commit();
+    }
+
+    public static void forwarded(String component, int net, Frame f, String decision, int port){
+        if(!FlightRecorder.isInitialized()) return;
+        Forwarded e = new Forwarded();
+        if(!e.shouldCommit()) return;
+        e.set(component, net, 0, f);
+        e.decision = decision;
+        e.port = port;
+        e.commit();
+    }
+
+    /**
+     * Start timing a port write
+     * @return the event, to pass to endWrite, or null if the event is off
+     */
+    public static PortWrite beginWrite(){
+        if(!FlightRecorder.isInitialized()) return null;
+        PortWrite e = new PortWrite();
+        if(!e.isEnabled()) return null;
+        e.begin();
+        return e;
+    }
+
+    public static void endWrite(PortWrite e, String component, int net, int ID, Frame f){
+        if(e == null) return;
+        e.end();
+        e.set(component, net, ID, f);
+        e.bytes = f.length();
+        e.commit();
+    }
+
+    public static void nodeSent(int net, int ID, Frame f, int inFlight){
+        if(!FlightRecorder.isInitialized()) return;
+        NodeSent e = new NodeSent();
+        if(!e.shouldCommit()) return;
+        e.set("Node", net, ID, f);
+        e.inFlight = inFlight;
+        e.commit();
+    }
+
+    public static void nodeAcked(int net, int ID, Frame f, long rtt){
+        if(!FlightRecorder.isInitialized()) return;
+        NodeAcked e = new NodeAcked();
+        if(!e.shouldCommit()) return;
+        e.set("Node", net, ID, f);
+        e.rtt = rtt;
+        e.commit();
+    }
+
+    public static void nodeRetransmitted(int net, int ID, Frame f, int attempt, String cause){
+        if(!FlightRecorder.isInitialized()) return;
+        NodeRetransmitted e = new NodeRetransmitted();
+        if(!e.shouldCommit()) return;
+        e.set("Node", net, ID, f);
+        e.attempt = attempt;
+        e.cause = cause;
+        e.commit();
+    }
+
+    public static void nodeTimeout(int net, int ID, Frame f){
+        if(!FlightRecorder.isInitialized()) return;
+        NodeTimeout e = new NodeTimeout();
+        if(!e.shouldCommit()) return;
+        e.set("Node", net, ID, f);
+        e.commit();
+    }
+}
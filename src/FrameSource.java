@@ -0,0 +1,56 @@
+import java.io.IOException;
+
+/**
+ * Where a node's outgoing frames come from: its input file (NodeInput), or a generator feeding it directly
+ * (see Workload). Either way the last frame handed out is the completion control frame (ack 5).
+ * <p>Offsets are whatever the source uses to find a frame again (a file offset, a frame index); a node only
+ * records them and hands them back to seek() when it resumes a session.
+ */
+public interface FrameSource {
+    /**
+     * Look at the next frame without consuming it
+     * @return next frame, or null if the input (including the completion frame) is used up
+     */
+    Frame peek() throws IOException;
+
+    /**
+     * Consume the next frame
+     * @return next frame, or null if the input (including the completion frame) is used up
+     */
+    Frame next() throws IOException;
+
+    /**
+     * @return offset of the frame most recently returned by next()
+     */
+    long lastOffset();
+
+    /**
+     * @return offset of the next frame to be handed out
+     */
+    long position();
+
+    /**
+     * @return sequence number the next frame to be handed out will have
+     */
+    int nextSN();
+
+    /**
+     * Move back (or forward) to a frame, as recorded by lastOffset() or position()
+     * @param offset frame offset
+     * @param SN sequence number the frame at that offset had
+     */
+    void seek(long offset, int SN) throws IOException;
+
+    /**
+     * @return true if every frame, including the completion frame, has been handed out
+     */
+    boolean isEmpty() throws IOException;
+
+    /**
+     * @return System.nanoTime before which the next frame must not be sent (0, the default, to send it whenever the
+     * window allows; a paced source such as a capture replay says otherwise)
+     */
+    default long nextTime(){return 0;}
+
+    void close() throws IOException;
+}
@@ -0,0 +1,58 @@
+/**
+ * Multicast group membership table (used by Switch, where members are its nodes, and by CentralSwitch, where members
+ * are networks)
+ * <p>Groups are numbered 1 to 255: a group frame has destination network Frame.GROUP and the group in its DestNode
+ * byte. Members join with a code 9 control frame, and stay members for the rest of the run.
+ * <p>Each group's members are kept in an array that is replaced, never changed, when someone joins, so forwarding a
+ * group frame reads the array as it is and allocates nothing. Joins are rare; frames are not.
+ */
+public class GroupTable {
+    private final static int[] NONE = new int[0];
+    //members of each group, by group number (null for none)
+    private final int[][] members;
+    private int groups;
+
+    public GroupTable(){
+        this.members = new int[256][];
+        this.groups = 0;
+    }
+
+    /**
+     * Thread-safe; adds a member to a group (joining twice changes nothing)
+     * @param group group number, 1 to 255
+     * @param member node ID (Switch) or network ID (CentralSwitch)
+     * @return true if the member is the group's first
+     */
+    public synchronized boolean join(int group, int member){
+        if(group < 1 || group > 255) return false;
+        int[] old = members[group];
+        if(old == null){
+            members[group] = new int[]{member};
+            groups++;
+            return true;
+        }
+        for(int m: old){
+            if(m == member) return false;
+        }
+        int[] joined = new int[old.length + 1];
+        System.arraycopy(old, 0, joined, 0, old.length);
+        joined[old.length] = member;
+        members[group] = joined;
+        return false;
+    }
+
+    /**
+     * Thread-safe; gets a group's members. The array is shared: don't change it.
+     * @param group group number
+     * @return members, in the order they joined (empty if none)
+     */
+    public synchronized int[] members(int group){
+        int[] m = group >= 1 && group <= 255 ? members[group] : null;
+        return m != null ? m : NONE;
+    }
+
+    /**
+     * @return number of groups with at least one member
+     */
+    public synchronized int size(){return this.groups;}
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of non-negative values (nanoseconds, usually)
+ * <p>Each power of two is split into 8 buckets, so any value is known to within 12.5%, and the whole range of a long
+ * fits in 512 counters. Recording is a few atomic increments and never allocates, so it can sit on a hot path;
+ * reading walks the buckets and is meant for monitoring (see Metrics).
+ */
+public class Histogram {
+    //log2 of the number of buckets per power of two
+    private final static int SUB = 3;
+    private final AtomicLongArray buckets;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public Histogram(){
+        this.buckets = new AtomicLongArray(64 << SUB);
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Record a value
+     * @param value value (negative values count as 0)
+     */
+    public void record(long value){
+        if(value < 0) value = 0;
+        buckets.incrementAndGet(index(value));
+        sum.add(value);
+        long m;
+        while(value > (m = max.get()) && !max.compareAndSet(m, value)) Thread.onSpinWait();
+    }
+
+    /**
+     * Get the number of values recorded
+     * @return count
+     */
+    public long count(){
+        long n = 0;
+        for(int i = 0; i < buckets.length(); i++) n += buckets.get(i);
+        return n;
+    }
+
+    /**
+     * Get the mean of the values recorded
+     * @return mean, or 0 if there are none
+     */
+    public long mean(){
+        long n = count();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    public long max(){return max.get();}
+
+    /**
+     * Get a percentile of the values recorded
+     * @param p percentile, from 0 to 1
+     * @return the middle of the bucket holding the percentile, or 0 if nothing was recorded
+     */
+    public long percentile(double p){
+        long n = count();
+        if(n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for(int i = 0; i < buckets.length(); i++){
+            seen += buckets.get(i);
+            if(seen >= target) return Math.min(max.get(), middle(i));
+        }
+        return max.get();
+    }
+
+    /**
+     * Add everything recorded in another histogram to this one (e.g. to merge the histograms of several parts)
+     * @param other histogram to add
+     */
+    public void add(Histogram other){
+        for(int i = 0; i < buckets.length(); i++){
+            long n = other.buckets.get(i);
+            if(n != 0) buckets.addAndGet(i, n);
+        }
+        sum.add(other.sum.sum());
+        long o = other.max.get(), m;
+        while(o > (m = max.get()) && !max.compareAndSet(m, o)) Thread.onSpinWait();
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset(){
+        for(int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+        sum.reset();
+        max.set(0);
+    }
+
+    //bucket of a value: values below 8 get one each, then 8 per power of two
+    private static int index(long value){
+        if(value < (1 << SUB)) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return ((exp - SUB + 1) << SUB) + (int) ((value >>> (exp - SUB)) & ((1 << SUB) - 1));
+    }
+
+    //middle value of a bucket
+    private static long middle(int index){
+        if(index < (1 << SUB)) return index;
+        int exp = (index >> SUB) + SUB - 1;
+        long low = ((long) ((1 << SUB) + (index & ((1 << SUB) - 1)))) << (exp - SUB);
+        return low + ((1L << (exp - SUB)) >> 1);
+    }
+}
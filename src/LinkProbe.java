@@ -0,0 +1,41 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Helper for noticing that the far end of a connection has gone away
+ * <p>Every read loop in this project polls available(), which can't tell an idle connection from a closed one.
+ * A probe does a 1 ms read: end of stream or a reset means the peer is gone, a timeout means it's just quiet.
+ * Whatever byte the probe reads is pushed back, so it is safe to call between frames.
+ */
+public class LinkProbe {
+    //how long a connection has to be quiet before it is worth probing, in milliseconds
+    public final static long INTERVAL = 50;
+
+    /**
+     * Check whether the peer has closed the connection
+     * @param socket connection
+     * @param in buffered input stream of the connection (must support mark/reset)
+     * @return true if the connection is gone
+     */
+    public static boolean closed(Socket socket, DataInputStream in) throws IOException{
+        if(socket.isClosed()) return true;
+        if(in.available() > 0) return false;
+        socket.setSoTimeout(1);
+        try{
+            in.mark(1);
+            if(in.read() < 0) return true;
+            in.reset();
+            return false;
+        } catch (SocketTimeoutException e){
+            return false;
+        } catch (SocketException e){
+            //connection reset
+            return true;
+        } finally {
+            if(!socket.isClosed()) socket.setSoTimeout(0);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listening end of a Transport; the ServerSocket of the socket transport
+ */
+public interface Listener extends Closeable {
+    /**
+     * Wait for a client to connect
+     * @return connection to the client
+     * @throws java.net.SocketException once the listener is closed, including while waiting
+     */
+    Connection accept() throws IOException;
+
+    /**
+     * @return port this listener is bound to
+     */
+    int getPort();
+}
@@ -0,0 +1,330 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end benchmark
+ * <p>Runs a whole network (master, switches and nodes, as Main does) in this JVM on a fixed, seeded workload, under
+ * one of several traffic profiles, and measures it from the nodes' point of view:
+ * <ul>
+ *     <li>star-heavy: Zipf destinations, so a few hub nodes receive most of the traffic</li>
+ *     <li>all-local: every message stays in its sender's network</li>
+ *     <li>all-cross: every message goes to another network, through the master</li>
+ *     <li>firewall-heavy: uniform destinations, with every other network firewalled, and every other node in the
+ *     rest</li>
+ * </ul>
+ * <p>Reports delivered frames per second, goodput (payload bytes delivered per second), first transmissions,
+ * retransmissions and nacks, one-way and round-trip latency percentiles, and process CPU time per delivered frame.
+ * Latencies are measured from a frame's first transmission (the time is stamped into its payload): one-way to its
+ * arrival at the destination node, round-trip to the sender receiving its ack. Rates are over the time from the
+ * nodes starting to the last switch's fin at the master.
+ * <p>Results are written as profile.metric=value lines, so runs can be diffed. Given a baseline file from an
+ * earlier run, every metric is compared with it, and the run fails (exit status 1) if any rate, latency, CPU or
+ * retransmission figure got worse by more than the tolerance.
+ */
+public class LoadTest {
+    private final static String[] PROFILES = {"star-heavy", "all-local", "all-cross", "firewall-heavy"};
+    //metrics where bigger is better, and where smaller is; the rest are only reported
+    private final static String[] HIGHER = {"frames_per_sec", "goodput_bytes_per_sec"};
+    private final static String[] LOWER = {"retransmissions", "one_way_p50_us", "one_way_p99_us", "one_way_p999_us",
+            "round_trip_p50_us", "round_trip_p99_us", "round_trip_p999_us", "cpu_us_per_frame"};
+    //payloads start with the send time, as 16 hex digits
+    private final static int STAMP = 16;
+
+    /**
+     * Collects what the nodes report. Shared by every node of a run.
+     */
+    private static class Recorder implements NodeListener {
+        private final AtomicLong sent, retransmitted, nacked, delivered, bytes;
+        private long[] oneWay, roundTrip;
+        private int oneWays, roundTrips;
+
+        private Recorder(){
+            this.sent = new AtomicLong();
+            this.retransmitted = new AtomicLong();
+            this.nacked = new AtomicLong();
+            this.delivered = new AtomicLong();
+            this.bytes = new AtomicLong();
+            this.oneWay = new long[1024];
+            this.roundTrip = new long[1024];
+        }
+
+        @Override
+        public void sent(Frame f, long now){
+            if(f.getSize() > 0) sent.incrementAndGet();
+        }
+
+        @Override
+        public void retransmitted(Frame f, long now){
+            retransmitted.incrementAndGet();
+        }
+
+        @Override
+        public void acked(Frame f, long now){
+            if(f.getSize() == 0) return;
+            long t = now - stamp(f);
+            synchronized (this){
+                if(roundTrips == roundTrip.length) roundTrip = Arrays.copyOf(roundTrip, roundTrips * 2);
+                roundTrip[roundTrips++] = t;
+            }
+        }
+
+        @Override
+        public void nacked(Frame f, long now){
+            nacked.incrementAndGet();
+        }
+
+        @Override
+        public void delivered(Frame f, long now){
+            delivered.incrementAndGet();
+            bytes.addAndGet(f.getSize());
+            long t = now - stamp(f);
+            synchronized (this){
+                if(oneWays == oneWay.length) oneWay = Arrays.copyOf(oneWay, oneWays * 2);
+                oneWay[oneWays++] = t;
+            }
+        }
+
+        private static long stamp(Frame f){
+            return Long.parseUnsignedLong(f.getData().substring(0, STAMP), 16);
+        }
+    }
+
+    /**
+     * Stamps the time a frame is handed to its node (which sends it right away) into the start of its payload
+     */
+    private static class Stamped implements FrameSource {
+        private final FrameSource source;
+
+        private Stamped(FrameSource source){
+            this.source = source;
+        }
+
+        @Override
+        public Frame peek() throws IOException{return source.peek();}
+
+        @Override
+        public Frame next() throws IOException{
+            Frame f = source.next();
+            if(f == null || f.getSize() == 0) return f;
+            String data = String.format("%016x", System.nanoTime()) + f.getData().substring(STAMP);
+            return new Frame(f.getSource()[0], f.getSource()[1], f.getDest()[0], f.getDest()[1], f.getSN(), data);
+        }
+
+        @Override
+        public long lastOffset(){return source.lastOffset();}
+
+        @Override
+        public long position(){return source.position();}
+
+        @Override
+        public int nextSN(){return source.nextSN();}
+
+        @Override
+        public void seek(long offset, int SN) throws IOException{source.seek(offset, SN);}
+
+        @Override
+        public boolean isEmpty() throws IOException{return source.isEmpty();}
+
+        @Override
+        public void close() throws IOException{source.close();}
+    }
+
+    /**
+     * Run one profile
+     * @return metrics, in report order
+     */
+    private static Map<String, Double> run(String profile, int maxNode, int maxSwitch, long seed, int messages,
+                                           int payload, boolean memoryTransport, int port, int masterPort)
+            throws IOException, InterruptedException{
+        ArrayList<int[]> list = Main.makeList(maxSwitch, maxNode, new Random(seed));
+        Workload workload = new Workload(list, seed);
+        workload.setMessages(messages, messages);
+        workload.setPayload(Workload.FIXED, Math.max(STAMP, payload), Math.max(STAMP, payload));
+        //firewall for this profile only; the one in firewall.txt is left alone
+        File firewall = File.createTempFile("loadtest", ".firewall");
+        firewall.deleteOnExit();
+        try(FileWriter writer = new FileWriter(firewall)){
+            if(profile.equals("star-heavy")) workload.setDestinations(Workload.ZIPF, 1.5, 0);
+            else if(profile.equals("all-local")) workload.setDestinations(Workload.LOCAL, 1, 1);
+            else if(profile.equals("all-cross")) workload.setDestinations(Workload.LOCAL, 1, 0);
+            else{
+                workload.setDestinations(Workload.UNIFORM, 1, 0);
+                for(int net = 1; net <= maxSwitch; net++){
+                    if(net % 2 == 0) writer.write(net + "_#: Local\n");
+                    else for(int node = 2; node <= maxNode; node += 2) writer.write(net + "_" + node + ": Local\n");
+                }
+            }
+        }
+        Main.clearStale();
+        Recorder recorder = new Recorder();
+        Transport transport = memoryTransport ? new MemoryTransport() : new SocketTransport();
+        CentralSwitch master = new CentralSwitch(masterPort, maxSwitch, firewall, false);
+        master.setSpoolPolicy(true, 64L << 20, 60000);
+        master.setTransport(transport);
+        Switch[] switches = new Switch[maxSwitch];
+        for(int i = 0; i < maxSwitch; i++){
+            int count = 0;
+            for(int[] n: list){
+                if(n[0] == i+1) count++;
+            }
+            switches[i] = new Switch(port+i, i+1, masterPort, count, false);
+            switches[i].setSpoolPolicy(true, 64L << 20, 60000);
+            switches[i].setTransport(transport);
+        }
+        Node[] nodes = new Node[list.size()];
+        for(int i = 0; i < list.size(); i++){
+            nodes[i] = new Node(port+list.get(i)[0]-1, list.get(i)[1], list.get(i)[0], false);
+            nodes[i].setSessionResume(true);
+            nodes[i].setTransport(transport);
+            nodes[i].setInput(new Stamped(workload.source(i)));
+            nodes[i].setListener(recorder);
+        }
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpu = os.getProcessCpuTime();
+        master.start();
+        master.awaitReady();
+        for(Switch s: switches) s.start();
+        for(Switch s: switches) s.awaitReady();
+        long start = System.nanoTime();
+        for(Node n: nodes) n.start();
+        master.join();
+        for(Switch s: switches) s.join();
+        for(Node n: nodes) n.join();
+        cpu = os.getProcessCpuTime() - cpu;
+        double seconds = (master.getFinishedAt() - start) / 1e9;
+        if(!firewall.delete()) firewall.deleteOnExit();
+
+        long frames = recorder.delivered.get();
+        Map<String, Double> m = new LinkedHashMap<>();
+        m.put("nodes", (double) list.size());
+        m.put("switches", (double) maxSwitch);
+        m.put("frames", (double) frames);
+        m.put("seconds", seconds);
+        m.put("frames_per_sec", frames / seconds);
+        m.put("goodput_bytes_per_sec", recorder.bytes.get() / seconds);
+        m.put("sent", (double) recorder.sent.get());
+        m.put("retransmissions", (double) recorder.retransmitted.get());
+        m.put("nacked", (double) recorder.nacked.get());
+        percentiles(m, "one_way", recorder.oneWay, recorder.oneWays);
+        percentiles(m, "round_trip", recorder.roundTrip, recorder.roundTrips);
+        m.put("cpu_us_per_frame", frames == 0 ? 0 : cpu / 1000.0 / frames);
+        return m;
+    }
+
+    //add p50, p99 and p999 of some latencies (ns), in microseconds
+    private static void percentiles(Map<String, Double> m, String name, long[] samples, int count){
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        double[] ps = {0.50, 0.99, 0.999};
+        String[] names = {"p50", "p99", "p999"};
+        for(int i = 0; i < ps.length; i++){
+            int index = (int) Math.ceil(ps[i] * count) - 1;
+            m.put(name + "_" + names[i] + "_us", count == 0 ? 0 : sorted[Math.max(0, index)] / 1000.0);
+        }
+    }
+
+    //read a results file back
+    private static Map<String, Double> load(File file) throws IOException{
+        Map<String, Double> m = new LinkedHashMap<>();
+        try(Scanner scanner = new Scanner(file)){
+            while(scanner.hasNextLine()){
+                String line = scanner.nextLine().trim();
+                if(line.isEmpty() || line.startsWith("#")) continue;
+                int eq = line.indexOf('=');
+                if(eq > 0) m.put(line.substring(0, eq), Double.parseDouble(line.substring(eq + 1)));
+            }
+        }
+        return m;
+    }
+
+    //compare with a baseline; returns the number of regressions
+    private static int compare(Map<String, Double> results, Map<String, Double> baseline, double tolerance){
+        int regressions = 0;
+        System.out.println(String.format("%-44s %14s %14s %9s", "metric", "baseline", "now", "change"));
+        for(Map.Entry<String, Double> e: results.entrySet()){
+            Double before = baseline.get(e.getKey());
+            if(before == null) continue;
+            double now = e.getValue();
+            double change = before == 0 ? (now == 0 ? 0 : 1) : (now - before) / before;
+            String metric = e.getKey().substring(e.getKey().indexOf('.') + 1);
+            boolean worse = (Arrays.asList(HIGHER).contains(metric) && change < -tolerance)
+                    || (Arrays.asList(LOWER).contains(metric) && change > tolerance);
+            if(worse) regressions++;
+            System.out.println(String.format("%-44s %14.2f %14.2f %8.1f%%%s", e.getKey(), before, now, change * 100,
+                    worse ? "  REGRESSION" : ""));
+        }
+        return regressions;
+    }
+
+    public static void main(String[] args){
+        if(args.length < 3 || args.length > 5){
+            System.out.println("Use: java LoadTest [profile] [number of nodes] [number of switches] [results file] [baseline file]");
+            System.out.println("Profiles: " + String.join(", ", PROFILES) + ", or all");
+            System.out.println("Results go to loadtest.txt unless a file is given. With a baseline file, the run is" +
+                    " compared with it and fails on a regression.");
+            return;
+        }
+        //Variable controls
+        int port = 1234;
+        int masterPort = 4321;
+        long seed = 1;
+        int messages = 50;
+        int payload = 32;
+        boolean memoryTransport = false;
+        //how much worse than the baseline a metric may get before it counts as a regression
+        double tolerance = 0.10;
+
+        String[] profiles = args[0].equals("all") ? PROFILES : new String[]{args[0]};
+        if(!args[0].equals("all") && !Arrays.asList(PROFILES).contains(args[0])){
+            System.out.println("Unknown profile " + args[0] + "; use one of " + String.join(", ", PROFILES) + ", or all");
+            return;
+        }
+        int maxNode = Integer.parseInt(args[1]);
+        int maxSwitch = Integer.parseInt(args[2]);
+        if(maxNode <= 1 || maxSwitch < 1 || maxNode < maxSwitch){
+            System.out.println("Please use more than 1 node, at least 1 switch, and no more switches than nodes");
+            return;
+        }
+        File output = new File(args.length > 3 ? args[3] : "loadtest.txt");
+        Map<String, Double> results = new LinkedHashMap<>();
+        try{
+            for(String profile: profiles){
+                System.out.println("Running " + profile + ": " + maxNode + " nodes, " + maxSwitch + " switches, "
+                        + messages + " messages of " + payload + " bytes per node, seed " + seed);
+                Map<String, Double> m = run(profile, maxNode, maxSwitch, seed, messages, payload, memoryTransport,
+                        port, masterPort);
+                for(Map.Entry<String, Double> e: m.entrySet()){
+                    System.out.println(String.format("    %-24s %14.2f", e.getKey(), e.getValue()));
+                    results.put(profile + "." + e.getKey(), e.getValue());
+                }
+            }
+            try(FileWriter writer = new FileWriter(output)){
+                writer.write("#LoadTest seed=" + seed + " messages=" + messages + " payload=" + payload
+                        + " transport=" + (memoryTransport ? "memory" : "socket") + "\n");
+                for(Map.Entry<String, Double> e: results.entrySet()) writer.write(e.getKey() + "=" + e.getValue() + "\n");
+            }
+            System.out.println("Results written to " + output);
+            if(args.length > 4){
+                int regressions = compare(results, load(new File(args[4])), tolerance);
+                System.out.println(regressions == 0 ? "No regressions against " + args[4]
+                        : regressions + " regression(s) against " + args[4]);
+                if(regressions > 0) System.exit(1);
+            }
+        } catch (IOException e){
+            System.out.println("LoadTest: could not write or read results");
+            e.printStackTrace();
+        } catch (InterruptedException e){
+            System.out.println("LoadTest: interrupted while waiting for the network");
+        }
+    }
+}
@@ -1,5 +1,4 @@
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Random;
@@ -7,72 +6,25 @@ import java.util.Random;
 public class Main {
 
     /**
-     * "Script" to generate files (called automatically by main)
-     * @param index index into list
-     * @param list List of nodes
+     * Helper function generates list of nodes
+     * @param maxSwitch Number of switches
+     * @param maxNode Number of nodes
+     * @return ArrayList of form {netID, nodeID}
      */
-    public static void makeFile(int index, ArrayList<int[]> list){
-        File f;
-        FileWriter writer;
-        try{
-            //references
-            int net = list.get(index)[0];
-            int node = list.get(index)[1];
-            //create and open file
-            f = new File("node"+net+"_"+node+".txt");
-            f.createNewFile();
-            writer = new FileWriter(f.getName());
-            Random generator = new Random();
-            //generate data; this will be from [1,size-1] -- every node will send at least 1 packet, and will not send
-            //more packets than there are other nodes.
-            int[] outs = new int[generator.nextInt(list.size()-1)+1];
-            boolean flag;
-            //iterate for each output
-            for(int i = 0; i < outs.length; i++){
-                //do this until valid
-                flag = true;
-                while(flag){
-                    //output node range is [1,size] -- this is fine since the number will re-roll if sending to itself.
-                    //outs is an array of indexes into list
-                    outs[i] = generator.nextInt(list.size());
-                    //ensure node won't send data to itself
-                    if(index == outs[i]) continue;
-                    //for simplicity, ensure node will only send 1 package to any given other node
-                    for(int j = 0; j < i; j++){
-                        if(outs[j] == outs[i]){
-                            flag = false;
-                            break;
-                        }
-                    }
-                    //reverse flag. if it was set as false in the for loop, it's now true again and loop goes again
-                    //if it was not set, flag is changed to false and the loop ends.
-                    flag = !flag;
-                }
-            }
-            //now write data
-            for (int out : outs) {
-                //write data; data will be of the same format, with a random long for variance.
-                int tNet = list.get(out)[0];
-                int tNode = list.get(out)[1];
-                writer.write(tNet + "_" + tNode + ": To node " + tNet + "_" + tNode + "; " + generator.nextLong() + "\n");
-                writer.flush();
-            }
-        } catch (IOException e){
-            System.out.println("Could not create / write to file of node number: " + index);
-            e.printStackTrace();
-        }
+    public static ArrayList<int[]> makeList(int maxSwitch, int maxNode){
+        return makeList(maxSwitch, maxNode, new Random());
     }
 
     /**
      * Helper function generates list of nodes
      * @param maxSwitch Number of switches
      * @param maxNode Number of nodes
+     * @param generator random generator (seeded for reproducible networks)
      * @return ArrayList of form {netID, nodeID}
      */
-    public static ArrayList<int[]> makeList(int maxSwitch, int maxNode){
+    public static ArrayList<int[]> makeList(int maxSwitch, int maxNode, Random generator){
         ArrayList<int[]> ret = new ArrayList<>();
         int[] switches = new int[maxSwitch];
-        Random generator = new Random();
         int net;
         //this loop gives 1 node to every switch -- ensures each switch communicates with *something* at least
         int x;
@@ -99,7 +51,44 @@ public class Main {
     }
 
 
+    /**
+     * Helper function clears spools and node state left over from an earlier run
+     * <p>Every run is a new network, so nothing in them is meant for it.
+     */
+    public static void clearStale(){
+        File[] stale = new File(".").listFiles((dir, name) -> name.endsWith(".spool"));
+        if(stale != null){
+            for(File f: stale) Spool.clear(f);
+        }
+        stale = new File(".").listFiles((dir, name) -> name.startsWith("node") && name.endsWith(".state"));
+        if(stale != null){
+            for(File f: stale){
+                if(!f.delete()) System.out.println("Could not delete stale node state " + f);
+            }
+        }
+    }
+
+    /**
+     * Helper function prints the per-hop latencies of traced frames, over all nodes
+     * @param nodes nodes of the network, after they have finished
+     */
+    public static void printTrace(Node[] nodes){
+        System.out.println("Hop latency of traced frames (microseconds):");
+        System.out.println(String.format("  %-18s %8s %10s %10s %10s", "hop", "count", "p50", "p99", "max"));
+        ArrayList<String> hops = new ArrayList<>();
+        for(String hop: Node.GLOBAL_HOPS) hops.add(hop);
+        hops.add("Total");
+        for(String hop: hops){
+            Histogram h = new Histogram();
+            for(Node n: nodes) h.add(n.getTrace(hop));
+            if(h.count() == 0) continue;
+            System.out.println(String.format("  %-18s %8d %10.1f %10.1f %10.1f", hop, h.count(),
+                    h.percentile(0.50) / 1000.0, h.percentile(0.99) / 1000.0, h.max() / 1000.0));
+        }
+    }
+
     public static void main(String[] args){
+        long start = System.nanoTime();
         if(args.length != 2){
             System.out.println("Use: java Main [number of nodes] [number of switches]");
             System.out.println("Nodes are randomly assigned to switches, with a guarantee of at least 1 per network," +
@@ -113,6 +102,77 @@ public class Main {
         boolean nodeDebugInfo = false;
         boolean serverDebugInfo = false;
         boolean masterDebugInfo = false;
+        //node output flush policy: flush every N records, every T ms (0 disables either), and optionally fsync
+        int flushRecords = 64;
+        long flushMillis = 100;
+        boolean fsync = false;
+        //store-and-forward spool for unreachable destinations: on/off, size cap (bytes), age cap (ms)
+        boolean spool = true;
+        long spoolBytes = 64L << 20;
+        long spoolAge = 60000;
+        //node session resumption after connection loss (checkpoints to nodeX_Y.state)
+        boolean resume = true;
+        //transport between all parts of the network: loopback sockets, or in-JVM ring buffers (see MemoryTransport)
+        boolean memoryTransport = false;
+        //workload: seed (random unless set, printed so a run can be repeated), messages per node, payload size
+        //distribution (Workload.FIXED/UNIFORM/EXPONENTIAL) and destination distribution (Workload.UNIFORM/ZIPF/LOCAL,
+        //with the Zipf skew and the LOCAL in-network fraction)
+        long seed = new Random().nextLong();
+        int minMessages = 1;
+        int maxMessages = -1; //-1: one less than the number of nodes
+        int payload = Workload.UNIFORM;
+        int minPayload = 16;
+        int maxPayload = 48;
+        int destinations = Workload.UNIFORM;
+        double zipfExponent = 1.0;
+        double localRatio = 0.8;
+        //multicast: every node joins one of this many groups (0 for none), and this fraction of messages go to a
+        //group instead of a node
+        int groups = 0;
+        double groupRatio = 0.25;
+        //write nodeX_Y.txt input files (with this many writer threads), or feed the nodes straight from the workload
+        boolean writeFiles = true;
+        int writerThreads = 4;
+        //binary event log of the hot paths (null for none; decode with java EventLog events.log), and the level of each
+        //component (EventLog.OFF/INFO/DEBUG/TRACE; they can also be changed while running, through the
+        //network:type=EventLog MBean). The debug flags above still print startup and shutdown progress.
+        String eventLog = "events.log";
+        int nodeLogLevel = EventLog.OFF;
+        int switchLogLevel = EventLog.OFF; //switches and their NodeThreads
+        int masterLogLevel = EventLog.OFF; //the central switch and its SwitchThreads
+        //packet capture of every frame through each switch's ports, into switchN.cap and master.cap (ring files of
+        //this many frames; replay one with java Replay)
+        boolean capture = false;
+        int captureSlots = 1 << 16;
+        //sampled flow statistics at the master: one frame in flowRate (0 for none), top flowTopK flows by network pair
+        //and by node pair, written to flows.txt every flowInterval ms
+        int flowRate = 16;
+        int flowTopK = 16;
+        long flowInterval = 1000;
+        //credit-based flow control on the switch-master trunks: node frames each end may buffer from the other
+        //(0 for none)
+        int trunkCredits = 64;
+        //overload shedding in the switches' queues (Aqm.NONE/TAIL/RED/CODEL), the queue depth at which node data is
+        //shed, and the acceptable time in a queue and how long it may be exceeded (ms; RED and CODEL)
+        int queuePolicy = Aqm.TAIL;
+        int queueCapacity = 4096;
+        long queueTarget = 5;
+        long queueInterval = 100;
+        //switch buffers serve acks and control frames before node data: this many of them per data frame while both
+        //are waiting (0 for strict priority)
+        int priorityWeight = 0;
+        //ingress policing of node data, per node port and per switch port at the master: sustained rate (frames/s,
+        //0 for none), burst (frames), and what happens to excess frames (Policer.DELAY/DROP/NACK)
+        double nodeRate = 0;
+        int nodeBurst = 32;
+        int nodePolicing = Policer.NACK;
+        double switchRate = 0;
+        int switchBurst = 256;
+        int switchPolicing = Policer.DELAY;
+        //switches check the CRC of node data at ingress and answer corrupt frames with a code 2 right away
+        boolean crcCheck = true;
+        //hop tracing: trace one in this many data frames (0 for none), and print per-hop latencies at the end
+        int traceEvery = 0;
         //get number of nodes
         int maxNode = Integer.parseInt(args[0]);
         if(maxNode <= 1){
@@ -124,18 +184,87 @@ public class Main {
             System.out.println("Please use at least 1 switch");
             return;
         }
+        //network IDs above that are multicast group addresses (see Frame.GROUP)
+        if(maxSwitch >= Frame.GROUP){
+            System.out.println("Please use fewer than " + Frame.GROUP + " switches");
+            return;
+        }
         //make list
-        ArrayList<int[]> list = makeList(maxSwitch, maxNode);
-        //make files
-        for(int i = 0; i < list.size(); i++){
-            makeFile(i, list);
+        System.out.println("Seed: " + seed);
+        ArrayList<int[]> list = makeList(maxSwitch, maxNode, new Random(seed));
+        //make workload, and files if wanted
+        Workload workload = new Workload(list, seed);
+        workload.setMessages(minMessages, maxMessages < 0 ? maxNode - 1 : maxMessages);
+        workload.setPayload(payload, minPayload, maxPayload);
+        workload.setDestinations(destinations, zipfExponent, localRatio);
+        workload.setGroups(groups, groupRatio);
+        if(writeFiles){
+            try{
+                workload.writeFiles(writerThreads);
+            } catch (IOException e){
+                System.out.println("Could not write the node input files");
+                e.printStackTrace();
+                return;
+            }
+        }
+        clearStale();
+        if(eventLog != null){
+            EventLog.setLevel(EventLog.NODE, nodeLogLevel);
+            EventLog.setLevel(EventLog.SWITCH, switchLogLevel);
+            EventLog.setLevel(EventLog.NODE_THREAD, switchLogLevel);
+            EventLog.setLevel(EventLog.CENTRAL, masterLogLevel);
+            EventLog.setLevel(EventLog.SWITCH_THREAD, masterLogLevel);
+            try{
+                EventLog.open(new File(eventLog));
+            } catch (IOException e){
+                System.out.println("Could not open the event log; running without it");
+                e.printStackTrace();
+            }
         }
+        Transport transport = memoryTransport ? new MemoryTransport() : new SocketTransport();
         //make master
-        CentralSwitch master = new CentralSwitch(masterPort, masterDebugInfo);
+        CentralSwitch master = new CentralSwitch(masterPort, maxSwitch, masterDebugInfo);
+        master.setSpoolPolicy(spool, spoolBytes, spoolAge);
+        master.setTransport(transport);
+        master.setTrunkCredits(trunkCredits);
+        master.setPriorityWeight(priorityWeight);
+        master.setPolicer(switchRate, switchBurst, switchPolicing);
+        master.setQueuePolicy(queuePolicy, queueCapacity, queueTarget * 1_000_000L, queueInterval * 1_000_000L);
+        if(flowRate > 0) master.setFlowSampling(flowRate, flowTopK, new File("flows.txt"), flowInterval);
+        ArrayList<Capture> captures = new ArrayList<>();
+        try{
+            if(capture){
+                captures.add(new Capture(new File("master.cap"), captureSlots));
+                master.setCapture(captures.get(0));
+            }
+        } catch (IOException e){
+            System.out.println("Could not create master.cap; running without capture");
+        }
         //make switches
         Switch[] switches = new Switch[maxSwitch];
         for(int i = 0; i < maxSwitch; i++){
-            switches[i] = new Switch(port+i, i+1, masterPort, serverDebugInfo);
+            //count this network's nodes, so the switch knows when all of them are done
+            int count = 0;
+            for(int[] n: list){
+                if(n[0] == i+1) count++;
+            }
+            switches[i] = new Switch(port+i, i+1, masterPort, count, serverDebugInfo);
+            switches[i].setSpoolPolicy(spool, spoolBytes, spoolAge);
+            switches[i].setTransport(transport);
+            switches[i].setTrunkCredits(trunkCredits);
+            switches[i].setPriorityWeight(priorityWeight);
+            switches[i].setPolicer(nodeRate, nodeBurst, nodePolicing);
+            switches[i].setCrcCheck(crcCheck);
+            switches[i].setQueuePolicy(queuePolicy, queueCapacity, queueTarget * 1_000_000L, queueInterval * 1_000_000L);
+            if(capture){
+                try{
+                    Capture c = new Capture(new File("switch" + (i+1) + ".cap"), captureSlots);
+                    switches[i].setCapture(c);
+                    captures.add(c);
+                } catch (IOException e){
+                    System.out.println("Could not create switch" + (i+1) + ".cap; running without capture there");
+                }
+            }
         }
         //make nodes
         Node[] nodes = new Node[maxNode];
@@ -143,44 +272,59 @@ public class Main {
             int nnet = list.get(i)[0];
             int nid = list.get(i)[1];
             nodes[i] = new Node(port+nnet-1, nid, nnet, nodeDebugInfo);
+            nodes[i].setOutputPolicy(flushRecords, flushMillis, fsync);
+            nodes[i].setSessionResume(resume);
+            nodes[i].setTransport(transport);
+            if(!writeFiles) nodes[i].setInput(workload.source(i));
+            nodes[i].setTraceSampling(traceEvery);
+            if(groups > 0) nodes[i].joinGroup(workload.group(i));
         }
-        //start threads
-        master.start();
-        for(Thread s: switches){
-            s.start();
+        //start threads, one tier at a time: each tier is started once the one it connects to is listening
+        try{
+            master.start();
+            master.awaitReady();
+            for(Thread s: switches){
+                s.start();
+            }
+            for(Switch s: switches){
+                s.awaitReady();
+            }
+        } catch (InterruptedException e){
+            System.out.println("There was an unknown error in main while starting the network");
         }
         for(Thread n : nodes){
             n.start();
         }
-        //wait for them all to finish
-        boolean done = false;
-        while(!done){
-            done = true;
-            //check server status
-            for(Switch s: switches){
-                if(s.isAlive()){
-                    done = false;
-                    break;
-                }
+        //wait for them all to finish; every switch joins its own threads before exiting, so once these are joined
+        //nothing is left running
+        try{
+            master.join();
+            for(Thread s: switches){
+                s.join();
             }
-            //check node statuses
-            for(Node n: nodes){
-                if(n.isAlive()){
-                    done = false;
-                    break;
+            for(Thread n: nodes){
+                n.join();
+            }
+            EventLog.close();
+            for(Capture c: captures){
+                try{
+                    c.close();
+                    System.out.println("Captured " + Math.min(c.count(), captureSlots) + " frames to " + c.getFile());
+                } catch (IOException e){
+                    System.out.println("Could not write out " + c.getFile());
                 }
             }
-        }
-        //inform of completion
-        try {
-            //sleep just to make sure main prints stuff after everything else, to make it nicer to read
-            //all the objects handle cleanup themselves, but because of that they might still be running after
-            Thread.sleep(150);
+            //inform of completion
             System.out.println("-------------------------------------------------");
             System.out.println("All threads have finished.");
+            if(Switch.getFirstForward() != 0) System.out.println("Cold start: " + (Switch.getFirstForward() - start) / 1_000_000
+                    + " ms from start to the first forwarded frame");
+            System.out.println("Teardown: " + (System.nanoTime() - master.getFinishedAt()) / 1_000_000
+                    + " ms from the last fin to all threads joined");
+            if(traceEvery > 0) printTrace(nodes);
             System.out.println("-------------------------------------------------");
         } catch (InterruptedException e){
-            System.out.println("There was an unknown error in main but all the threads still finished");
+            System.out.println("There was an unknown error in main while waiting for the threads to finish");
         }
     }
 }
\ No newline at end of file
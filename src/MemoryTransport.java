@@ -0,0 +1,167 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-JVM transport
+ * <p>A connection is a pair of ByteRings, one per direction, so frames go from one thread to another without
+ * system calls or copies through the kernel. Ports are just keys in this transport's own table; they have nothing
+ * to do with the machine's ports. Connecting to a port nobody listens on is refused, as with sockets.
+ */
+public class MemoryTransport implements Transport {
+    //size of each direction of a connection, in bytes
+    private final static int RING_SIZE = 1 << 16;
+    //first port handed out for listen(0)
+    private final static int EPHEMERAL = 49152;
+    private final ConcurrentHashMap<Integer, MemoryListener> ports;
+    private final AtomicInteger nextPort;
+
+    public MemoryTransport(){
+        this.ports = new ConcurrentHashMap<>();
+        this.nextPort = new AtomicInteger(EPHEMERAL);
+    }
+
+    @Override
+    public Listener listen(int port) throws IOException{
+        if(port == 0){
+            while(true){
+                int p = nextPort.getAndIncrement();
+                MemoryListener listener = new MemoryListener(p);
+                if(ports.putIfAbsent(p, listener) == null) return listener;
+            }
+        }
+        MemoryListener listener = new MemoryListener(port);
+        if(ports.putIfAbsent(port, listener) != null) throw new BindException("Address already in use: " + port);
+        return listener;
+    }
+
+    @Override
+    public Connection connect(int port) throws IOException{
+        MemoryListener listener = ports.get(port);
+        if(listener == null) throw new ConnectException("Connection refused: " + port);
+        ByteRing up = new ByteRing(RING_SIZE), down = new ByteRing(RING_SIZE);
+        //like a socket's backlog: the connection is made now, and handed over whenever the listener accepts
+        listener.pending.add(new MemoryConnection(up, down));
+        return new MemoryConnection(down, up);
+    }
+
+    private class MemoryListener implements Listener {
+        private final int port;
+        private final LinkedBlockingQueue<MemoryConnection> pending;
+        private volatile boolean closed;
+
+        private MemoryListener(int port){
+            this.port = port;
+            this.pending = new LinkedBlockingQueue<>();
+            this.closed = false;
+        }
+
+        @Override
+        public Connection accept() throws IOException{
+            try{
+                MemoryConnection c = pending.take();
+                if(c == CLOSED) throw new SocketException("Socket closed");
+                return c;
+            } catch (InterruptedException e){
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public int getPort(){
+            return port;
+        }
+
+        @Override
+        public void close(){
+            if(closed) return;
+            closed = true;
+            ports.remove(port, this);
+            //wake the accepting thread
+            pending.add(CLOSED);
+        }
+    }
+
+    //marks a closed listener's queue
+    private final static MemoryConnection CLOSED = new MemoryConnection(new ByteRing(1), new ByteRing(1));
+
+    private static class MemoryConnection implements Connection {
+        private final ByteRing in, out;
+        private final InputStream input;
+        private final OutputStream output;
+        private volatile boolean closed;
+
+        private MemoryConnection(ByteRing in, ByteRing out){
+            this.in = in;
+            this.out = out;
+            this.closed = false;
+            this.input = new InputStream() {
+                @Override
+                public int read() throws IOException{
+                    byte[] b = new byte[1];
+                    return in.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException{
+                    return in.read(b, off, len);
+                }
+                @Override
+                public int available(){
+                    return in.available();
+                }
+                @Override
+                public void close(){
+                    in.closeReader();
+                }
+            };
+            this.output = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException{
+                    out.write(new byte[]{(byte) b}, 0, 1);
+                }
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException{
+                    out.write(b, off, len);
+                }
+                @Override
+                public void close(){
+                    out.closeWriter();
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream(){
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream(){
+            return output;
+        }
+
+        @Override
+        public boolean isClosed(){
+            return closed;
+        }
+
+        @Override
+        public boolean peerClosed(DataInputStream stream) throws IOException{
+            return closed || (stream.available() == 0 && in.isDrained());
+        }
+
+        @Override
+        public void close(){
+            closed = true;
+            out.closeWriter();
+            in.closeReader();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of one part of the network (a switch, a port, a node), published as a JMX MBean
+ * <p>Counters are LongAdders and latencies are Histograms, handed out once when the part is built and kept in its
+ * fields, so recording is a striped increment: no lock, no lookup and no allocation. Gauges (queue depth, window
+ * size) are only read when someone asks, through JMX.
+ * <p>Every MBean is in the "network" domain, e.g. network:type=Switch,net=1 or network:type=NodeThread,net=1,port=3.
+ * Each counter, gauge and histogram is an attribute; histograms show up as Count, MeanNanos, P50Nanos, P99Nanos,
+ * P999Nanos and MaxNanos attributes. The reset operation zeroes counters and histograms.
+ * <p>A part stays registered after it finishes, so its final numbers can still be read; registering a part under
+ * a name that is taken (e.g. a second run in the same JVM) replaces the old one.
+ */
+public class Metrics implements DynamicMBean {
+    private final static String DOMAIN = "network";
+    private final String name;
+    private final Map<String, LongAdder> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, Histogram> histograms;
+
+    /**
+     * Metrics constructor
+     * @param properties MBean key properties, e.g. "type=Switch,net=1"
+     */
+    public Metrics(String properties){
+        this.name = DOMAIN + ":" + properties;
+        this.counters = new LinkedHashMap<>();
+        this.gauges = new LinkedHashMap<>();
+        this.histograms = new LinkedHashMap<>();
+    }
+
+    /**
+     * Add a counter
+     * @param name attribute name, e.g. FramesIn
+     * @return the counter, to keep and increment
+     */
+    public synchronized LongAdder counter(String name){
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Add a gauge, read whenever its attribute is
+     * @param name attribute name, e.g. QueueDepth
+     * @param gauge current value
+     */
+    public synchronized void gauge(String name, LongSupplier gauge){
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Add a histogram
+     * @param name attribute name prefix, e.g. ForwardingLatency
+     * @return the histogram, to keep and record into
+     */
+    public synchronized Histogram histogram(String name){
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Publish this part's MBean, replacing any MBean already under its name
+     */
+    public void register(){
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try{
+            ObjectName objectName = new ObjectName(name);
+            synchronized (Metrics.class){
+                if(server.isRegistered(objectName)) server.unregisterMBean(objectName);
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException e){
+            System.out.println("Metrics: could not register " + name + ": " + e);
+        }
+    }
+
+    @Override
+    public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException{
+        LongAdder c = counters.get(attribute);
+        if(c != null) return c.sum();
+        LongSupplier g = gauges.get(attribute);
+        if(g != null) return g.getAsLong();
+        for(Map.Entry<String, Histogram> e: histograms.entrySet()){
+            if(!attribute.startsWith(e.getKey())) continue;
+            Histogram h = e.getValue();
+            switch(attribute.substring(e.getKey().length())){
+                case "Count": return h.count();
+                case "MeanNanos": return h.mean();
+                case "P50Nanos": return h.percentile(0.50);
+                case "P99Nanos": return h.percentile(0.99);
+                case "P999Nanos": return h.percentile(0.999);
+                case "MaxNanos": return h.max();
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes){
+        AttributeList list = new AttributeList();
+        for(String a: attributes){
+            try{
+                list.add(new Attribute(a, getAttribute(a)));
+            } catch (AttributeNotFoundException e){
+                //leave it out, as the interface asks
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes){
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException{
+        if(!actionName.equals("reset")) throw new ReflectionException(new NoSuchMethodException(actionName));
+        synchronized (this){
+            for(LongAdder c: counters.values()) c.reset();
+            for(Histogram h: histograms.values()) h.reset();
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized MBeanInfo getMBeanInfo(){
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for(String c: counters.keySet()) attributes.add(new MBeanAttributeInfo(c, "long", "counter", true, false, false));
+        for(String g: gauges.keySet()) attributes.add(new MBeanAttributeInfo(g, "long", "gauge", true, false, false));
+        for(String h: histograms.keySet()){
+            for(String s: new String[]{"Count", "MeanNanos", "P50Nanos", "P99Nanos", "P999Nanos", "MaxNanos"}){
+                attributes.add(new MBeanAttributeInfo(h + s, "long", "histogram", true, false, false));
+            }
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "zero counters and histograms",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "metrics of " + name,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{reset}, null);
+    }
+}
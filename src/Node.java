@@ -1,21 +1,63 @@
 import java.io.*;
-import java.net.ConnectException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.Random;
-import java.util.Scanner;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class Node extends Thread {
     private final static long PERIOD = 6000;
     private final static int RETRY = 3;
-    private final int ID, netID;
+    //how long to keep trying to reach the switch, in milliseconds
+    private final static long CONNECT_TIMEOUT = 10000;
+    //how often the session state is written to the state file, in milliseconds
+    private final static long CHECKPOINT_INTERVAL = 1000;
+    //first word of a valid state file
+    private final static int STATE_MAGIC = 0x4E4F4445;
+    private final int ID, netID, switchPort;
     private int port;
     private boolean finished, terminated;
     private final boolean debugInfo;
-    private final LinkedList<Frame> outgoing;
-    private Socket server, init;
-    private final ArrayList<Integer[]> saved;
+    private FrameSource outgoing;
+    private Connection server, init;
+    private Transport transport;
+    private NodeListener listener;
+    //hop tracing: every traceEvery-th data frame sent is traced (0 for none); see Frame.startTrace
+    private int traceEvery;
+    private long dataSent;
+    public final static String[] LOCAL_HOPS = {"Uplink", "SwitchBuffer", "Downlink"};
+    public final static String[] GLOBAL_HOPS = {"Uplink", "SwitchBuffer", "TrunkUp", "CentralBuffer", "TrunkDown",
+            "DestSwitchBuffer", "Downlink"};
+    //metrics (network:type=Node,net=N,node=ID): data frames sent and every frame received, retransmissions,
+    //frames given up on, code 2 replies (our frames arrived corrupt), corrupt frames received, code 4 nacks, and
+    //code 8 nacks (frames a switch shed under overload)
+    private final Metrics metrics;
+    private final LongAdder framesIn, framesOut, bytesIn, bytesOut, delivered, retransmits, timeouts, crcErrors,
+            corrupt, nacks, congestionNacks;
+    private final DuplicateFilter saved;
+    //output flush policy (see OutputWriter): every flushRecords records, every flushMillis ms, fsync on each flush
+    private int flushRecords;
+    private long flushMillis;
+    private boolean fsync;
+    private OutputWriter fileWriter;
+    private final SendWindow window;
+    //session resumption: token issued by the switch (0 until issued), state file, and the input file offset each
+    //in-flight frame came from (indexed by sequence number), so a checkpoint can point back at the oldest one
+    private boolean resume;
+    private long token;
+    private final File stateFile;
+    private final long[] offsets;
+    //next sequence number on the wire for each destination (network ID << 8 | node ID; a group is Frame.GROUP and the
+    //group number), and the destination and wire sequence number of each frame sent (indexed by sequence number, like
+    //offsets), so a checkpoint can wind the numbering back with the send position
+    private final HashMap<Integer, Integer> numbers;
+    private final int[] streams, numbered;
+    //multicast groups this node is a member of (see joinGroup)
+    private final ArrayList<Integer> groups;
     BufferedOutputStream out;
     DataInputStream in;
     Random random;
@@ -29,14 +71,42 @@ public class Node extends Thread {
      */
     public Node(int port, int ID, int netID, boolean debugInfo){
         this.port = port;
+        this.switchPort = port;
         this.ID = ID;
         this.netID = netID;
-        this.saved = new ArrayList<>();
+        this.saved = new DuplicateFilter();
+        this.window = new SendWindow(PERIOD, RETRY);
+        this.metrics = new Metrics("type=Node,net=" + netID + ",node=" + ID);
+        this.framesIn = metrics.counter("FramesIn");
+        this.framesOut = metrics.counter("FramesOut");
+        this.bytesIn = metrics.counter("BytesIn");
+        this.bytesOut = metrics.counter("BytesOut");
+        this.delivered = metrics.counter("Delivered");
+        this.retransmits = metrics.counter("Retransmits");
+        this.timeouts = metrics.counter("Timeouts");
+        this.crcErrors = metrics.counter("CrcErrors");
+        this.corrupt = metrics.counter("CorruptReceived");
+        this.nacks = metrics.counter("Nacks");
+        this.congestionNacks = metrics.counter("CongestionNacks");
+        metrics.gauge("Window", () -> (long) window.getWindow());
+        metrics.gauge("InFlight", window::inFlight);
+        metrics.gauge("RttMicros", () -> window.getRtt() / 1000);
         this.finished = false;
         this.terminated = false;
         this.random = new Random();
         this.debugInfo = debugInfo;
-        this.outgoing = new LinkedList<>();
+        this.flushRecords = 64;
+        this.flushMillis = 100;
+        this.fsync = false;
+        this.resume = false;
+        this.token = 0;
+        this.transport = new SocketTransport();
+        this.stateFile = new File("node" + this.netID + "_" + this.ID + ".state");
+        this.offsets = new long[256];
+        this.numbers = new HashMap<>();
+        this.streams = new int[256];
+        this.numbered = new int[256];
+        this.groups = new ArrayList<>();
         //initialize file
         File outputFile = new File("node" + this.netID + "_" + this.ID + "output.txt");
         try {
@@ -47,33 +117,143 @@ public class Node extends Thread {
             System.out.println("Node + " + this.netID + ":" + this.ID + ": could not create output file.  See stack trace.");
             e.printStackTrace();
         }
-        //Initialize data from file
+    }
+
+    /**
+     * Set the flush policy for the output file. Must be called before the node is started.
+     * @param flushRecords flush after this many received records (0 to disable)
+     * @param flushMillis flush once the oldest unwritten record is this old, in milliseconds (0 to disable)
+     * @param fsync force the output file to disk on every flush
+     */
+    public void setOutputPolicy(int flushRecords, long flushMillis, boolean fsync){
+        this.flushRecords = flushRecords;
+        this.flushMillis = flushMillis;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Enable session resumption. Must be called before the node is started.
+     * <p>With resumption on, the node checkpoints its send position and duplicate filter to its state file, and
+     * when its connection drops it reconnects and hands the switch its session token, so the switch reattaches it
+     * to its existing switch table entry. A node started with a state file present picks up from the checkpoint.
+     * @param resume resume sessions
+     */
+    public void setSessionResume(boolean resume){
+        this.resume = resume;
+    }
+
+    /**
+     * Join a multicast group. Must be called before the node is started.
+     * <p>The node joins through its switch (code 9) as soon as it connects, and from then on also receives the
+     * group's frames (destination GROUP_group in its input). A frame it sends to a group is acked by whichever member
+     * acks first; a member whose copy goes missing after that doesn't get it resent.
+     * @param group group number, 1 to 255
+     */
+    public void joinGroup(int group){
+        if(group >= 1 && group <= 255 && !groups.contains(group)) groups.add(group);
+    }
+
+    /**
+     * Feed the node from a frame source (e.g. a Workload) instead of its input file. Must be called before the node
+     * is started.
+     * @param input frames to send, ending with the completion frame
+     */
+    public void setInput(FrameSource input){
+        this.outgoing = input;
+    }
+
+    /**
+     * Open the input file, unless the node was given a source with setInput
+     * <p>Frames are parsed from the file on demand as the send window opens, not all up front</p>
+     */
+    private void openInput(){
+        if(outgoing != null) return;
         try{
-            //sequence number counter
-            int SN = 0;
-            //Set scanner to read config file
-            Scanner scanner = new Scanner(new File("node" + this.netID + "_" + this.ID + ".txt"));
-            //Populate data list
-            while (scanner.hasNextLine()){
-                //get data line
-                String[] s = scanner.nextLine().split(": ");
-                //pull out destination info from data line
-                String[] d = s[0].split("_");
-                //add frame to outgoing message queue
-                outgoing.add(new Frame(netID, ID,  Integer.parseInt(d[0]), Integer.parseInt(d[1]), SN, s[1]));
-                //increment SN
-                SN++;
-            }
-            //add in completion control message
-            outgoing.add(new Frame(netID, ID, 0, 0,  SN, 5));
-            scanner.close();
-            if(debugInfo) System.out.println("Node " + this.netID + ":" + this.ID + ": data successfully loaded: " + outgoing);
-        } catch(FileNotFoundException e){
-            System.out.println("Node " + this.netID + ":" + this.ID + ": An error occurred loading input file: FileNotFoundException\n");
+            this.outgoing = new NodeInput(new File("node" + this.netID + "_" + this.ID + ".txt"), netID, ID);
+            if(debugInfo) System.out.println("Node " + this.netID + ":" + this.ID + ": input file opened");
+        } catch(NoSuchFileException e){
+            System.out.println("Node " + this.netID + ":" + this.ID + ": An error occurred loading input file: NoSuchFileException\n");
+            e.printStackTrace();
+        } catch(IOException e){
+            System.out.println("Node " + this.netID + ":" + this.ID + ": An error occurred mapping input file. See stack trace.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Number a new frame for the wire
+     * <p>Frame sources number frames in the order the node sends them, which stays the node's own count (the send
+     * window's slots, and the checkpoint's position). On the wire, frames are numbered per destination instead, so a
+     * receiver sees an unbroken run of sequence numbers from each sender however many others it also sends to.
+     * @param f frame from the source
+     * @return copy of the frame with its wire sequence number
+     */
+    private Frame number(Frame f){
+        int stream = (f.getDest()[0] << 8) | f.getDest()[1];
+        int sn = numbers.getOrDefault(stream, 0);
+        numbers.put(stream, (sn + 1) & 0xFF);
+        streams[f.getSN() & 0xFF] = stream;
+        numbered[f.getSN() & 0xFF] = sn;
+        if(f.getSize() > 0) return new Frame(f.getSource()[0], f.getSource()[1], f.getDest()[0], f.getDest()[1], sn, f.getData());
+        return new Frame(f.getSource()[0], f.getSource()[1], f.getDest()[0], f.getDest()[1], sn, f.getAck());
+    }
+
+    //count a frame going out of the node
+    private void sent(Frame f){
+        framesOut.increment();
+        bytesOut.add(f.length());
+    }
+
+    /**
+     * Trace a sample of the data frames this node sends. Must be called before the node is started.
+     * <p>A traced frame is timestamped by every hop it passes; the node it is delivered to records each hop's latency
+     * in its Trace histograms (TraceUplink, TraceSwitchBuffer, ... TraceTotal). Untraced frames carry nothing extra.
+     * @param every trace one in this many data frames (0 to trace none)
+     */
+    public void setTraceSampling(int every){
+        this.traceEvery = Math.max(0, every);
+    }
+
+    /**
+     * Get one of the node's trace histograms
+     * @param hop hop name, from LOCAL_HOPS or GLOBAL_HOPS, or Total
+     * @return latency histogram of that hop, in nanoseconds
+     */
+    public Histogram getTrace(String hop){
+        return metrics.histogram("Trace" + hop);
+    }
+
+    //record the hop latencies of a traced frame delivered here: 3 stamps for a frame from this network, 7 for one
+    //that went through the central switch. A trace of any other shape only counts towards the total.
+    private void trace(Frame msg, long now){
+        long[] stamps = msg.getTrace();
+        if(stamps.length == 0) return;
+        String[] hops = stamps.length == LOCAL_HOPS.length ? LOCAL_HOPS
+                : stamps.length == GLOBAL_HOPS.length ? GLOBAL_HOPS : null;
+        if(hops != null){
+            for(int i = 0; i < hops.length; i++){
+                getTrace(hops[i]).record((i + 1 < stamps.length ? stamps[i + 1] : now) - stamps[i]);
+            }
+        }
+        getTrace("Total").record(now - stamps[0]);
+    }
+
+    /**
+     * Report sends, retransmissions, acks and deliveries to a listener. Must be called before the node is started.
+     * @param listener listener, or null for none
+     */
+    public void setListener(NodeListener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Set the transport used to reach the switch (sockets by default). Must be called before the node is started.
+     * @param transport transport shared by the whole network
+     */
+    public void setTransport(Transport transport){
+        this.transport = transport;
+    }
+
     /**
      * Init helper function
      * <p>Establishes secondary communication socket and closes init</p>
@@ -92,11 +272,11 @@ public class Node extends Thread {
                     //will get new message to create a new socket on a convenient port
                     Frame f = Frame.decodeFromChannel(in);
                     this.port = Integer.parseInt(f.getData());
-                    //send acknowledgement to switch
-                    out.write(new Frame(netID, ID, netID, 0, 0, 3).encode());
+                    //send acknowledgement to switch; when resuming a session, the acknowledgement carries the token
+                    if(token != 0) out.write(new Frame(netID, ID, netID, 0, 0, String.valueOf(token)).encode());
+                    else out.write(new Frame(netID, ID, netID, 0, 0, 3).encode());
                     out.flush();
                     flag = true;
-                    Thread.sleep(50);
                     break;
                 } catch (EOFException e){
                     //end of file will send an exception, so this catches it, which then breaks out of the while loop.
@@ -105,10 +285,6 @@ public class Node extends Thread {
                     System.out.println("Error: Node " + netID + ":" + ID + ": could not initialize socket (init frame lost)");
                     e.printStackTrace();
                     return false;
-                } catch (InterruptedException e) {
-                    System.out.println("Error: Node " + netID + ":" + ID + ": unknown system interrupt encountered");
-                    e.printStackTrace();
-                    return false;
                 }
             }
         }
@@ -117,206 +293,351 @@ public class Node extends Thread {
         this.in.close();
         this.init.close();
         //open server socket; connect until it works
-        while(flag) {
-            try {
-                server = new Socket("localhost", port);
-                flag = false;
-            } catch (ConnectException e) {
-                if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Connection failed, retrying...");
-            }
-        }
+        server = Backoff.connect(transport, port, CONNECT_TIMEOUT);
         return true;
     }
 
     /**
-     * Executable code
+     * Session helper function
+     * <p>Sends and receives over the communication socket until the network is finished
+     * @throws IOException if the connection is lost
      */
-    public void run(){
-        server = null;
-        init = null;
-        try {
-            //Server connection begin
-            boolean flag = true;
-            //check if the port exists
-            if(port == -1) {
-                System.out.println("Node " + netID + ":" + ID + ": Couldn't find port to connect");
-                return;
-            }
-            //connect until it works
-            while(flag) {
-                try {
-                    init = new Socket("localhost", port);
-                    flag = false;
-                } catch (ConnectException e) {
-                    //if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Connection failed, retrying...");
-                }
-            }
-            if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Init socket connected");
-            //Initialize server socket and continue
-            if(!initialize()){
-                //something went wrong
-                System.out.println("Error: Node " + netID + ":" + ID + " Could not initialize communication. Terminating node.");
-                return;
-            }
-            if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Communication socket established");
-
-
-            //Create streams and writers
-            this.out = new BufferedOutputStream(server.getOutputStream(), 257);
-            this.in = new DataInputStream(new BufferedInputStream(server.getInputStream()));
-            FileWriter fileWriter = new FileWriter("node" + this.netID + "_" + this.ID + "output.txt");
-            //periodic message control fields
-            long start = 0;
-            int repeat = 0;
-            boolean waitOnAck = false;
-            Frame outMsg = null;
-
-            //Run until socket closes
-            while(!server.isClosed()){
-                //------ Receiving block ------
-                //listen for incoming messages
-                //loop here will read whenever there is data to read
-                if(in.available()>0) {
-                    try{
-                        //this will decode one frame's worth of data and throw exceptions where needed
-                        Frame msg = Frame.decodeFromChannel(in);
-                        if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Incoming message " + msg);
-                        //check for ack 6 (ie, network is finished)
-                        if(msg.getAck() == 6){
-                            //ack back to switch
-                            out.write(new Frame(netID, ID, 0, 0, 0, 3).encode());
+    private void session() throws IOException{
+        //time the switch was last heard from (or probed), and time of the last checkpoint
+        long lastHeard = System.currentTimeMillis(), lastCheckpoint = lastHeard;
+        //Run until socket closes
+        while(!server.isClosed()){
+            //set whenever this pass did any work; an idle pass waits for the next timer instead of spinning
+            boolean busy = false;
+            //------ Receiving block ------
+            //listen for incoming messages
+            //loop here will read whenever there is data to read
+            if(in.available()>0) {
+                busy = true;
+                try{
+                    //this will decode one frame's worth of data and throw exceptions where needed
+                    Frame msg = Frame.decodeFromChannel(in);
+                    framesIn.increment();
+                    bytesIn.add(msg.length());
+                    lastHeard = System.currentTimeMillis();
+                    //check for ack 6 (ie, network is finished)
+                    if(msg.getAck() == 6){
+                        //ack back to switch
+                        out.write(new Frame(netID, ID, 0, 0, 0, 3).encode());
+                        out.flush();
+                        //node can finish execution
+                        return;
+                    }
+                    //session token from the switch (data from the switch itself, 0:0)
+                    else if(msg.getSource()[0] == 0 && msg.getSource()[1] == 0 && msg.getSize() > 0){
+                        try{
+                            token = Long.parseLong(msg.getData());
+                            if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": session token received");
+                            checkpoint();
+                        } catch (NumberFormatException e){
+                            System.out.println("Node " + netID + ":" + ID + ": received invalid session token");
+                        }
+                    }
+                    //check if message is actually for this node (or for one of its groups)
+                    else if(msg.getDest()[0] == netID && msg.getDest()[1] == ID
+                            || msg.isGroup() && groups.contains(msg.getDest()[1])){
+                        //a group frame is answered from the group, which is what the sender numbered it for
+                        int[] self = msg.isGroup() ? msg.getDest() : new int[]{netID, ID};
+                        //check crc data viability
+                        if(msg.getCrc() != msg.calcCrc()){
+                            EventLog.log(EventLog.NODE, EventLog.GARBAGE, netID, ID, msg, 0);
+                            corrupt.increment();
+                            out.write(new Frame(self[0], self[1], msg.getSource()[0], msg.getSource()[1], msg.getSN(), 2).encode());
                             out.flush();
-                            //node can finish execution
-                            break;
                         }
-                        //check if message is actually for this node
-                        else if(msg.getDest()[0] == netID && msg.getDest()[1] == ID){
-                            //check crc data viability
-                            if(msg.getCrc() != msg.calcCrc()){
-                                if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": received garbage frame");
-                                out.write(new Frame(netID, ID, msg.getSource()[0], msg.getSource()[1], msg.getSN(), 2).encode());
+                        //handle incoming data for a viable frame
+                        else if(msg.getSize() > 0){
+                            //send ack first
+                            //roll random number from 1 to 100, and if it's 5 or less drop ack. simulates a 5% fail chance.
+                            if(random.nextInt(100)+1 > 5){
+                                out.write(new Frame(self[0], self[1], msg.getSource()[0], msg.getSource()[1], msg.getSN(), 3).encode());
                                 out.flush();
+                                EventLog.log(EventLog.NODE, EventLog.RECEIVED, netID, ID, msg, 0);
+                            } else {
+                                EventLog.log(EventLog.NODE, EventLog.RECEIVED, netID, ID, msg, 1);
                             }
-                            //handle incoming data for a viable frame
-                            else if(msg.getSize() > 0){
-                                //send ack first
-                                //roll random number from 1 to 100, and if it's 5 or less drop ack. simulates a 5% fail chance.
-                                if(random.nextInt(100)+1 > 5){
-                                    out.write(new Frame(netID, ID, msg.getSource()[0], msg.getSource()[1], msg.getSN(), 3).encode());
-                                    out.flush();
-                                    if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": received " + msg);
-                                } else {
-                                    if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": received " + msg + ", And is dropping ack");
-                                }
-                                //regardless of ack roll, save the data as usual.
-                                //check saved -- this handles duplicate messages
-                                boolean f = false;
-                                boolean g = false;
-                                for(Integer[] i: saved){
-                                    if(i[0] == msg.getSource()[0] && i[1] == msg.getSource()[1]){
-                                        if(i[2] != msg.getSN()){
-                                            f = true;
-                                            i[2] = msg.getSN();
-                                        }
-                                        g = true;
-                                        break;
-                                    }
-                                }
-                                //if new node, add new entry in saved
-                                if(!g){
-                                    saved.add(new Integer[]{msg.getSource()[0], msg.getSource()[1], msg.getSN()});
-                                    f = true;
-                                }
-                                //if data is not duplicate,
-                                if(f){
-                                    //pull data and send to file
-                                    fileWriter.write(msg.getSource()[0] + "_" + msg.getSource()[1] + ": " + msg.getData() + "\n");
-                                    fileWriter.flush();
-                                }
+                            //regardless of ack roll, save the data as usual.
+                            //check saved -- this handles duplicate messages, including ones that arrive out of order
+                            if(saved.accept(msg.getSource()[0], msg.getSource()[1], msg.isGroup() ? msg.getDest()[1] : 0,
+                                    msg.getSN())){
+                                //pull data and hand it to the file writer
+                                fileWriter.write(msg.getSource()[0] + "_" + msg.getSource()[1] + ": " + msg.getData() + "\n");
+                                delivered.increment();
+                                long now = System.nanoTime();
+                                if(msg.isTraced()) trace(msg, now);
+                                if(listener != null) listener.delivered(msg, now);
+                            } else {
+                                EventLog.log(EventLog.NODE, EventLog.DUPLICATE, netID, ID, msg, 0);
                             }
-                            //ack frame handle
-                            else{
-                                //message received
-                                if(msg.getAck() == 3){
-                                    if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Ack received on " + outMsg);
-                                    //send message block always executes before this, and there is always at least 1 message for a node to send
-                                    //thus this assert should pass, it's just important for the if statement after.
-                                    assert outMsg != null;
-                                    //check if the SN matches the pending ack. if it's not, ignore the message, it's probably an error.
-                                    //If it is in fact an error, then we'll get another ack when the executor re-sends the message anyway.
-                                    if(outMsg.getSN() != msg.getSN()) continue;
-                                    //at this point: ack has been received for pending message. clear for next message.
-                                    waitOnAck = false;
-                                    repeat = 0;
+                        }
+                        //ack frame handle
+                        else{
+                            long now = System.nanoTime();
+                            //the frame it's about: the one sent to the replying node (or group) with that SN
+                            int slot = window.find(msg.getSource()[0], msg.getSource()[1], msg.getSN());
+                            //message received: window grows
+                            if(msg.getAck() == 3){
+                                //if the SN is not in flight, ignore the message, it's probably a late or duplicate ack.
+                                Frame acked = window.acknowledge(slot, now);
+                                if(acked != null){
+                                    EventLog.log(EventLog.NODE, EventLog.ACKED, netID, ID, acked, 0);
+                                    FrameEvent.nodeAcked(netID, ID, acked, now - window.getSentAt(slot));
                                 }
-                                //nack
-                                else if(msg.getAck() == 4){
-                                    if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Negative ack received on " + outMsg);
-                                    //same as above
-                                    assert outMsg != null;
-                                    if(outMsg.getSN() != msg.getSN()) continue;
-                                    waitOnAck = false;
-                                    repeat = 0;
+                                if(listener != null && acked != null) listener.acked(acked, now);
+                            }
+                            //nack: the frame will never be delivered, so stop tracking it. This says nothing about congestion.
+                            else if(msg.getAck() == 4){
+                                Frame nacked = window.release(slot);
+                                if(nacked != null) nacks.increment();
+                                if(nacked != null) EventLog.log(EventLog.NODE, EventLog.NACKED, netID, ID, nacked, 0);
+                                if(listener != null && nacked != null) listener.nacked(nacked, now);
+                            }
+                            //congestion nack: a switch shed the frame. The window shrinks, and the frame is resent
+                            //after a round trip (by the retransmission block below) rather than after a timeout
+                            else if(msg.getAck() == Frame.CONGESTED){
+                                Frame shed = window.congested(slot, now);
+                                if(shed != null){
+                                    congestionNacks.increment();
+                                    EventLog.log(EventLog.NODE, EventLog.CONGESTED, netID, ID, shed, window.inFlight());
                                 }
-                                //some error happened (like CRC check failure), so resend the message
-                                else {
-                                    out.write(outMsg.encode());
+                            }
+                            //some error happened (like CRC check failure), so resend the message; window shrinks
+                            else {
+                                Frame resend = window.corrupted(slot, now);
+                                crcErrors.increment();
+                                EventLog.log(EventLog.NODE, EventLog.CRC_ERROR, netID, ID, msg, 0);
+                                if(resend != null){
+                                    //a traced frame is timed from its latest attempt
+                                    if(resend.isTraced()) resend.startTrace(now);
+                                    out.write(resend.encode());
                                     out.flush();
-                                    repeat = 0;
-                                    start = System.currentTimeMillis();
+                                    sent(resend);
+                                    retransmits.increment();
+                                    EventLog.log(EventLog.NODE, EventLog.RETRANSMITTED, netID, ID, resend,
+                                            window.getTries(slot));
+                                    FrameEvent.nodeRetransmitted(netID, ID, resend, window.getTries(slot),
+                                            "crc error");
+                                    if(listener != null) listener.retransmitted(resend, now);
                                 }
                             }
                         }
-                    } catch (FrameLostException e){
-                        //Frame was lost; print this to terminal and send no ack
-                        System.out.println("Frame error detected at NodeThread ID: " + this.ID);
                     }
+                } catch (FrameLostException e){
+                    //Frame was lost; print this to terminal and send no ack
+                    System.out.println("Frame error detected at NodeThread ID: " + this.ID);
                 }
-                //------ Sending block ------
-                //check for timeout period on sent message
-                if(waitOnAck){
-                    //check for repeat. if timeout, print and move on
-                    if(repeat == RETRY+1){
-                        System.out.println("Node " + netID + ":" + ID + ": timeout on " + outMsg);
-                        waitOnAck = false;
-                    }
-                    //if time has gone beyond period threshold, add the message to the queue again
-                    else if(System.currentTimeMillis() - start >= PERIOD){
-                        if(debugInfo) System.out.println("Node " + netID + ":" + ID + " resending message (attempt "
-                                + repeat + "): "+ outMsg);
-                        out.write(outMsg.encode());
-                        out.flush();
-                        repeat++;
-                        start = System.currentTimeMillis();
-                    }
+            }
+            //------ Sending block ------
+            long now = System.nanoTime();
+            //check for frames that have run out of retries. if timeout, print and move on
+            Frame outMsg;
+            while((outMsg = window.giveUp(now)) != null){
+                System.out.println("Node " + netID + ":" + ID + ": timeout on " + outMsg);
+                timeouts.increment();
+                EventLog.log(EventLog.NODE, EventLog.TIMEOUT, netID, ID, outMsg, 0);
+                FrameEvent.nodeTimeout(netID, ID, outMsg);
+                busy = true;
+            }
+            //if time has gone beyond the retransmission timeout, send the message again
+            while((outMsg = window.retransmit(now)) != null){
+                int tries = window.getTries(window.slot(outMsg));
+                EventLog.log(EventLog.NODE, EventLog.RETRANSMITTED, netID, ID, outMsg, tries);
+                FrameEvent.nodeRetransmitted(netID, ID, outMsg, tries,
+                        window.wasShed() ? "congestion" : "timeout");
+                if(outMsg.isTraced()) outMsg.startTrace(now);
+                out.write(outMsg.encode());
+                out.flush();
+                sent(outMsg);
+                retransmits.increment();
+                if(listener != null) listener.retransmitted(outMsg, now);
+                busy = true;
+            }
+            //send messages over socket from queue until all messages are sent
+            //this block only sends while the congestion window has room and the pacer allows it.
+            //the final message is a control message to the switch; it waits until every data frame is settled,
+            //so that the switch only hears "finished" once nothing from this node is still in flight.
+            if(outgoing != null && !outgoing.isEmpty() && window.canSend(now) && outgoing.nextTime() <= now
+                    && (outgoing.peek().getSize() > 0 || window.inFlight() == 0)){
+                outMsg = outgoing.next();
+                int slot = outMsg.getSN() & 0xFF;
+                outMsg = number(outMsg);
+                //(group frames aren't traced: their copies would share one trace)
+                if(traceEvery > 0 && outMsg.getSize() > 0 && !outMsg.isGroup() && ++dataSent % traceEvery == 0){
+                    outMsg.startTrace(now);
                 }
-                //send messages over socket from queue until all messages are sent
-                //this block will not execute unless ack has been received; only 1 message at a time is to be sent.
-                if(!outgoing.isEmpty() && !waitOnAck){
-                    outMsg = outgoing.remove();
-                    //simulate a 5% chance to send an erroneous frame. if <=5, send a 'corrupted' version of the frame.
-                    //the corrupt version is NOT saved as the outMsg, so that on retry from ack 2 it sends the actual data.
-                    if(random.nextInt(100) + 1 > 5) out.write(outMsg.encode());
-                    else out.write(outMsg.corrupt().encode());
-                    //send message
-                    out.flush();
-                    //start time
-                    repeat = 0;
-                    start = System.currentTimeMillis();
-                    //flag
-                    waitOnAck = true;
-                    if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": sent " + outMsg);
-                    //the final message is a control message to the switch. This node can mark itself as finished though.
-                    if(outgoing.isEmpty()) {
-                        this.finished = true;
-                    }
-                    //backoff
-                    Thread.sleep(random.nextInt(500));
+                //simulate a 5% chance to send an erroneous frame. if <=5, send a 'corrupted' version of the frame.
+                //the corrupt version is NOT saved in the window, so that on retry from ack 2 it sends the actual data.
+                if(random.nextInt(100) + 1 > 5) out.write(outMsg.encode());
+                else out.write(outMsg.corrupt().encode());
+                //send message
+                out.flush();
+                //start time
+                window.sent(outMsg, slot, now);
+                sent(outMsg);
+                if(listener != null) listener.sent(outMsg, now);
+                offsets[slot] = outgoing.lastOffset();
+                busy = true;
+                EventLog.log(EventLog.NODE, EventLog.SENT, netID, ID, outMsg, window.inFlight());
+                FrameEvent.nodeSent(netID, ID, outMsg, window.inFlight());
+                //the final message is a control message to the switch. This node can mark itself as finished though.
+                if(outgoing.isEmpty()) {
+                    this.finished = true;
+                }
+            }
+            //nothing to do right now: wait for the next timer, but keep polling the socket at least every 100 us
+            if(!busy){
+                long time = System.currentTimeMillis();
+                //a quiet connection may be a dead one
+                if(time - lastHeard >= LinkProbe.INTERVAL){
+                    if(server.peerClosed(in)) throw new EOFException("connection to switch lost");
+                    lastHeard = time;
+                }
+                if(resume && token != 0 && time - lastCheckpoint >= CHECKPOINT_INTERVAL){
+                    checkpoint();
+                    lastCheckpoint = time;
+                }
+                LockSupport.parkNanos(Math.min(window.idleTime(now), 100_000L));
+            }
+        }
+        //the socket closed without the network finishing
+        throw new EOFException("connection to switch closed");
+    }
+
+    /**
+     * Connect helper function
+     * <p>Connects to the switch, runs the init handshake and sets up the communication streams
+     * @return false on failure, true on success
+     */
+    private boolean connect() throws IOException{
+        //connect until it works
+        init = Backoff.connect(transport, switchPort, CONNECT_TIMEOUT);
+        if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Init socket connected");
+        //Initialize server socket and continue
+        if(!initialize()) return false;
+        if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": Communication socket established");
+        //Create streams
+        this.out = new BufferedOutputStream(server.getOutputStream(), 257);
+        this.in = new DataInputStream(new BufferedInputStream(server.getInputStream()));
+        //(re)join this node's groups; joining again after a reconnect changes nothing
+        for(int group: groups){
+            out.write(Frame.join(netID, ID, group).encode());
+        }
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Write the session state (token, send position, duplicate filter and wire numbering) to the state file
+     * <p>The send position is the oldest frame still in flight, so a restart resends everything that might not
+     * have arrived, numbered as it was the first time; the receivers' duplicate filters take care of the rest.
+     */
+    private void checkpoint(){
+        if(!resume || outgoing == null) return;
+        long position;
+        int SN = window.oldest();
+        HashMap<Integer, Integer> from = new HashMap<>(numbers);
+        if(SN >= 0){
+            position = offsets[SN];
+            //wind the numbering back to the oldest frame in flight, newest frame first
+            for(int sn = (outgoing.nextSN() - 1) & 0xFF; ; sn = (sn - 1) & 0xFF){
+                from.put(streams[sn], numbered[sn]);
+                if(sn == SN) break;
+            }
+        } else {
+            position = outgoing.position();
+            SN = outgoing.nextSN();
+        }
+        ByteBuffer b = ByteBuffer.allocate(28 + saved.savedSize() + from.size() * 8);
+        b.putInt(STATE_MAGIC).putLong(token).putLong(position).putInt(SN);
+        saved.save(b);
+        b.putInt(from.size());
+        for(Integer stream: from.keySet()) b.putInt(stream).putInt(from.get(stream));
+        b.flip();
+        try(FileChannel channel = FileChannel.open(stateFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while(b.hasRemaining()) channel.write(b);
+        } catch (IOException e){
+            System.out.println("Node " + netID + ":" + ID + ": could not write state file. See stack trace.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Pick up the session state from the state file, if there is one
+     */
+    private void restore(){
+        if(!resume || outgoing == null || !stateFile.exists()) return;
+        try(FileChannel channel = FileChannel.open(stateFile.toPath(), StandardOpenOption.READ)){
+            ByteBuffer b = ByteBuffer.allocate((int) channel.size());
+            while(b.hasRemaining() && channel.read(b) >= 0);
+            b.flip();
+            if(b.remaining() < 24 || b.getInt() != STATE_MAGIC){
+                System.out.println("Node " + netID + ":" + ID + ": ignoring damaged state file");
+                return;
+            }
+            token = b.getLong();
+            long position = b.getLong();
+            int SN = b.getInt();
+            saved.load(b);
+            numbers.clear();
+            for(int n = b.getInt(); n > 0; n--) numbers.put(b.getInt(), b.getInt());
+            outgoing.seek(position, SN);
+            if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": resuming from checkpoint at byte " + position);
+        } catch (IOException | RuntimeException e){
+            System.out.println("Node " + netID + ":" + ID + ": could not read state file; starting over. See stack trace.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Executable code
+     */
+    public void run(){
+        metrics.register();
+        server = null;
+        init = null;
+        try {
+            //check if the port exists
+            if(port == -1) {
+                System.out.println("Node " + netID + ":" + ID + ": Couldn't find port to connect");
+                return;
+            }
+            openInput();
+            restore();
+            //received data goes through an asynchronous writer, so this loop never waits on the disk
+            fileWriter = new OutputWriter(new File("node" + this.netID + "_" + this.ID + "output.txt"),
+                    flushRecords, flushMillis, fsync);
+            fileWriter.start();
+            //run sessions until the network is finished; a session that loses its connection is resumed
+            while(!terminated){
+                if(!connect()){
+                    //something went wrong
+                    System.out.println("Error: Node " + netID + ":" + ID + " Could not initialize communication. Terminating node.");
+                    return;
+                }
+                try{
+                    session();
+                    this.terminated = true;
+                } catch (IOException e){
+                    //only a session the switch knows about (it issued a token) can be resumed
+                    if(!resume || token == 0) throw e;
+                    System.out.println("Node " + netID + ":" + ID + ": lost connection to switch, resuming session");
+                    checkpoint();
+                    server.close();
+                    //everything in flight may have been lost with the connection
+                    window.rewind(System.nanoTime());
                 }
             }
-            //Node has finished
+            //Node has finished; nothing left to resume
             if(debugInfo) System.out.println("Node " + netID + ":" + ID + ": finished");
-            this.terminated = true;
+            if(resume && stateFile.exists() && !stateFile.delete()){
+                System.out.println("Node " + netID + ":" + ID + ": could not remove state file");
+            }
         } catch (IOException e) {
             System.out.println("IO error in Node " + netID + ":" + ID + ". Likely could not create socket, or could not" +
                     "write to output file. See stack trace for details.");
@@ -328,7 +649,7 @@ public class Node extends Thread {
         finally {
             //if this happens from an error break, the node is in fact finished, albeit forcibly.
             finished = true;
-            //close sockets
+            //close sockets, input file and output file
             try {
                 if(server != null){
                     server.close();
@@ -336,6 +657,13 @@ public class Node extends Thread {
                 if(init != null){
                     init.close();
                 }
+                if(outgoing != null){
+                    outgoing.close();
+                }
+                //flushes whatever received data is still batched
+                if(fileWriter != null){
+                    fileWriter.close();
+                }
             } catch (IOException e){
                 System.out.println("Error: Node " + netID + ":" + ID + " could not properly close socket for unknown reasons.");
                 e.printStackTrace();
@@ -0,0 +1,192 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming reader for a node's input file
+ * <p>The file is memory-mapped a chunk at a time and parsed in place, one line per call, so a node only ever holds
+ * the frames its send window has room for, no matter how big the file is.
+ * <p>Line format: [DestNetwork]_[DestNode]: [Data]. Once the file runs out, one last completion control frame
+ * (ack 5) is produced, just like the old in-memory queue ended with one. Offsets are file offsets of line starts.
+ */
+public class NodeInput implements FrameSource {
+    //size of each mapped region; lines never come close to this, so a line is at most split across 2 regions
+    private final static long CHUNK = 64L << 20;
+    private final int ID, netID;
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer map;
+    //file offset of the start of the mapped region, and of the next unparsed line
+    private long mapStart, position;
+    //sequence number of the next frame (1 byte on the wire, so it wraps at 256)
+    private int SN;
+    private boolean finSent;
+    //frame parsed ahead of time by peek(), and file offsets of its line and of the last line handed out
+    private Frame peeked;
+    private long peekedOffset, lastOffset;
+    //reused copy buffer for the data field (the data size field is 1 byte, so 255 is the longest valid payload)
+    private final byte[] scratch;
+
+    /**
+     * NodeInput constructor
+     * @param file input file
+     * @param netID network ID of the owning node
+     * @param ID node ID of the owning node
+     */
+    public NodeInput(File file, int netID, int ID) throws IOException{
+        this.netID = netID;
+        this.ID = ID;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.length = channel.size();
+        this.scratch = new byte[255];
+        this.position = 0;
+        this.SN = 0;
+        this.finSent = false;
+        this.peeked = null;
+        remap(0);
+    }
+
+    /**
+     * Look at the next frame without consuming it
+     * @return next frame, or null if the input (including the completion frame) is used up
+     */
+    @Override
+    public Frame peek() throws IOException{
+        if(peeked == null) peeked = parse();
+        return peeked;
+    }
+
+    /**
+     * Consume the next frame
+     * @return next frame, or null if the input (including the completion frame) is used up
+     */
+    @Override
+    public Frame next() throws IOException{
+        Frame f = peek();
+        peeked = null;
+        lastOffset = peekedOffset;
+        return f;
+    }
+
+    /**
+     * Get where the frame most recently returned by next() starts in the file
+     * @return file offset of its line
+     */
+    @Override
+    public long lastOffset(){return this.lastOffset;}
+
+    /**
+     * Get where the next frame to be handed out starts in the file
+     * @return file offset of its line (the file length if only the completion frame is left)
+     */
+    @Override
+    public long position(){return peeked != null ? peekedOffset : this.position;}
+
+    /**
+     * Get the sequence number the next frame to be handed out will have
+     * @return sequence number
+     */
+    @Override
+    public int nextSN(){return peeked != null ? peeked.getSN() : this.SN;}
+
+    /**
+     * Move back (or forward) to a line start, as recorded by lastOffset() or position()
+     * @param offset file offset of a line start
+     * @param SN sequence number the frame on that line had
+     */
+    @Override
+    public void seek(long offset, int SN) throws IOException{
+        this.peeked = null;
+        this.position = offset;
+        this.SN = SN & 0xFF;
+        this.finSent = false;
+        if(offset < mapStart || offset >= mapStart + map.limit()) remap(Math.min(offset, length));
+    }
+
+    /**
+     * Check whether there is anything left to send
+     * @return true if every frame, including the completion frame, has been handed out
+     */
+    @Override
+    public boolean isEmpty() throws IOException{
+        return peek() == null;
+    }
+
+    @Override
+    public void close() throws IOException{
+        this.map = null;
+        channel.close();
+    }
+
+    //map the region starting at the given file offset
+    private void remap(long start) throws IOException{
+        mapStart = start;
+        map = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK, length - start));
+    }
+
+    //byte at an absolute file offset; remaps when the offset runs off the end of the current region
+    private int byteAt(long offset) throws IOException{
+        if(offset - mapStart >= map.limit()) remap(position);
+        return map.get((int) (offset - mapStart));
+    }
+
+    /**
+     * Hand-written line parser; reads one line straight out of the mapped region
+     * @return frame for the next valid line, the completion frame at end of file, or null after that
+     */
+    private Frame parse() throws IOException{
+        peekedOffset = position;
+        while(position < length){
+            long p = position;
+            int destNet = 0, destNode = 0, b = 0;
+            boolean valid = true;
+            //destination network, up to '_'
+            while(p < length && (b = byteAt(p)) >= '0' && b <= '9'){
+                destNet = destNet * 10 + (b - '0');
+                p++;
+            }
+            if(b == '_') p++;
+            else valid = false;
+            //destination node, up to ':'
+            while(valid && p < length && (b = byteAt(p)) >= '0' && b <= '9'){
+                destNode = destNode * 10 + (b - '0');
+                p++;
+            }
+            if(valid && b == ':') p++;
+            else valid = false;
+            //single space after the colon
+            if(valid && p < length && byteAt(p) == ' ') p++;
+            //data, up to end of line (an invalid line is skipped up to here as well)
+            int size = 0;
+            while(p < length && (b = byteAt(p)) != '\n'){
+                if(size < scratch.length) scratch[size] = (byte) b;
+                size++;
+                p++;
+            }
+            //drop a windows line ending
+            if(size > 0 && size <= scratch.length && scratch[size-1] == '\r') size--;
+            long lineStart = position;
+            //move past the newline
+            position = p + 1;
+            if(!valid || size == 0 || size > scratch.length){
+                //blank lines are fine to skip silently, anything else is worth a mention
+                if(p > lineStart){
+                    System.out.println("Node " + netID + ":" + ID + ": skipping malformed input line at byte " + lineStart);
+                }
+                peekedOffset = position;
+                continue;
+            }
+            Frame f = new Frame(netID, ID, destNet, destNode, SN, new String(scratch, 0, size));
+            SN = (SN + 1) & 0xFF;
+            return f;
+        }
+        //add in completion control message
+        if(!finSent){
+            finSent = true;
+            return new Frame(netID, ID, 0, 0, SN, 5);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Observer for what a node sends and receives, for measuring a running network (see LoadTest)
+ * <p>Called on the node's own thread, right as things happen, so implementations must be thread-safe and quick.
+ * Times are System.nanoTime() values.
+ */
+public interface NodeListener {
+    /**
+     * A frame went out for the first time
+     * @param f frame (the real frame, even if a corrupted copy went on the wire)
+     * @param now time sent
+     */
+    void sent(Frame f, long now);
+
+    /**
+     * A frame was sent again, after a timeout or a CRC error reply
+     * @param f frame
+     * @param now time resent
+     */
+    void retransmitted(Frame f, long now);
+
+    /**
+     * A frame this node sent was acknowledged (code 3)
+     * @param f frame
+     * @param now time the ack arrived
+     */
+    void acked(Frame f, long now);
+
+    /**
+     * A frame this node sent was refused by a firewall (code 4)
+     * @param f frame
+     * @param now time the nack arrived
+     */
+    void nacked(Frame f, long now);
+
+    /**
+     * A data frame for this node arrived intact and was not a duplicate
+     * @param f frame
+     * @param now time it arrived
+     */
+    void delivered(Frame f, long now);
+}
@@ -1,19 +1,30 @@
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class NodeThread extends Thread{
     private static final AtomicInteger counter;
+    //how long a thread whose node dropped its connection waits for the node to resume, in milliseconds
+    private static final long RESUME_GRACE = 5000;
     private final Switch server;
-    private final Socket init;
+    private final Connection init;
     private int port;
     private final int ID;
     private BufferedOutputStream out;
     private DataInputStream in;
-    private volatile boolean identified, finished, terminated, initialized;
+    private volatile boolean identified, finished, terminated, initialized, disconnected, lost, replaced;
+    //session token the node handed over to resume an earlier session (0 for a new session)
+    private long token;
+    //node ID of the paired node, once identified
+    private int key;
     private final boolean debugInfo;
+    //metrics of this port (network:type=NodeThread,net=N,port=ID): frames from the node, and frames sent to it
+    private final Metrics metrics;
+    private final LongAdder framesIn, framesOut, bytesIn, bytesOut, policed, corrupt;
+    //ingress policer for the node's data (null for none, see Switch.setPolicer)
+    private final Policer policer;
     //static initializer block for atomicInt counter. This variable gives unique IDs to each NodeThread that is created.
     static {counter = new AtomicInteger();}
 
@@ -21,15 +32,27 @@ public class NodeThread extends Thread{
      * Client thread constructor
      * @param server Switch server
      */
-    public NodeThread(Switch server, Socket client, boolean debugInfo) {
+    public NodeThread(Switch server, Connection client, boolean debugInfo) {
         this.debugInfo = debugInfo;
         this.identified = false;
         this.finished = false;
         this.terminated = false;
         this.initialized = false;
+        this.disconnected = false;
+        this.lost = false;
+        this.replaced = false;
+        this.token = 0;
         this.server = server;
         this.ID = counter.incrementAndGet();
         this.init = client;
+        this.metrics = new Metrics("type=NodeThread,net=" + server.getNetID() + ",port=" + ID);
+        this.framesIn = metrics.counter("FramesIn");
+        this.framesOut = metrics.counter("FramesOut");
+        this.bytesIn = metrics.counter("BytesIn");
+        this.bytesOut = metrics.counter("BytesOut");
+        this.policed = metrics.counter("Policed");
+        this.corrupt = metrics.counter("CorruptDropped");
+        this.policer = server.getPolicer() != null ? server.getPolicer().copy() : null;
     }
 
     public int getID() {
@@ -40,6 +63,18 @@ public class NodeThread extends Thread{
         return finished;
     }
 
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * Check whether frames can be delivered to the paired node right now
+     * @return true once the communication socket is up, until the connection ends
+     */
+    public boolean isOnline() {
+        return initialized && !disconnected;
+    }
+
     /**
      * Init helper function
      * <p>Establishes secondary communication socket and closes init</p>
@@ -62,6 +97,13 @@ public class NodeThread extends Thread{
                     //that said, I still check that it has a size, because why not
                     if(raw.length > 0){
                         acknowledged = true;
+                        //a node resuming a session sends its session token instead of a plain ack
+                        try{
+                            Frame f = Frame.decode(raw);
+                            if(f.getSize() > 0) token = Long.parseLong(f.getData());
+                        } catch (FrameLostException | NumberFormatException e){
+                            if(debugInfo) System.out.println("NodeThread " + ID + ": unreadable init ack, starting new session");
+                        }
                         break;
                     }
                 } catch (EOFException e){
@@ -113,11 +155,16 @@ public class NodeThread extends Thread{
         //this will, unfortunately, block the switch until the node finishes init, but it prevents data loss.
         while(!initialized) Thread.onSpinWait();
         try{
-            if(debugInfo) System.out.println("NodeThread " + ID + ": incoming message identified: " + message);
+            EventLog.log(EventLog.NODE_THREAD, EventLog.PORT_OUT, server.getNetID(), ID, message, 0);
+            if(server.getCapture() != null) server.getCapture().record(ID, Capture.OUT, message);
+            FrameEvent.PortWrite write = FrameEvent.beginWrite();
             synchronized (out){
                 out.write(message.encode());
                 out.flush();
             }
+            FrameEvent.endWrite(write, "NodeThread", server.getNetID(), ID, message);
+            framesOut.increment();
+            bytesOut.add(message.length());
         } catch (SocketException e) {
             System.out.println("Error: NodeThread " + ID + ": could not send message to client; socket closed.");
             e.printStackTrace();
@@ -127,6 +174,35 @@ public class NodeThread extends Thread{
         }
     }
 
+    /**
+     * Helper function; polices a data frame from the node (see Policer)
+     * @param msg frame
+     * @return true to pass it on (delayed, if need be), false if it was dropped
+     */
+    private boolean police(Frame msg){
+        long early = policer.police(System.nanoTime());
+        if(early == 0) return true;
+        policed.increment();
+        EventLog.log(EventLog.NODE_THREAD, EventLog.POLICED, server.getNetID(), ID, msg, early);
+        if(policer.getAction() == Policer.DELAY){
+            //stop reading until it conforms; the node's frames back up behind it
+            while(early > 0){
+                LockSupport.parkNanos(early);
+                early = policer.police(System.nanoTime());
+            }
+            return true;
+        }
+        if(policer.getAction() == Policer.NACK) newMessage(msg.congested());
+        return false;
+    }
+
+    /**
+     * Mark this thread as taken over by a new connection from the same node (see Switch.resume)
+     */
+    public void replaced(){
+        this.replaced = true;
+    }
+
     /**
      * Allow server to terminate connections
      */
@@ -140,12 +216,13 @@ public class NodeThread extends Thread{
      */
     @Override
     public void run() {
-        Socket client = null;
-        ServerSocket serverSocket = null;
+        Connection client = null;
+        Listener serverSocket = null;
+        metrics.register();
         try {
             //start new connection on any port
-            serverSocket = new ServerSocket(0);
-            this.port = serverSocket.getLocalPort();
+            serverSocket = server.getTransport().listen(0);
+            this.port = serverSocket.getPort();
             this.initialize();
             //listen for incoming connection on new socket
             client = serverSocket.accept();
@@ -156,30 +233,71 @@ public class NodeThread extends Thread{
             this.in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
             //NOW, mark self as initialized -- the communication socket is open and the streams are created.
             this.initialized = true;
+            //node is resuming a session: take over its existing switch table entry instead of relearning it
+            if(token != 0){
+                NodeThread previous = server.resume(ID, token);
+                if(previous != null){
+                    identified = true;
+                    key = previous.getKey();
+                    finished = previous.finished();
+                    previous.replaced();
+                    if(debugInfo) System.out.println("NodeThread " + ID + ": session resumed from NodeThread " + previous.getID());
+                }
+            }
             //read until the connection closes or until instructed to terminate
+            long lastHeard = System.currentTimeMillis();
             while(!terminated && !client.isClosed()){
+                //a quiet connection may be a dead one
+                if(in.available() == 0 && System.currentTimeMillis() - lastHeard >= LinkProbe.INTERVAL){
+                    if(client.peerClosed(in)){
+                        lost = true;
+                        if(debugInfo) System.out.println("NodeThread " + ID + ": connection to node lost");
+                        break;
+                    }
+                    lastHeard = System.currentTimeMillis();
+                }
                 //loop here will read whenever there is data to read
                 while(in.available()>0){
+                    lastHeard = System.currentTimeMillis();
                     try{
                         //this will decode one frame's worth of data and throw exceptions where needed
                         Frame msg = Frame.decodeFromChannel(in);
+                        if(server.getCapture() != null) server.getCapture().record(ID, Capture.IN, msg);
+                        framesIn.increment();
+                        bytesIn.add(msg.length());
                         //This basically does the job of """"learning"""" from incoming messages
                         /*Yes it has to be done here and not in Switch, because of limitations of the language and
                           because I again have to actively fight against the language to implement this requirement*/
                         if(!identified){
                             //add table entry (pass local node ID, not the network ID; the switch knows its own netID)
-                            server.addEntry(ID, msg.getSource()[1]);
+                            key = msg.getSource()[1];
+                            long session = server.addEntry(ID, key);
                             identified = true;
                             if(debugInfo) System.out.println("NodeThread " + ID + ": connected client identified");
+                            //hand the node its session token, so it can resume if the connection drops
+                            if(session != 0){
+                                synchronized (out){
+                                    out.write(new Frame(0, 0, msg.getSource()[0], msg.getSource()[1], 0,
+                                            String.valueOf(session)).encode());
+                                    out.flush();
+                                }
+                            }
+                        }
+                        //group membership (see Switch.join)
+                        if(msg.getSize() == 0 && msg.getAck() == Frame.JOIN){
+                            EventLog.log(EventLog.NODE_THREAD, EventLog.CONTROL, server.getNetID(), ID, msg, 0);
+                            server.join(msg.getDest()[1], key);
                         }
                         //check for control message
-                        if(msg.getDest()[1] == 0){
+                        else if(msg.getDest()[1] == 0){
                             //the only implemented control message is "fin" so no need to check for others
                             //node is done sending data, so we no longer need to do this loop
-                            this.finished = true;
-                            //inform switch
-                            if(debugInfo) System.out.println("NodeThread " + ID + ": control message identified " + msg);
-                            server.checkFinished();
+                            //inform switch (once; a retransmitted fin doesn't count again)
+                            EventLog.log(EventLog.NODE_THREAD, EventLog.CONTROL, server.getNetID(), ID, msg, 0);
+                            if(!this.finished){
+                                this.finished = true;
+                                server.nodeFinished(key);
+                            }
                             //ack
                             synchronized (out){
                                 out.write(new Frame(0, 0, msg.getSource()[0], msg.getSource()[1], msg.getSN(), 3).encode());
@@ -188,7 +306,20 @@ public class NodeThread extends Thread{
                         }
                         //not control, so it's an actual data message
                         else {
-                            if(debugInfo) System.out.println("NodeThread " + ID + ": outgoing message sent to switch " + msg);
+                            EventLog.log(EventLog.NODE_THREAD, EventLog.PORT_IN, server.getNetID(), ID, msg, 0);
+                            //corrupt (see Switch.setCrcCheck): tell the node now, rather than after a trip across the network.
+                            //Not group frames: each member answers those itself, so they take the normal path
+                            if(server.getCrcCheck() && msg.getSize() > 0 && msg.getDest()[0] != Frame.GROUP
+                                    && msg.getCrc() != msg.calcCrc()){
+                                EventLog.log(EventLog.NODE_THREAD, EventLog.GARBAGE, server.getNetID(), ID, msg, 0);
+                                corrupt.increment();
+                                server.corruptDropped();
+                                newMessage(new Frame(msg.getDest()[0], msg.getDest()[1], msg.getSource()[0],
+                                        msg.getSource()[1], msg.getSN(), 2));
+                                continue;
+                            }
+                            //over the node's rate: hold it back, or drop it
+                            if(policer != null && PriorityBuffer.isBulk(msg) && !police(msg)) continue;
                             //add it to the server's buffer to be switched as appropriate
                             this.server.enqueueMessage(msg);
                         }
@@ -205,11 +336,12 @@ public class NodeThread extends Thread{
                     + "  Stack trace is shown below.");
             e.printStackTrace();
         } finally {
+            this.disconnected = true;
             //close socket if not already closed
             try {
                 if(client != null){
-                    //write closing message to socket
-                    this.exit();
+                    //write closing message to socket (unless the node is already gone)
+                    if(!lost) this.exit();
                     client.close();
                 }
                 if(serverSocket != null){
@@ -219,10 +351,20 @@ public class NodeThread extends Thread{
                 System.out.println("NodeThread " + ID + ": I/O Exception occurred. Likely, could not facilitate exit.");
                 e.printStackTrace();
             }
-            //in case there was some error, mark as finished and inform server
-            if(!this.finished){
+            //node dropped its connection: give it a chance to come back and take over this thread's session
+            long deadline = System.currentTimeMillis() + RESUME_GRACE;
+            while(lost && !replaced && !finished && System.currentTimeMillis() < deadline){
+                try{
+                    Thread.sleep(10);
+                } catch (InterruptedException e){
+                    break;
+                }
+            }
+            //in case there was some error, mark as finished and inform server. A thread that was taken over by a
+            //resumed session doesn't: the new thread carries the node's state (and its fin) from here on.
+            if(!replaced && !this.finished){
                 this.finished = true;
-                server.checkFinished();
+                server.nodeFinished(identified ? key : -ID);
             }
         }
     }
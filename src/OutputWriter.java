@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Asynchronous group-commit writer for a node's received data
+ * <p>The receiving thread only copies a record into an in-memory batch and returns; it never touches the disk.
+ * This thread swaps the batch out and writes it with one channel write whenever the flush policy says so:
+ * every N records, every T milliseconds, when the batch gets large, and always on close.
+ * Optionally, every flush is followed by an fsync, for durability.
+ */
+public class OutputWriter extends Thread {
+    //a batch that grows past this is flushed regardless of policy
+    private final static int BATCH_LIMIT = 1 << 20;
+    private final FileChannel channel;
+    private final int flushRecords;
+    private final long flushMillis;
+    private final boolean fsync;
+    private final String name;
+    //batch being filled by the receiving thread, and the one being written out; both guarded by this object
+    private ByteBuffer active, standby;
+    private int records;
+    //time the oldest record in the active batch was added
+    private long firstRecord;
+    private volatile boolean closing;
+
+    /**
+     * OutputWriter constructor
+     * @param file output file (truncated)
+     * @param flushRecords flush after this many records (0 to disable)
+     * @param flushMillis flush when the oldest unwritten record is this old, in milliseconds (0 to disable)
+     * @param fsync force the file to disk after every flush
+     */
+    public OutputWriter(File file, int flushRecords, long flushMillis, boolean fsync) throws IOException{
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.flushRecords = flushRecords;
+        this.flushMillis = flushMillis;
+        this.fsync = fsync;
+        this.name = file.getName();
+        this.active = ByteBuffer.allocate(8192);
+        this.standby = ByteBuffer.allocate(8192);
+        this.records = 0;
+        this.closing = false;
+        this.setDaemon(true);
+    }
+
+    /**
+     * Queue one record for writing. Never blocks on disk.
+     * @param record record text, including its line ending
+     */
+    public void write(String record){
+        byte[] b = record.getBytes();
+        synchronized (this){
+            if(active.remaining() < b.length){
+                //grow the batch rather than wait for the writer
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + b.length));
+                active.flip();
+                bigger.put(active);
+                active = bigger;
+            }
+            if(records == 0) firstRecord = System.currentTimeMillis();
+            active.put(b);
+            records++;
+            //wake the writer if a flush is due now, or if it needs to start the clock on a new batch
+            if((flushRecords > 0 && records >= flushRecords) || active.position() >= BATCH_LIMIT
+                    || (records == 1 && flushMillis > 0)) this.notify();
+        }
+    }
+
+    /**
+     * Flush everything that was queued, stop the writer, and close the file
+     */
+    public void close() throws IOException{
+        closing = true;
+        synchronized (this){
+            this.notify();
+        }
+        try{
+            this.join();
+        } catch (InterruptedException e){
+            System.out.println("OutputWriter " + name + ": interrupted while closing");
+        }
+        channel.close();
+    }
+
+    /**
+     * Execution code
+     */
+    @Override
+    public void run(){
+        try{
+            while(true){
+                synchronized (this){
+                    //wait until the policy calls for a flush
+                    while(!closing && !due()){
+                        long wait = (flushMillis > 0 && records > 0) ? firstRecord + flushMillis - System.currentTimeMillis() : 0;
+                        this.wait(Math.max(wait, records > 0 && flushMillis > 0 ? 1 : 0));
+                    }
+                    //swap batches, so the receiving thread can keep adding while this one writes
+                    ByteBuffer b = active;
+                    active = standby;
+                    standby = b;
+                    records = 0;
+                }
+                standby.flip();
+                while(standby.hasRemaining()) channel.write(standby);
+                if(fsync) channel.force(false);
+                standby.clear();
+                //closing: exit only once the last batch (filled before closing was seen) has been written
+                if(closing){
+                    synchronized (this){
+                        if(records == 0) break;
+                    }
+                }
+            }
+        } catch (IOException e){
+            System.out.println("OutputWriter " + name + ": could not write to output file. See stack trace.");
+            e.printStackTrace();
+        } catch (InterruptedException e){
+            System.out.println("OutputWriter " + name + ": unknown system interrupt encountered");
+        }
+    }
+
+    //flush policy check; caller holds the lock
+    private boolean due(){
+        if(records == 0) return false;
+        if(flushRecords > 0 && records >= flushRecords) return true;
+        if(active.position() >= BATCH_LIMIT) return true;
+        return flushMillis > 0 && System.currentTimeMillis() - firstRecord >= flushMillis;
+    }
+}
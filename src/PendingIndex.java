@@ -0,0 +1,100 @@
+/**
+ * Fixed-size index of the node data frames waiting in a switch queue, by source, destination and sequence number, for
+ * spotting a retransmission of a frame that hasn't left the queue yet (used by PriorityBuffer, and by the queues of
+ * frames waiting for trunk credits)
+ * <p>Open addressing with linear probing over preallocated arrays, so every check and update is O(1) and allocates
+ * nothing. A frame only counts as a copy if its data matches too, so a corrupt frame's retransmission (or a new
+ * frame reusing a sequence number) is never mistaken for one. Once the index is 3/4 full, further frames simply
+ * aren't indexed until it drains; they can't be coalesced, but nothing else changes.
+ * <p>Not thread-safe: callers hold the queue's lock.
+ */
+public class PendingIndex {
+    //[SourceNetwork][SourceNode][DestNetwork][DestNode][SequenceNumber] of each slot's frame (0 for an empty slot;
+    //node data always has a source network, so a key is never 0)
+    private final long[] keys;
+    private final Frame[] frames;
+    private final int mask, limit;
+    private int size;
+
+    /**
+     * PendingIndex constructor
+     * @param slots index size, rounded up to a power of two
+     */
+    public PendingIndex(int slots){
+        int n = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.keys = new long[n];
+        this.frames = new Frame[n];
+        this.mask = n - 1;
+        this.limit = n / 4 * 3;
+    }
+
+    public int size(){return this.size;}
+
+    private static long key(Frame f){
+        return f.header() >>> 24;
+    }
+
+    private int slot(long key){
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    }
+
+    /**
+     * Check whether a copy of a frame (same header and data) is waiting
+     * @param f frame
+     * @return true if one is
+     */
+    public boolean contains(Frame f){
+        long key = key(f);
+        for(int i = slot(key); keys[i] != 0; i = (i + 1) & mask){
+            if(keys[i] == key) return frames[i].getData().equals(f.getData());
+        }
+        return false;
+    }
+
+    /**
+     * Index a frame joining the queue (if the index is full, or a frame with the same key is already indexed, the
+     * frame is left out)
+     * @param f frame
+     */
+    public void add(Frame f){
+        if(size >= limit) return;
+        long key = key(f);
+        int i = slot(key);
+        while(keys[i] != 0){
+            if(keys[i] == key) return;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        frames[i] = f;
+        size++;
+    }
+
+    /**
+     * Unindex a frame leaving the queue (nothing happens if it was never indexed)
+     * @param f frame
+     */
+    public void remove(Frame f){
+        long key = key(f);
+        for(int i = slot(key); keys[i] != 0; i = (i + 1) & mask){
+            if(keys[i] == key){
+                if(frames[i] == f) delete(i);
+                return;
+            }
+        }
+    }
+
+    //empty a slot, shifting back any later entries of its probe run that would otherwise no longer be found
+    private void delete(int i){
+        size--;
+        for(int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask){
+            //an entry can fill the hole if the hole lies between its home slot and where it is now
+            if(((j - slot(keys[j])) & mask) >= ((j - i) & mask)){
+                keys[i] = keys[j];
+                frames[i] = frames[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        frames[i] = null;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Token bucket policer for a port's ingress (used by NodeThread, per node, and SwitchThread, per network)
+ * <p>A port may take in frames at a sustained rate, plus a burst. Frames over that are excess, and the port either
+ * delays them (stops reading until they conform, which pushes back on the sender), drops them, or drops them and
+ * sends the sender a congestion nack (code 8) so it backs off right away.
+ * <p>Kept as a virtual scheduling time (GCRA, equivalent to a token bucket): one long, updated by the port's read
+ * thread alone, so policing a frame takes no lock and allocates nothing. All times are in nanoseconds.
+ */
+public class Policer {
+    //actions on excess frames
+    public final static int DELAY = 0, DROP = 1, NACK = 2;
+    private final static String[] ACTIONS = {"delay", "drop", "nack"};
+    private final double rate;
+    private final int burst, action;
+    //time one frame's worth of tokens takes to refill, and how far ahead of schedule a burst may run
+    private final long interval, tolerance;
+    //time the bucket is next full again, as if every frame so far had come in exactly on schedule
+    private long tat;
+
+    /**
+     * Policer constructor
+     * @param rate sustained rate, in frames per second
+     * @param burst frames that may come in back to back on top of it
+     * @param action DELAY, DROP or NACK
+     */
+    public Policer(double rate, int burst, int action){
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.action = action;
+        this.interval = Math.max(1, (long) (1e9 / rate));
+        this.tolerance = (this.burst - 1) * interval;
+    }
+
+    /**
+     * Get a new policer with the same settings and a full bucket (e.g. one per port)
+     * @return new policer
+     */
+    public Policer copy(){
+        return new Policer(rate, burst, action);
+    }
+
+    public int getAction(){return this.action;}
+    public String toString(){return rate + " frames/s, burst " + burst + ", " + ACTIONS[action];}
+
+    /**
+     * Police a frame arriving now. A conforming frame takes its token; an excess frame takes nothing.
+     * @param now current time
+     * @return 0 if the frame conforms, or how long until it would
+     */
+    public long police(long now){
+        long earliest = tat - tolerance;
+        if(now < earliest) return earliest - now;
+        tat = Math.max(now, tat) + interval;
+        return 0;
+    }
+}
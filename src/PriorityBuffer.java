@@ -0,0 +1,78 @@
+import java.util.LinkedList;
+
+/**
+ * A switch buffer with two priority classes (used by Switch and CentralSwitch)
+ * <p>Acks and control frames (firewall rules, ack 1, congestion nacks...) go in the top class, node data in the bulk
+ * class, so under load an ack doesn't wait behind data and cause the retransmission it was sent to prevent. Each
+ * class is a FIFO, so frames of a flow stay in order within their class.
+ * <p>The top class is served first. With a weight, a waiting data frame is served after every that many top class
+ * frames, so a flood of acks can't starve data completely; with weight 0 the priority is strict.
+ * <p>Data frames waiting are indexed (see PendingIndex), so a retransmission of one still waiting can be spotted.
+ * <p>Not thread-safe: callers hold the buffer's lock, like they would a list's.
+ */
+public class PriorityBuffer {
+    private final LinkedList<Frame> control, bulk;
+    private final PendingIndex pending;
+    private int weight;
+    //top class frames served in a row while data was waiting
+    private int run;
+
+    /**
+     * PriorityBuffer constructor
+     * @param weight top class frames served per data frame while both are waiting (0 for strict priority)
+     */
+    public PriorityBuffer(int weight){
+        this.control = new LinkedList<>();
+        this.bulk = new LinkedList<>();
+        this.pending = new PendingIndex(8192);
+        this.weight = Math.max(0, weight);
+    }
+
+    public void setWeight(int weight){this.weight = Math.max(0, weight);}
+
+    /**
+     * Check which class a frame belongs to
+     * @param f frame
+     * @return true for node data (bulk class), false for acks and control frames (top class)
+     */
+    public static boolean isBulk(Frame f){
+        return f.getSize() > 0 && f.getSource()[0] > 0 && f.getDest()[1] != 0;
+    }
+
+    public void add(Frame f){
+        if(isBulk(f)){
+            bulk.add(f);
+            pending.add(f);
+        } else control.add(f);
+    }
+
+    /**
+     * Check whether a copy of a data frame (same source, destination, sequence number and data) is already waiting
+     * @param f frame
+     * @return true if one is
+     */
+    public boolean isPending(Frame f){
+        return isBulk(f) && pending.contains(f);
+    }
+
+    /**
+     * Take the next frame to forward
+     * @return the frame
+     * @throws java.util.NoSuchElementException if the buffer is empty
+     */
+    public Frame remove(){
+        if(control.isEmpty() || (weight > 0 && run >= weight && !bulk.isEmpty())){
+            run = 0;
+            Frame f = bulk.remove();
+            pending.remove(f);
+            return f;
+        }
+        if(!bulk.isEmpty()) run++;
+        return control.remove();
+    }
+
+    public int size(){return control.size() + bulk.size();}
+    public int bulkSize(){return bulk.size();}
+    public int controlSize(){return control.size();}
+    public boolean isEmpty(){return control.isEmpty() && bulk.isEmpty();}
+}
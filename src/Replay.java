@@ -0,0 +1,233 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a capture (see Capture) as a load test: the traffic the captured switch took in from its ports is sent
+ * again, at its original pace, N times faster, or as fast as the network takes it
+ * <p>A network of the captured shape is started in this JVM, like LoadTest does: every network and node that sent
+ * or received a captured frame. Each captured sender is stood in for by a node fed from the capture, so the
+ * original nodes (and their input files) are not needed. Retransmissions in the capture are sent once; the stand-in
+ * nodes retransmit on their own as needed.
+ */
+public class Replay {
+    //when the replay started (System.nanoTime); capture times are counted from here
+    private static volatile long start;
+
+    /**
+     * One sender's captured data frames, handed out no sooner than their (scaled) capture time
+     */
+    private static class Paced implements FrameSource {
+        private final int netID, ID;
+        private final ArrayList<int[]> dests;
+        private final ArrayList<String> data;
+        //capture time of each frame, from the start of the capture (ns)
+        private final ArrayList<Long> times;
+        //how many times faster than captured (0 for as fast as possible)
+        private final double speed;
+        private int i;
+        private long lastOffset;
+        private int SN;
+
+        private Paced(int netID, int ID, double speed){
+            this.netID = netID;
+            this.ID = ID;
+            this.speed = speed;
+            this.dests = new ArrayList<>();
+            this.data = new ArrayList<>();
+            this.times = new ArrayList<>();
+        }
+
+        private void add(Frame f, long time){
+            dests.add(f.getDest());
+            data.add(f.getData());
+            times.add(time);
+        }
+
+        private int count(){return data.size();}
+
+        @Override
+        public Frame peek(){
+            if(i < data.size()) return new Frame(netID, ID, dests.get(i)[0], dests.get(i)[1], SN, data.get(i));
+            //add in completion control message
+            if(i == data.size()) return new Frame(netID, ID, 0, 0, SN, 5);
+            return null;
+        }
+
+        @Override
+        public Frame next(){
+            Frame f = peek();
+            if(f == null) return null;
+            lastOffset = i;
+            i++;
+            SN = (SN + 1) & 0xFF;
+            return f;
+        }
+
+        @Override
+        public long nextTime(){
+            if(speed == 0 || i >= times.size()) return 0;
+            return start + (long) (times.get(i) / speed);
+        }
+
+        @Override
+        public long lastOffset(){return this.lastOffset;}
+
+        @Override
+        public long position(){return this.i;}
+
+        @Override
+        public int nextSN(){return this.SN;}
+
+        @Override
+        public void seek(long offset, int SN){
+            this.i = (int) Math.min(offset, data.size());
+            this.SN = SN & 0xFF;
+        }
+
+        @Override
+        public boolean isEmpty(){return i > data.size();}
+
+        @Override
+        public void close(){}
+    }
+
+    /**
+     * Counts deliveries across every node
+     */
+    private static class Counter implements NodeListener {
+        private final AtomicLong delivered = new AtomicLong(), retransmitted = new AtomicLong();
+
+        @Override
+        public void sent(Frame f, long now){}
+
+        @Override
+        public void retransmitted(Frame f, long now){retransmitted.incrementAndGet();}
+
+        @Override
+        public void acked(Frame f, long now){}
+
+        @Override
+        public void nacked(Frame f, long now){}
+
+        @Override
+        public void delivered(Frame f, long now){delivered.incrementAndGet();}
+    }
+
+    public static void main(String[] args){
+        if(args.length < 1 || args.length > 2){
+            System.out.println("Use: java Replay [capture file] [speed]");
+            System.out.println("Speed is 1 for the captured pace (the default), N for N times faster, or max.");
+            return;
+        }
+        //Variable controls
+        int port = 1234;
+        int masterPort = 4321;
+        boolean memoryTransport = false;
+
+        double speed = args.length < 2 ? 1 : args[1].equals("max") ? 0 : Double.parseDouble(args[1]);
+        if(speed < 0){
+            System.out.println("Please use a positive speed, or max");
+            return;
+        }
+        ArrayList<Capture.Record> records;
+        try{
+            records = Capture.read(new File(args[0]));
+        } catch (IOException e){
+            System.out.println("Could not read capture " + args[0]);
+            e.printStackTrace();
+            return;
+        }
+        //senders and their frames: data frames into the switch from a node. Control traffic (network 0, and the
+        //firewall rules from network -1) is left to the new network.
+        TreeMap<Integer, TreeSet<Integer>> nets = new TreeMap<>();
+        Map<Integer, Paced> senders = new HashMap<>();
+        //last data seen per sender, destination and sequence number, to spot retransmissions (senders number their
+        //frames per destination)
+        Map<Long, String[]> seen = new HashMap<>();
+        long first = -1;
+        int frames = 0;
+        for(Capture.Record r: records){
+            Frame f = r.frame;
+            int[] src = f.getSource(), dest = f.getDest();
+            if(r.direction != Capture.IN || f.getSize() == 0) continue;
+            if(src[0] < 1 || src[0] >= Frame.TRACED || src[1] < 1 || dest[0] < 1 || dest[0] >= Frame.TRACED || dest[1] < 1) continue;
+            int key = (src[0] << 8) | src[1];
+            String[] last = seen.computeIfAbsent(((long) key << 16) | (dest[0] << 8) | dest[1], k -> new String[256]);
+            if(f.getData().equals(last[f.getSN()])) continue;
+            last[f.getSN()] = f.getData();
+            if(first < 0) first = r.time;
+            senders.computeIfAbsent(key, k -> new Paced(src[0], src[1], speed)).add(f, r.time - first);
+            nets.computeIfAbsent(src[0], k -> new TreeSet<>()).add(src[1]);
+            nets.computeIfAbsent(dest[0], k -> new TreeSet<>()).add(dest[1]);
+            frames++;
+        }
+        if(frames == 0){
+            System.out.println("No node traffic in " + args[0]);
+            return;
+        }
+        //every network up to the highest one gets a switch, with at least one node
+        int maxSwitch = nets.lastKey();
+        for(int net = 1; net <= maxSwitch; net++) nets.computeIfAbsent(net, k -> new TreeSet<>()).add(1);
+        System.out.println("Replaying " + frames + " frames from " + senders.size() + " senders in " + maxSwitch
+                + " networks, at " + (speed == 0 ? "max speed" : speed + "x"));
+
+        try{
+            //firewall as in firewall.txt, if there is one
+            File firewall = new File("firewall.txt");
+            boolean temporary = !firewall.exists();
+            if(temporary){
+                firewall = File.createTempFile("replay", ".firewall");
+                firewall.deleteOnExit();
+            }
+            Main.clearStale();
+            Counter counter = new Counter();
+            Transport transport = memoryTransport ? new MemoryTransport() : new SocketTransport();
+            CentralSwitch master = new CentralSwitch(masterPort, maxSwitch, firewall, false);
+            master.setSpoolPolicy(true, 64L << 20, 60000);
+            master.setTransport(transport);
+            Switch[] switches = new Switch[maxSwitch];
+            ArrayList<Node> nodes = new ArrayList<>();
+            for(int net = 1; net <= maxSwitch; net++){
+                switches[net-1] = new Switch(port+net-1, net, masterPort, nets.get(net).size(), false);
+                switches[net-1].setSpoolPolicy(true, 64L << 20, 60000);
+                switches[net-1].setTransport(transport);
+                for(int ID: nets.get(net)){
+                    Node n = new Node(port+net-1, ID, net, false);
+                    n.setSessionResume(true);
+                    n.setTransport(transport);
+                    Paced source = senders.get((net << 8) | ID);
+                    n.setInput(source != null ? source : new Paced(net, ID, speed));
+                    n.setListener(counter);
+                    nodes.add(n);
+                }
+            }
+            master.start();
+            master.awaitReady();
+            for(Switch s: switches) s.start();
+            for(Switch s: switches) s.awaitReady();
+            start = System.nanoTime();
+            for(Node n: nodes) n.start();
+            master.join();
+            for(Switch s: switches) s.join();
+            for(Node n: nodes) n.join();
+            double seconds = (master.getFinishedAt() - start) / 1e9;
+            if(temporary && !firewall.delete()) firewall.deleteOnExit();
+            long span = 0;
+            for(Paced p: senders.values()) span = Math.max(span, p.count() == 0 ? 0 : p.times.get(p.count() - 1));
+            System.out.println("-------------------------------------------------");
+            System.out.println(String.format("Captured span: %.3f s; replayed in %.3f s", span / 1e9, seconds));
+            System.out.println(String.format("Delivered %d of %d frames (%.0f frames/s), %d retransmissions",
+                    counter.delivered.get(), frames, counter.delivered.get() / seconds, counter.retransmitted.get()));
+            System.out.println("-------------------------------------------------");
+        } catch (IOException | InterruptedException e){
+            System.out.println("There was an error while replaying");
+            e.printStackTrace();
+        }
+    }
+}
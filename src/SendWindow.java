@@ -0,0 +1,294 @@
+/**
+ * Sender-side congestion control for a node
+ * <p>Keeps an AIMD congestion window over the frames a node has in flight. The window grows by one frame per
+ * round trip on every code 3 ack, and is halved on a retransmission timeout, a code 2 (CRC error) reply or a code 8
+ * (congestion) nack.
+ * Sends are paced across the smoothed round trip time instead of being burst out back to back.
+ * <p>Frames are tracked by slot: the sender's own count of the frames it has sent, mod 256. On the wire, sequence
+ * numbers count per destination instead (see Node), so each receiver sees an unbroken run from every sender and its
+ * duplicate filter can tell old frames from new ones; replies are matched back to their slot with find().
+ * The frames in flight never span more than MAX_WINDOW slots, so they never span more than MAX_WINDOW sequence
+ * numbers to any one destination either, which is all the receiver's duplicate filter trusts.
+ * All times are in nanoseconds and are passed in by the caller, so the same logic can run on a virtual clock.
+ */
+public class SendWindow {
+    //hard cap on the congestion window, and on the span of the frames in flight (frames); see DuplicateFilter
+    public final static int MAX_WINDOW = 64;
+    //floor for the retransmission timeout, so a burst of fast acks can't make the sender trigger-happy
+    private final static long MIN_RTO = 200_000_000L;
+    //shortest wait before resending a frame a switch shed (code 8), for when there is no RTT sample yet
+    private final static long MIN_BACKOFF = 1_000_000L;
+    private final long maxRto;
+    private final int retry;
+    //in-flight frames and their bookkeeping, indexed by slot
+    private final Frame[] pending;
+    private final long[] sentAt;
+    private final int[] tries;
+    //frames due for resending because a switch shed them (no further backoff when they go), and whether the last
+    //retransmission was one of those
+    private final boolean[] shed;
+    private boolean lastShed;
+    //oldest slot that may still be in flight, and the next slot to be sent
+    private int base, next;
+    private int inFlight;
+    private double cwnd;
+    //smoothed round trip time and its variance (0 until the first sample), and current retransmission timeout
+    private long srtt, rttvar, rto;
+    //earliest time the pacer will release the next frame
+    private long nextSend;
+
+    /**
+     * SendWindow constructor
+     * @param period initial (and maximum) retransmission timeout, in milliseconds
+     * @param retry number of retransmissions before a frame is given up on
+     */
+    public SendWindow(long period, int retry){
+        this.maxRto = period * 1_000_000L;
+        this.retry = retry;
+        this.pending = new Frame[256];
+        this.sentAt = new long[256];
+        this.tries = new int[256];
+        this.shed = new boolean[256];
+        this.base = 0;
+        this.next = 0;
+        this.inFlight = 0;
+        this.cwnd = 1;
+        this.srtt = 0;
+        this.rttvar = 0;
+        //no samples yet, so be as patient as the fixed timer used to be
+        this.rto = maxRto;
+        this.nextSend = 0;
+    }
+
+    //getters
+    public int inFlight(){return this.inFlight;}
+    public double getWindow(){return this.cwnd;}
+    public long getRtt(){return this.srtt;}
+    public long getRto(){return this.rto;}
+    public long getNextSend(){return this.nextSend;}
+
+    /**
+     * Check whether the window and the pacer allow a new frame to go out
+     * @param now current time
+     * @return true if a new frame may be sent
+     */
+    public boolean canSend(long now){
+        return inFlight < (int) cwnd && now >= nextSend && pending[next] == null
+                && (inFlight == 0 || ((next - base) & 0xFF) < MAX_WINDOW);
+    }
+
+    /**
+     * Record a newly sent frame
+     * @param f frame that was sent (the real frame, even if a corrupted copy went on the wire)
+     * @param sn slot: the sender's own sequence number for the frame
+     * @param now current time
+     */
+    public void sent(Frame f, int sn, long now){
+        sn &= 0xFF;
+        if(inFlight == 0) base = sn;
+        pending[sn] = f;
+        sentAt[sn] = now;
+        tries[sn] = 0;
+        shed[sn] = false;
+        inFlight++;
+        next = (sn + 1) & 0xFF;
+        //pace: spread one window's worth of frames over one round trip
+        nextSend = now + (long) (srtt / cwnd);
+    }
+
+    /**
+     * Find the in-flight frame a reply is about
+     * @param net network ID the frame was sent to (the reply's source)
+     * @param node node ID the frame was sent to
+     * @param sn the frame's sequence number on the wire
+     * @return its slot, or -1 if it is not in flight
+     */
+    public int find(int net, int node, int sn){
+        for(int i = 0, s = base; i < MAX_WINDOW * 2 && s != next && inFlight > 0; i++, s = (s + 1) & 0xFF){
+            Frame f = pending[s];
+            if(f != null && f.getSN() == sn && f.getDest()[0] == net && f.getDest()[1] == node) return s;
+        }
+        return -1;
+    }
+
+    /**
+     * Find an in-flight frame's slot
+     * @param f frame
+     * @return its slot, or -1 if it is not in flight
+     */
+    public int slot(Frame f){
+        return find(f.getDest()[0], f.getDest()[1], f.getSN());
+    }
+
+    /**
+     * Handle a code 3 ack: release the frame, take an RTT sample, and grow the window additively
+     * @param sn acknowledged slot (see find)
+     * @param now current time
+     * @return the acknowledged frame, or null if it was not in flight (late or duplicate ack)
+     */
+    public Frame acknowledge(int sn, long now){
+        Frame f = release(sn);
+        if(f == null) return null;
+        //Karn's rule: only sample frames that were never retransmitted, the others are ambiguous
+        if(tries[sn & 0xFF] == 0) sample(now - sentAt[sn & 0xFF]);
+        cwnd = Math.min(MAX_WINDOW, cwnd + 1 / cwnd);
+        return f;
+    }
+
+    /**
+     * Handle a code 2 ack (CRC error at the receiver): halve the window and hand the frame back for resending
+     * @param sn slot reported as corrupt (see find)
+     * @param now current time
+     * @return the frame to resend, or null if it was not in flight
+     */
+    public Frame corrupted(int sn, long now){
+        if(sn < 0 || pending[sn &= 0xFF] == null) return null;
+        decrease();
+        tries[sn]++;
+        sentAt[sn] = now;
+        return pending[sn];
+    }
+
+    /**
+     * Handle a code 8 nack (a switch shed the frame under overload): halve the window, and make the frame due for
+     * resending after one smoothed round trip instead of a full timeout
+     * @param sn slot that was shed (see find)
+     * @param now current time
+     * @return the shed frame, or null if it was not in flight
+     */
+    public Frame congested(int sn, long now){
+        if(sn < 0 || pending[sn &= 0xFF] == null || shed[sn]) return null;
+        decrease();
+        shed[sn] = true;
+        //retransmit() sends a frame once rto has passed since sentAt
+        sentAt[sn] = now - rto + Math.min(rto, Math.max(srtt, MIN_BACKOFF));
+        return pending[sn];
+    }
+
+    /**
+     * Release a frame without touching the window (code 4 nack; the frame is firewalled and will never be acked)
+     * @param sn slot (see find)
+     * @return the released frame, or null if it was not in flight
+     */
+    public Frame release(int sn){
+        if(sn < 0) return null;
+        sn &= 0xFF;
+        Frame f = pending[sn];
+        if(f == null) return null;
+        pending[sn] = null;
+        inFlight--;
+        //advance base past everything that has been released
+        while(inFlight > 0 && pending[base] == null) base = (base + 1) & 0xFF;
+        return f;
+    }
+
+    /**
+     * Find a frame that has used up all of its retransmissions and timed out again; it is removed from the window.
+     * @param now current time
+     * @return the abandoned frame, or null if there is none
+     */
+    public Frame giveUp(long now){
+        for(int i = 0, sn = base; i < MAX_WINDOW * 2 && sn != next; i++, sn = (sn + 1) & 0xFF){
+            if(pending[sn] != null && tries[sn] >= retry && !shed[sn] && now - sentAt[sn] >= rto){
+                return release(sn);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a frame whose retransmission timer has expired. Its timer is restarted, the retransmission timeout is
+     * backed off, and the window is halved (unless a switch shed the frame; see congested).
+     * @param now current time
+     * @return the frame to retransmit, or null if there is none
+     */
+    public Frame retransmit(long now){
+        for(int i = 0, sn = base; i < MAX_WINDOW * 2 && sn != next; i++, sn = (sn + 1) & 0xFF){
+            if(pending[sn] != null && (tries[sn] < retry || shed[sn]) && now - sentAt[sn] >= rto){
+                sentAt[sn] = now;
+                //a shed frame has already been backed off for, and the switch said it was lost, so resending it
+                //doesn't use up a retry; a timeout does both
+                lastShed = shed[sn];
+                if(!shed[sn]){
+                    tries[sn]++;
+                    rto = Math.min(maxRto, rto * 2);
+                    decrease();
+                }
+                shed[sn] = false;
+                return pending[sn];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the oldest frame still in flight
+     * @return its slot, or -1 if nothing is in flight
+     */
+    public int oldest(){
+        return inFlight > 0 ? base : -1;
+    }
+
+    /**
+     * Make every in-flight frame due for retransmission right away, e.g. after the connection was re-established
+     * @param now current time
+     */
+    public void rewind(long now){
+        for(int i = 0, sn = base; i < MAX_WINDOW * 2 && sn != next && inFlight > 0; i++, sn = (sn + 1) & 0xFF){
+            if(pending[sn] != null) sentAt[sn] = now - rto;
+        }
+    }
+
+    /**
+     * Get the number of retransmissions made for an in-flight frame
+     * @param sn slot (see slot)
+     * @return retransmission count
+     */
+    public int getTries(int sn){return tries[sn & 0xFF];}
+    public long getSentAt(int sn){return sentAt[sn & 0xFF];}
+    //whether the last frame retransmit() returned was one a switch shed, rather than a timeout
+    public boolean wasShed(){return this.lastShed;}
+
+    /**
+     * Time until the next timer (pacer or retransmission) could fire, for idle waiting
+     * @param now current time
+     * @return nanoseconds until something may need doing, at least 0
+     */
+    public long idleTime(long now){
+        long wait = inFlight < (int) cwnd ? nextSend - now : rto;
+        for(int i = 0, sn = base; i < MAX_WINDOW * 2 && sn != next && inFlight > 0; i++, sn = (sn + 1) & 0xFF){
+            if(pending[sn] != null) wait = Math.min(wait, sentAt[sn] + rto - now);
+        }
+        return Math.max(0, wait);
+    }
+
+    /**
+     * Time until the earliest retransmission (or give-up) timer expires
+     * @param now current time
+     * @return nanoseconds until then, at least 0, or Long.MAX_VALUE if nothing is in flight
+     */
+    public long timerTime(long now){
+        long wait = Long.MAX_VALUE;
+        for(int i = 0, sn = base; i < MAX_WINDOW * 2 && sn != next && inFlight > 0; i++, sn = (sn + 1) & 0xFF){
+            if(pending[sn] != null) wait = Math.min(wait, sentAt[sn] + rto - now);
+        }
+        return Math.max(0, wait);
+    }
+
+    //multiplicative decrease
+    private void decrease(){
+        cwnd = Math.max(1, cwnd / 2);
+    }
+
+    //Jacobson/Karels RTT estimator
+    private void sample(long rtt){
+        if(srtt == 0){
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(maxRto, srtt + 4 * rttvar));
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Discrete-event simulation mode
+ * <p>Runs a whole network on one thread against a virtual clock: there are no sockets, no sleeps and no
+ * threads to schedule, so an hour of traffic on a large network takes seconds, and the same seed always gives
+ * the same result. Everything that happens is an event on a single queue, ordered by virtual time (ties broken
+ * by the order events were scheduled).
+ * <p>The protocol logic is the project's own: nodes run their ARQ on SendWindow and DuplicateFilter, with the
+ * same 5% corrupt sends, 5% dropped acks, ack codes and fin handling as Node; switches use Switch.firewalled and
+ * CentralSwitch.firewalled and forward like their manager threads. Links are modelled with a latency and a
+ * bandwidth per direction, so frames queue behind each other on a busy link.
+ * <p>Differences from a live run: nodes register with their switch (and switches with the master) at time 0, and
+ * switch tables are hash maps rather than lists, so the tables scale to very large networks. A node's send window is
+ * dropped while it has nothing in flight and nothing to send, and a new one starts when it sends again (much like
+ * a TCP sender restarting after idle), so memory follows the number of active nodes. Traffic is generated rather
+ * than read from files: each node sends a fixed number of frames to random nodes, spread over the run.
+ */
+public class Simulator {
+    //node ARQ settings, as in Node
+    private final static long PERIOD = 6000;
+    private final static int RETRY = 3;
+    //event types
+    private final static int NODE_RX = 0, NODE_WAKE = 1, SWITCH_RX = 2, SWITCH_RX_MASTER = 3, MASTER_RX = 4;
+
+    private final int frames;
+    private final long duration;
+    //link model: one-way latency (ns) and bandwidth (bits/s), for node links and for switch-to-master trunks
+    private long nodeLatency, trunkLatency;
+    private long nodeBandwidth, trunkBandwidth;
+    private final Random random;
+    private final PriorityQueue<Event> events;
+    private long now, scheduled;
+    private final SimNode[] nodes;
+    private final SimSwitch[] switches;
+    //global firewall (network IDs), as in CentralSwitch
+    private final ArrayList<Integer> firewall;
+    private int finishedSwitches;
+    private long finishedAt;
+    //counters
+    private long sent, retransmitted, corrupted, timeouts, delivered, duplicates, droppedAcks, nacks, processed;
+
+    /**
+     * Simulator constructor
+     * @param maxNode number of nodes
+     * @param maxSwitch number of switches
+     * @param frames data frames each node sends
+     * @param duration virtual time the traffic is spread over, in milliseconds
+     * @param seed random seed
+     */
+    public Simulator(int maxNode, int maxSwitch, int frames, long duration, long seed){
+        this.frames = frames;
+        this.duration = duration * 1_000_000L;
+        this.random = new Random(seed);
+        this.events = new PriorityQueue<>((a, b) -> a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.seq, b.seq));
+        this.now = 0;
+        this.scheduled = 0;
+        this.firewall = new ArrayList<>();
+        this.finishedSwitches = 0;
+        this.finishedAt = -1;
+        //defaults; see setLinks
+        this.nodeLatency = 50_000;
+        this.trunkLatency = 100_000;
+        this.nodeBandwidth = 1_000_000_000L;
+        this.trunkBandwidth = 10_000_000_000L;
+        //build the network: same node assignment as Main, from the seeded generator
+        ArrayList<int[]> list = Main.makeList(maxSwitch, maxNode, random);
+        this.switches = new SimSwitch[maxSwitch];
+        for(int i = 0; i < maxSwitch; i++) switches[i] = new SimSwitch(i + 1);
+        this.nodes = new SimNode[list.size()];
+        for(int i = 0; i < list.size(); i++){
+            int[] n = list.get(i);
+            nodes[i] = new SimNode(i, n[0], n[1]);
+            //registration: the switch learns its node (see Switch.addEntry)
+            switches[n[0] - 1].table.put(n[1], i);
+            switches[n[0] - 1].expected++;
+        }
+        loadFirewall(new File("firewall.txt"));
+    }
+
+    /**
+     * Set the link model. Must be called before the simulation is run.
+     * @param nodeLatency node link one-way latency, in microseconds
+     * @param nodeBandwidth node link bandwidth, in bits per second
+     * @param trunkLatency switch-to-master link one-way latency, in microseconds
+     * @param trunkBandwidth switch-to-master link bandwidth, in bits per second
+     */
+    public void setLinks(long nodeLatency, long nodeBandwidth, long trunkLatency, long trunkBandwidth){
+        this.nodeLatency = nodeLatency * 1000;
+        this.nodeBandwidth = nodeBandwidth;
+        this.trunkLatency = trunkLatency * 1000;
+        this.trunkBandwidth = trunkBandwidth;
+    }
+
+    //read firewall.txt in the same format as CentralSwitch, if there is one
+    private void loadFirewall(File file){
+        try(Scanner scanner = new Scanner(file)){
+            while(scanner.hasNextLine()){
+                String[] d = scanner.nextLine().split(":")[0].split("_");
+                int n = Integer.parseInt(d[0].trim());
+                if(d[1].trim().equals("#")) firewall.add(n);
+                else if(n >= 1 && n <= switches.length) switches[n - 1].firewall.add(Integer.parseInt(d[1].trim()));
+            }
+        } catch (FileNotFoundException e){
+            //no firewall
+        }
+    }
+
+    /**
+     * Run until every switch has reported finished (or nothing is left to happen)
+     */
+    public void run(){
+        //every node's first frame becomes ready at a random time
+        for(SimNode n: nodes){
+            n.ready = nextReady(n.left);
+            n.schedule(n.ready);
+        }
+        while(finishedAt < 0 && !events.isEmpty()){
+            Event e = events.poll();
+            now = e.time;
+            processed++;
+            switch (e.type){
+                case NODE_RX -> nodes[e.target].receive(e.frame);
+                case NODE_WAKE -> {
+                    //stale wakeups (the node rescheduled since) are skipped
+                    if(nodes[e.target].wakeAt == now) nodes[e.target].wake();
+                }
+                case SWITCH_RX -> switches[e.target].fromNode(e.frame);
+                case SWITCH_RX_MASTER -> switches[e.target].fromMaster(e.frame);
+                case MASTER_RX -> master(e.frame);
+            }
+        }
+    }
+
+    //time a node's next frame becomes ready, given that it has left frames still to send: its frames fall at
+    //uniformly random times over the run, so this is the earliest of left random times between now and the end
+    private long nextReady(int left){
+        if(now >= duration) return now;
+        return now + (long) ((duration - now) * (1 - Math.pow(random.nextDouble(), 1.0 / left)));
+    }
+
+    private void schedule(long time, int type, int target, Frame frame){
+        events.add(new Event(time, scheduled++, type, target, frame));
+    }
+
+    //put a frame on a link: it waits for the link to be free, takes its transmission time, then its latency
+    private long transmit(long[] busy, int index, Frame f, long latency, long bandwidth){
+        int bytes = 7 + Math.max(1, f.getSize());
+        long start = Math.max(now, busy[index]);
+        busy[index] = start + bytes * 8_000_000_000L / bandwidth;
+        return busy[index] + latency;
+    }
+
+    //CentralSwitch: a frame from switch k
+    private void master(Frame message){
+        //any frame with destination node 0 is a switch's fin (see SwitchThread)
+        if(message.getDest()[1] == 0){
+            finishedSwitches++;
+            if(finishedSwitches == switches.length) finishedAt = now;
+            return;
+        }
+        if(CentralSwitch.firewalled(firewall, message)){
+            nacks++;
+            message = message.nack();
+        }
+        int net = message.getDest()[0];
+        //unknown network: nothing to flood to in a simulated network
+        if(net < 1 || net > switches.length) return;
+        SimSwitch s = switches[net - 1];
+        schedule(transmit(s.trunkDown, 0, message, trunkLatency, trunkBandwidth), SWITCH_RX_MASTER, net - 1, message);
+    }
+
+    /**
+     * Print the results. Everything but the wall clock line is identical for the same seed.
+     */
+    public void report(long wallNanos){
+        long end = finishedAt >= 0 ? finishedAt : now;
+        System.out.println("-------------------------------------------------");
+        System.out.println("Simulated " + nodes.length + " nodes on " + switches.length + " switches, " + frames + " frames each");
+        System.out.println("Network " + (finishedAt >= 0 ? "finished" : "stalled") + " at " + String.format("%.3f", end / 1e9) + " s virtual time");
+        System.out.println("Frames: " + sent + " sent, " + retransmitted + " retransmitted, " + corrupted + " corrupted, "
+                + timeouts + " given up, " + nacks + " firewalled");
+        System.out.println("Receivers: " + delivered + " delivered, " + duplicates + " duplicates, " + droppedAcks + " acks dropped");
+        System.out.println("Events: " + processed);
+        System.out.println("Wall clock: " + wallNanos / 1_000_000 + " ms (" + (wallNanos > 0 ? processed * 1_000_000_000L / wallNanos : 0) + " events/s)");
+        System.out.println("-------------------------------------------------");
+    }
+
+    private static class Event {
+        private final long time, seq;
+        private final int type, target;
+        private final Frame frame;
+
+        private Event(long time, long seq, int type, int target, Frame frame){
+            this.time = time;
+            this.seq = seq;
+            this.type = type;
+            this.target = target;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Simulated Node: the send and receive blocks of Node.session, driven by events instead of a polling loop
+     */
+    private class SimNode {
+        private final int index, netID, ID;
+        private SendWindow window;
+        private DuplicateFilter saved;
+        //data frames left to send, next sequence number, time the next data frame is ready
+        private int left, sn;
+        //next sequence number on the wire for each destination, as in Node (null until the first frame)
+        private HashMap<Integer, Integer> numbers;
+        private long ready;
+        private boolean finSent;
+        //set by the switch once it has counted this node's fin
+        private boolean counted;
+        //time of the pending wakeup (Long.MAX_VALUE if none)
+        private long wakeAt;
+        //busy-until times of this node's links to and from its switch
+        private final long[] up, down;
+
+        private SimNode(int index, int netID, int ID){
+            this.index = index;
+            this.netID = netID;
+            this.ID = ID;
+            this.left = frames;
+            this.sn = 0;
+            this.finSent = false;
+            this.counted = false;
+            this.wakeAt = Long.MAX_VALUE;
+            this.up = new long[1];
+            this.down = new long[1];
+        }
+
+        private void schedule(long time){
+            if(time >= wakeAt && wakeAt > now) return;
+            wakeAt = time;
+            Simulator.this.schedule(time, NODE_WAKE, index, null);
+        }
+
+        //frame onto the uplink
+        private void send(Frame f){
+            Simulator.this.schedule(transmit(up, 0, f, nodeLatency, nodeBandwidth), SWITCH_RX, netID - 1, f);
+        }
+
+        private boolean hasWork(){
+            return (left > 0 && now >= ready) || (left == 0 && !finSent);
+        }
+
+        //sending block of Node.session
+        private void wake(){
+            wakeAt = Long.MAX_VALUE;
+            if(window == null){
+                if(!hasWork()){
+                    if(left > 0) schedule(ready);
+                    return;
+                }
+                window = new SendWindow(PERIOD, RETRY);
+            }
+            Frame outMsg;
+            while((outMsg = window.giveUp(now)) != null) timeouts++;
+            while((outMsg = window.retransmit(now)) != null){
+                retransmitted++;
+                send(outMsg);
+            }
+            //the fin waits until every data frame is settled, as in Node
+            while(window.canSend(now) && hasWork() && (left > 0 || window.inFlight() == 0)){
+                if(left > 0){
+                    int dest = random.nextInt(nodes.length - 1);
+                    if(dest >= index) dest++;
+                    outMsg = new Frame(netID, ID, nodes[dest].netID, nodes[dest].ID, number(nodes[dest].netID,
+                            nodes[dest].ID), "To node " + nodes[dest].netID + "_" + nodes[dest].ID + "; " + random.nextLong());
+                    left--;
+                    if(left > 0) ready = nextReady(left);
+                } else {
+                    outMsg = new Frame(netID, ID, 0, 0, number(0, 0), 5);
+                    finSent = true;
+                }
+                sent++;
+                //5% chance to send a corrupted copy; the window keeps the real frame
+                if(random.nextInt(100) + 1 > 5) send(outMsg);
+                else {
+                    corrupted++;
+                    send(outMsg.corrupt(random));
+                }
+                window.sent(outMsg, sn, now);
+                sn = (sn + 1) & 0xFF;
+            }
+            idle();
+        }
+
+        //next wire sequence number to a destination
+        private int number(int net, int node){
+            if(numbers == null) numbers = new HashMap<>();
+            int n = numbers.getOrDefault((net << 8) | node, 0);
+            numbers.put((net << 8) | node, (n + 1) & 0xFF);
+            return n;
+        }
+
+        //release the window when there is nothing to do, otherwise wait for the next timer or send slot
+        private void idle(){
+            if(window.inFlight() == 0 && !hasWork()){
+                window = null;
+                if(left > 0) schedule(ready);
+                return;
+            }
+            long next = window.inFlight() > 0 ? now + window.timerTime(now) : Long.MAX_VALUE;
+            if(hasWork() && window.inFlight() < (int) window.getWindow() && (left > 0 || window.inFlight() == 0)){
+                next = Math.min(next, window.getNextSend());
+            } else if(left > 0 && window.inFlight() < (int) window.getWindow()){
+                next = Math.min(next, Math.max(ready, window.getNextSend()));
+            }
+            if(next != Long.MAX_VALUE) schedule(Math.max(next, now + 1));
+        }
+
+        //receiving block of Node.session
+        private void receive(Frame msg){
+            if(msg.getDest()[0] != netID || msg.getDest()[1] != ID) return;
+            if(msg.getCrc() != msg.calcCrc()){
+                send(new Frame(netID, ID, msg.getSource()[0], msg.getSource()[1], msg.getSN(), 2));
+            } else if(msg.getSize() > 0){
+                if(random.nextInt(100) + 1 > 5) send(new Frame(netID, ID, msg.getSource()[0], msg.getSource()[1], msg.getSN(), 3));
+                else droppedAcks++;
+                if(saved == null) saved = new DuplicateFilter();
+                if(saved.accept(msg.getSource()[0], msg.getSource()[1], 0, msg.getSN())) delivered++;
+                else duplicates++;
+            } else if(window != null){
+                int slot = window.find(msg.getSource()[0], msg.getSource()[1], msg.getSN());
+                if(msg.getAck() == 3) window.acknowledge(slot, now);
+                else if(msg.getAck() == 4) window.release(slot);
+                else {
+                    Frame resend = window.corrupted(slot, now);
+                    if(resend != null){
+                        retransmitted++;
+                        send(resend);
+                    }
+                }
+                //an ack may open the window
+                wake();
+            }
+        }
+    }
+
+    /**
+     * Simulated Switch: NodeThread's fin handling plus the manager thread's forwarding
+     */
+    private class SimSwitch {
+        private final int netID;
+        //node ID -> node index (registered at time 0), and firewalled node IDs
+        private final HashMap<Integer, Integer> table;
+        private final ArrayList<Integer> firewall;
+        private int expected, finished;
+        //busy-until times of the trunk to and from the master
+        private final long[] trunkUp, trunkDown;
+
+        private SimSwitch(int netID){
+            this.netID = netID;
+            this.table = new HashMap<>();
+            this.firewall = new ArrayList<>();
+            this.expected = 0;
+            this.finished = 0;
+            this.trunkUp = new long[1];
+            this.trunkDown = new long[1];
+        }
+
+        private void toMaster(Frame f){
+            schedule(transmit(trunkUp, 0, f, trunkLatency, trunkBandwidth), MASTER_RX, netID - 1, f);
+        }
+
+        //NodeThread: a frame from one of this switch's nodes
+        private void fromNode(Frame msg){
+            if(msg.getDest()[1] == 0){
+                //fin: ack it, count it once, and tell the master once every node is done
+                Integer i = table.get(msg.getSource()[1]);
+                if(i == null) return;
+                deliver(i, new Frame(0, 0, msg.getSource()[0], msg.getSource()[1], msg.getSN(), 3));
+                if(!nodes[i].counted){
+                    nodes[i].counted = true;
+                    if(++finished == expected) toMaster(new Frame(netID, 0, 0, 0, 0, 5));
+                }
+                return;
+            }
+            forward(msg);
+        }
+
+        //central thread: a frame from the master
+        private void fromMaster(Frame msg){
+            if(msg.getDest()[0] != netID) return;
+            forward(msg);
+        }
+
+        //manager thread
+        private void forward(Frame message){
+            if(message.getDest()[0] != netID){
+                toMaster(message);
+                return;
+            }
+            if(Switch.firewalled(firewall, netID, message)){
+                nacks++;
+                toMaster(message.nack());
+                return;
+            }
+            Integer i = table.get(message.getDest()[1]);
+            //unknown node: nothing to flood to in a simulated network
+            if(i != null) deliver(i, message);
+        }
+
+        private void deliver(int i, Frame f){
+            schedule(transmit(nodes[i].down, 0, f, nodeLatency, nodeBandwidth), NODE_RX, i, f);
+        }
+    }
+
+    public static void main(String[] args){
+        if(args.length < 2){
+            System.out.println("Use: java Simulator [number of nodes] [number of switches] [seed] [simulated seconds]");
+            return;
+        }
+        //Variable controls
+        //data frames per node, default seed and simulated time (both can be given on the command line)
+        int frames = 5;
+        long seed = 1;
+        long seconds = 3600;
+        //link model: latency in microseconds, bandwidth in bits per second
+        long nodeLatency = 50;
+        long nodeBandwidth = 1_000_000_000L;
+        long trunkLatency = 100;
+        long trunkBandwidth = 10_000_000_000L;
+        int maxNode = Integer.parseInt(args[0]);
+        int maxSwitch = Integer.parseInt(args[1]);
+        if(args.length > 2) seed = Long.parseLong(args[2]);
+        if(args.length > 3) seconds = Long.parseLong(args[3]);
+        if(maxNode <= 1 || maxSwitch < 1 || maxNode < maxSwitch){
+            System.out.println("Please use more than 1 node, at least 1 switch, and no fewer nodes than switches");
+            return;
+        }
+        long start = System.nanoTime();
+        Simulator sim = new Simulator(maxNode, maxSwitch, frames, seconds * 1000, seed);
+        sim.setLinks(nodeLatency, nodeBandwidth, trunkLatency, trunkBandwidth);
+        sim.run();
+        sim.report(System.nanoTime() - start);
+    }
+}
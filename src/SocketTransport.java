@@ -0,0 +1,61 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Loopback TCP transport (the default)
+ */
+public class SocketTransport implements Transport {
+
+    @Override
+    public Listener listen(int port) throws IOException{
+        ServerSocket serverSocket = new ServerSocket(port);
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException{
+                return wrap(serverSocket.accept());
+            }
+            @Override
+            public int getPort(){
+                return serverSocket.getLocalPort();
+            }
+            @Override
+            public void close() throws IOException{
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection connect(int port) throws IOException{
+        return wrap(new Socket("localhost", port));
+    }
+
+    private static Connection wrap(Socket socket){
+        return new Connection() {
+            @Override
+            public InputStream getInputStream() throws IOException{
+                return socket.getInputStream();
+            }
+            @Override
+            public OutputStream getOutputStream() throws IOException{
+                return socket.getOutputStream();
+            }
+            @Override
+            public boolean isClosed(){
+                return socket.isClosed();
+            }
+            @Override
+            public boolean peerClosed(DataInputStream in) throws IOException{
+                return LinkProbe.closed(socket, in);
+            }
+            @Override
+            public void close() throws IOException{
+                socket.close();
+            }
+        };
+    }
+}
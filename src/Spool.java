@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Durable store-and-forward spool for frames whose destination is not reachable yet
+ * <p>Frames are appended to a log made of fixed-size, memory-mapped segment files in a directory of their own.
+ * Each frame is stored under a key (the destination's node ID in a Switch, network ID in the CentralSwitch), and
+ * replayed in arrival order once that destination's port comes up. Replayed frames are marked as consumed in place,
+ * and a segment file is deleted once nothing in it is live anymore.
+ * <p>The spool is capped both in size (the oldest segment is dropped to make room) and in age (frames older than
+ * the cap are never replayed). Existing segments are picked up again when a spool is reopened.
+ * <p>Record format: [Length (2 bytes)][Consumed (1 byte)][Key (4 bytes)][Timestamp (8 bytes)][Encoded frame].
+ * A length of 0 marks the end of a segment.
+ */
+public class Spool {
+    private final static int HEADER = 15;
+    private final File dir;
+    private final int segmentSize, maxSegments;
+    private final long maxAge;
+    private final String name;
+    //open segments, oldest first, with their IDs (file names) and count of live records
+    private final ArrayList<MappedByteBuffer> segments;
+    private final ArrayList<Integer> segmentIDs;
+    private final ArrayList<Integer> live;
+    //Format: key -> {segment ID, offset in segment, timestamp} for every live record, in append order
+    private final HashMap<Integer, ArrayList<long[]>> index;
+    //ID for the next segment created, and write offset in the newest segment
+    private int nextID, tail;
+    private long dropped;
+
+    /**
+     * Spool constructor
+     * @param dir spool directory (created if missing, existing segments are recovered)
+     * @param segmentSize size of each segment file, in bytes
+     * @param maxBytes size cap for the whole spool, in bytes
+     * @param maxAge age cap for spooled frames, in milliseconds
+     * @param name owner name for error messages
+     */
+    public Spool(File dir, int segmentSize, long maxBytes, long maxAge, String name) throws IOException{
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, maxBytes / segmentSize);
+        this.maxAge = maxAge;
+        this.name = name;
+        this.segments = new ArrayList<>();
+        this.segmentIDs = new ArrayList<>();
+        this.live = new ArrayList<>();
+        this.index = new HashMap<>();
+        this.nextID = 0;
+        this.tail = segmentSize;
+        this.dropped = 0;
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("could not create spool directory " + dir);
+        recover();
+    }
+
+    /**
+     * Remove a spool directory and everything in it
+     * @param dir spool directory
+     */
+    public static void clear(File dir){
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        for(File f: files){
+            if(!f.delete()) System.out.println("Could not delete stale spool segment " + f);
+        }
+        if(!dir.delete()) System.out.println("Could not delete stale spool directory " + dir);
+    }
+
+    //getters
+    public synchronized long getDropped(){return this.dropped;}
+
+    /**
+     * Check whether anything is waiting for a destination
+     * @param key destination key
+     * @return true if frames are spooled for the key
+     */
+    public synchronized boolean has(int key){
+        ArrayList<long[]> list = index.get(key);
+        return list != null && !list.isEmpty();
+    }
+
+    /**
+     * Append a frame to the log
+     * @param key destination key
+     * @param f frame
+     */
+    public synchronized void append(int key, Frame f) throws IOException{
+        byte[] raw = f.encode();
+        int length = HEADER + raw.length;
+        //roll over to a new segment if this one is full (leave room for the end marker)
+        if(tail + length + 2 > segmentSize) roll();
+        MappedByteBuffer seg = segments.get(segments.size() - 1);
+        long now = System.currentTimeMillis();
+        seg.putShort(tail, (short) length);
+        seg.put(tail + 2, (byte) 0);
+        seg.putInt(tail + 3, key);
+        seg.putLong(tail + 7, now);
+        seg.put(tail + HEADER, raw);
+        index.computeIfAbsent(key, k -> new ArrayList<>()).add(new long[]{segmentIDs.get(segmentIDs.size() - 1), tail, now});
+        live.set(live.size() - 1, live.get(live.size() - 1) + 1);
+        tail += length;
+    }
+
+    /**
+     * Take every frame spooled for a destination, in the order they were spooled. Expired frames are discarded.
+     * @param key destination key
+     * @return frames to deliver (empty if none)
+     */
+    public synchronized ArrayList<Frame> replay(int key){
+        ArrayList<Frame> out = new ArrayList<>();
+        ArrayList<long[]> list = index.remove(key);
+        if(list == null) return out;
+        long now = System.currentTimeMillis();
+        for(long[] r: list){
+            int s = segmentIDs.indexOf((int) r[0]);
+            MappedByteBuffer seg = segments.get(s);
+            int offset = (int) r[1];
+            if(now - r[2] < maxAge){
+                try{
+                    out.add(read(seg, offset));
+                } catch (FrameLostException e){
+                    System.out.println(name + ": spooled frame for " + key + " is damaged; dropping it");
+                }
+            } else {
+                dropped++;
+            }
+            //mark consumed in place, so a recovered spool doesn't deliver it twice
+            seg.put(offset + 2, (byte) 1);
+            live.set(s, live.get(s) - 1);
+        }
+        release();
+        return out;
+    }
+
+    /**
+     * Discard frames that have passed the age cap, and delete segments with nothing live left
+     */
+    public synchronized void expire(){
+        long now = System.currentTimeMillis();
+        for(ArrayList<long[]> list: index.values()){
+            //records for a key are in time order, so expired ones are at the front
+            while(!list.isEmpty() && now - list.get(0)[2] >= maxAge){
+                long[] r = list.remove(0);
+                int s = segmentIDs.indexOf((int) r[0]);
+                segments.get(s).put((int) r[1] + 2, (byte) 1);
+                live.set(s, live.get(s) - 1);
+                dropped++;
+            }
+        }
+        index.values().removeIf(ArrayList::isEmpty);
+        release();
+    }
+
+    //decode a record's frame
+    private Frame read(MappedByteBuffer seg, int offset) throws FrameLostException{
+        int length = seg.getShort(offset);
+        byte[] raw = new byte[length - HEADER];
+        seg.get(offset + HEADER, raw);
+        return Frame.decode(raw);
+    }
+
+    //start a new segment, dropping the oldest one if the spool is at its size cap
+    private void roll() throws IOException{
+        expire();
+        if(segments.size() >= maxSegments){
+            int oldest = segmentIDs.get(0);
+            int lost = live.get(0);
+            for(ArrayList<long[]> list: index.values()) list.removeIf(r -> r[0] == oldest);
+            index.values().removeIf(ArrayList::isEmpty);
+            dropped += lost;
+            if(lost > 0) System.out.println(name + ": spool full; dropped " + lost + " frames");
+            delete(0);
+        }
+        int id = nextID++;
+        try(RandomAccessFile file = new RandomAccessFile(new File(dir, id + ".seg"), "rw")){
+            file.setLength(segmentSize);
+            segments.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+        segmentIDs.add(id);
+        live.add(0);
+        tail = 0;
+    }
+
+    //delete segments that have nothing live, except the one being appended to
+    private void release(){
+        for(int i = segments.size() - 2; i >= 0; i--){
+            if(live.get(i) == 0) delete(i);
+        }
+    }
+
+    private void delete(int i){
+        int id = segmentIDs.remove(i);
+        segments.remove(i);
+        live.remove(i);
+        if(!new File(dir, id + ".seg").delete()) System.out.println(name + ": could not delete spool segment " + id);
+    }
+
+    //rebuild the index from segments left behind by an earlier run
+    private void recover() throws IOException{
+        File[] files = dir.listFiles((d, n) -> n.endsWith(".seg"));
+        if(files == null) return;
+        int[] ids = new int[files.length];
+        for(int i = 0; i < files.length; i++) ids[i] = Integer.parseInt(files[i].getName().replace(".seg", ""));
+        Arrays.sort(ids);
+        long now = System.currentTimeMillis();
+        for(int id: ids){
+            MappedByteBuffer seg;
+            try(RandomAccessFile file = new RandomAccessFile(new File(dir, id + ".seg"), "rw")){
+                seg = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            }
+            int offset = 0, count = 0;
+            while(offset + HEADER <= seg.limit()){
+                int length = seg.getShort(offset);
+                if(length <= 0) break;
+                //skip consumed and expired records
+                long time = seg.getLong(offset + 7);
+                if(seg.get(offset + 2) == 0 && now - time < maxAge){
+                    index.computeIfAbsent(seg.getInt(offset + 3), k -> new ArrayList<>()).add(new long[]{id, offset, time});
+                    count++;
+                }
+                offset += length;
+            }
+            segments.add(seg);
+            segmentIDs.add(id);
+            live.add(count);
+            nextID = id + 1;
+            tail = offset;
+        }
+        //the newest recovered segment is appended to; the older ones only drain
+        if(segments.isEmpty()) tail = segmentSize;
+        else if(segments.get(segments.size() - 1).limit() != segmentSize) tail = segmentSize;
+        release();
+    }
+}
@@ -1,32 +1,78 @@
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * First-level switch object class
  */
 public class Switch extends Thread{
+    //ingress of frames that came in over the trunk from the master (see Frame.getIngress)
+    public final static int TRUNK = -1;
+    //time any switch first forwarded a frame (System.nanoTime, 0 until then), for measuring cold start
+    private static final AtomicLong firstForward = new AtomicLong();
     private final int port, netID, masterPort;
-    private Socket master;
+    private Connection master;
     private final ArrayList<Integer> firewall;
     private final ArrayList<NodeThread> clients;
     //Format: {node ID, index for clients arraylist}.
     //In my case, "ports" are logical (arraylist index), not physical, due to Java's native socket implementation.
     private final ArrayList<Integer[]> switchTable;
+    //session token -> node ID, for nodes that resume after losing their connection
+    private final HashMap<Long, Integer> sessions;
     //a buffer message queue, because I have no reason to make this a static size data field.  If I am required to
     //do that, I will dispute the point, since nowhere is it implied or explicitly stated that the frame cannot be
     //a dynamic object. This is just the cleanest and easiest way to implement such a thing, despite it being extremely
     //unnecessary with java's implementation of sockets.
-    private final LinkedList<Frame> buffer;
+    //Two priority classes (acks and control first, then node data), see setPriorityWeight.
+    private final PriorityBuffer buffer;
     private volatile boolean finished, completed;
     private final boolean debugInfo;
+    //number of nodes on this network, and the keys of the ones that have sent their fin (node ID, or -thread ID for
+    //a connection that failed before its node was identified)
+    private final int expected;
+    private final HashSet<Integer> done;
+    //released once the switch is listening for nodes (or has given up trying)
+    private final CountDownLatch ready;
+    //store-and-forward spool for local destinations that are not connected (see Spool); null if disabled
+    private Spool spool;
+    //packet capture tap on every port (null for none)
+    private Capture capture;
+    private boolean spoolEnabled;
+    private long spoolBytes, spoolAge;
+    private Transport transport;
+    //trunk flow control: credits granted to the master (0 for none), credits the master has granted this switch,
+    //node frames waiting for them, and credits owed back to the master
+    private int trunkCredits;
+    private int credits;
+    private final ArrayDeque<Waiting> trunkQueue;
+    private final PendingIndex trunkPending;
+    private final AtomicInteger owed;
+    //overload shedding (see setQueuePolicy) for the buffer and for the trunk queue
+    private Aqm queue, egress;
+    //ingress policing settings for each NodeThread (null for none)
+    private Policer policer;
+    //whether NodeThreads check the CRC of node data as it comes in (see setCrcCheck)
+    private boolean crcCheck;
+    //multicast groups this network's nodes have joined, by node ID
+    private final GroupTable groups;
+    //metrics (network:type=Switch,net=N); forwarding latency is the time frames wait in the buffer
+    private final Metrics metrics;
+    private final LongAdder framesIn, framesOut, bytesIn, bytesOut, floods, firewallDrops, nacks, crcErrors, spooled,
+            corruptDropped, coalesced, groupCopies;
+    private final Histogram forwarding;
     //communicate to master
     private BufferedOutputStream out;
     private DataInputStream in;
@@ -36,10 +82,14 @@ public class Switch extends Thread{
      * @param port Local listen port (communication port is dynamic per connection)
      * @param netID Network ID corresponding to this switch
      * @param masterPort central switch port number
+     * @param nodes number of nodes that will connect to this switch
      * @param debugInfo enable debug information
      */
-    public Switch(int port, int netID, int masterPort, boolean debugInfo){
+    public Switch(int port, int netID, int masterPort, int nodes, boolean debugInfo){
         this.debugInfo = debugInfo;
+        this.expected = nodes;
+        this.done = new HashSet<>();
+        this.ready = new CountDownLatch(1);
         this.netID = netID;
         this.port = port;
         this.master = null;
@@ -47,11 +97,162 @@ public class Switch extends Thread{
         this.firewall = new ArrayList<>();
         this.masterPort = masterPort;
         this.clients = new ArrayList<>();
-        this.buffer = new LinkedList<>();
+        this.buffer = new PriorityBuffer(0);
         this.switchTable = new ArrayList<>();
+        this.sessions = new HashMap<>();
+        this.spoolEnabled = false;
+        this.transport = new SocketTransport();
+        this.trunkCredits = 64;
+        this.trunkQueue = new ArrayDeque<>();
+        this.trunkPending = new PendingIndex(1024);
+        this.owed = new AtomicInteger();
+        this.queue = new Aqm(Aqm.TAIL, 4096, 5_000_000L, 100_000_000L);
+        this.egress = queue.copy();
+        this.crcCheck = true;
+        this.groups = new GroupTable();
+        this.metrics = new Metrics("type=Switch,net=" + netID);
+        this.framesIn = metrics.counter("FramesIn");
+        this.framesOut = metrics.counter("FramesOut");
+        this.bytesIn = metrics.counter("BytesIn");
+        this.bytesOut = metrics.counter("BytesOut");
+        this.floods = metrics.counter("Floods");
+        this.firewallDrops = metrics.counter("FirewallDrops");
+        this.nacks = metrics.counter("Nacks");
+        this.crcErrors = metrics.counter("CrcErrors");
+        this.spooled = metrics.counter("Spooled");
+        this.corruptDropped = metrics.counter("CorruptDropped");
+        this.coalesced = metrics.counter("Coalesced");
+        this.groupCopies = metrics.counter("GroupCopies");
+        this.forwarding = metrics.histogram("ForwardingLatency");
+        metrics.gauge("QueueDepth", buffer::size);
+        metrics.gauge("ControlQueueDepth", buffer::controlSize);
+        metrics.gauge("Ports", clients::size);
+        metrics.gauge("TrunkCredits", () -> credits);
+        metrics.gauge("TrunkQueue", trunkQueue::size);
+        metrics.gauge("QueueDrops", () -> queue.getDrops());
+        metrics.gauge("TrunkQueueDrops", () -> egress.getDrops());
+        metrics.gauge("Groups", groups::size);
     }
 
+    public int getNetID(){
+        return this.netID;
+    }
+
+    /**
+     * Enable the store-and-forward spool. Must be called before the switch is started.
+     * <p>With the spool on, node traffic for a local destination that has not registered yet, or whose connection
+     * is down, is held on disk and replayed when its port comes up, instead of being flooded.
+     * @param enabled use the spool
+     * @param maxBytes spool size cap, in bytes
+     * @param maxAge spooled frame age cap, in milliseconds
+     */
+    public void setSpoolPolicy(boolean enabled, long maxBytes, long maxAge){
+        this.spoolEnabled = enabled;
+        this.spoolBytes = maxBytes;
+        this.spoolAge = maxAge;
+    }
+
+    /**
+     * Capture every frame through this switch's ports, both ways. Must be called before the switch is started.
+     * @param capture capture file to write to, or null for none
+     */
+    public void setCapture(Capture capture){
+        this.capture = capture;
+    }
+
+    public Capture getCapture(){return this.capture;}
+
+    /**
+     * Set credit-based flow control on the trunk to the master. Must be called before the switch is started, with
+     * the same value as the master's (see CentralSwitch.setTrunkCredits).
+     * <p>Each side grants the other credits for the node data frames it has room to buffer, and only sends them
+     * while it holds credits; the rest wait at the sender's end of the trunk, and a credit is returned once the
+     * frame it paid for has left the receiver. Acks and control frames need no credits.
+     * @param credits node frames each end of the trunk may buffer from the other, or 0 for no flow control
+     */
+    public void setTrunkCredits(int credits){
+        this.trunkCredits = Math.max(0, credits);
+    }
+
+    public int getTrunkCredits(){return this.trunkCredits;}
+
+    /**
+     * Set how the buffer shares forwarding between its classes (see PriorityBuffer). Must be called before the switch is
+     * started.
+     * <p>Acks and control frames are always forwarded ahead of node data; on the trunk they also go ahead of the node
+     * data waiting for credits, since they need none.
+     * @param weight acks and control frames forwarded per data frame while both are waiting (0 for strict priority)
+     */
+    public void setPriorityWeight(int weight){
+        buffer.setWeight(weight);
+    }
+
+    /**
+     * Set how the switch sheds node data under overload (see Aqm), in its buffer and in its trunk queue. Must be
+     * called before the switch is started.
+     * <p>A shed frame is replaced by a congestion nack (code 8) to its source. Control frames and acks are never shed.
+     * @param policy Aqm.NONE, TAIL, RED or CODEL
+     * @param capacity queue depth at which node data is shed
+     * @param target acceptable time in the queue, in nanoseconds (RED and CODEL)
+     * @param interval how long that time may stay over the target before shedding starts, in nanoseconds (CODEL)
+     */
+    public void setQueuePolicy(int policy, int capacity, long target, long interval){
+        this.queue = new Aqm(policy, capacity, target, interval);
+        this.egress = queue.copy();
+    }
+
+    /**
+     * Police the node data each node port takes in (see Policer). Must be called before the switch is started.
+     * <p>Acks and control frames are never policed.
+     * @param rate sustained rate per port, in frames per second (0 for no policing)
+     * @param burst frames a port may take in back to back on top of that
+     * @param action Policer.DELAY, DROP or NACK, for frames over the rate
+     */
+    public void setPolicer(double rate, int burst, int action){
+        this.policer = rate > 0 ? new Policer(rate, burst, action) : null;
+    }
+
+    //settings for a new port's policer (null for none)
+    public Policer getPolicer(){return this.policer;}
+
+    /**
+     * Check the CRC of node data as it comes in from the node. Must be called before the switch is started.
+     * <p>With the check on, a corrupt frame is answered with a code 2 right at the NodeThread and goes no further, instead
+     * of crossing the network to be rejected by its destination, and the code 2 crossing it back. Group frames are
+     * left to their members, which answer for themselves.
+     * @param enabled check at ingress
+     */
+    public void setCrcCheck(boolean enabled){
+        this.crcCheck = enabled;
+    }
+
+    public boolean getCrcCheck(){return this.crcCheck;}
+
+    //count a corrupt frame a NodeThread answered and dropped
+    public void corruptDropped(){
+        corruptDropped.increment();
+    }
+
+    /**
+     * Set the transport used to reach nodes and the master (sockets by default). Must be called before the switch is started.
+     * @param transport transport shared by the whole network
+     */
+    public void setTransport(Transport transport){
+        this.transport = transport;
+    }
+
+    public Transport getTransport(){return this.transport;}
+
     public boolean isFinished(){return this.finished;}
+    public static long getFirstForward(){return firstForward.get();}
+
+    /**
+     * Wait until the switch has its firewall rules and is listening for nodes
+     * <p>Also returns if the switch thread dies before getting there, so callers never wait forever.
+     */
+    public void awaitReady() throws InterruptedException{
+        while(!ready.await(100, TimeUnit.MILLISECONDS) && this.isAlive()) Thread.onSpinWait();
+    }
 
     /**
      * Thread-safe helper function.
@@ -59,8 +260,60 @@ public class Switch extends Thread{
      * @param message message to queue
      */
     public void enqueueMessage(Frame message){
+        long now = System.nanoTime();
+        message.setQueued(now);
+        message.stamp(now);
+        framesIn.increment();
+        bytesIn.add(message.length());
+        int depth;
+        synchronized (buffer){
+            //a retransmission of a frame that is still waiting here: forwarding both would only waste the trunk
+            //(and the destination would discard the second as a duplicate anyway)
+            if(buffer.isPending(message)) depth = -1;
+            else {
+                //over capacity (or shed early): the frame's congestion nack goes in its place
+                if(!queue.admit(message, buffer.bulkSize())) message = shed(message, 0);
+                this.buffer.add(message);
+                depth = buffer.size();
+            }
+        }
+        if(depth < 0) coalesce(message);
+        else FrameEvent.enqueued("Switch", netID, message, depth);
+    }
+
+    /**
+     * Helper function; drops a retransmitted copy of a data frame that is still waiting in the buffer or the trunk
+     * queue. No nack: the original will be acked. A copy from the master hands its trunk credit straight back.
+     * @param message the copy
+     */
+    private void coalesce(Frame message){
+        coalesced.increment();
+        EventLog.log(EventLog.SWITCH, EventLog.COALESCED, netID, 0, message, 0);
+        FrameEvent.forwarded("Switch", netID, message, "coalesced", 0);
+        if(message.getIngress() == TRUNK) release();
+    }
+
+    /**
+     * Helper function; replaces a frame the switch sheds with a congestion nack to its source. The nack takes the
+     * frame's place, trunk credit and all.
+     * @param message shed frame
+     * @param queued how long it had been queued
+     * @return the nack
+     */
+    private Frame shed(Frame message, long queued){
+        EventLog.log(EventLog.SWITCH, EventLog.DROPPED, netID, 0, message, queued);
+        FrameEvent.forwarded("Switch", netID, message, "dropped", 0);
+        Frame nack = message.congested();
+        nack.setIngress(message.getIngress());
+        nack.setQueued(message.getQueued());
+        return nack;
+    }
+
+    //queue a nack the switch made itself (e.g. for a frame shed from the trunk queue)
+    private void bounce(Frame nack){
+        nack.setQueued(System.nanoTime());
         synchronized (buffer){
-            this.buffer.add(message);
+            this.buffer.add(nack);
         }
     }
 
@@ -77,62 +330,303 @@ public class Switch extends Thread{
     /**
      * Thread-safe helper function; Adds an entry into the switching table
      * <p>Called in NodeThread when an unidentified client first communicates.
+     * A node that reconnects without resuming its session replaces its old entry rather than adding a second one.
      * @param ID communication thread identifier
      * @param key client identifier
+     * @return session token for the client (0 if it could not be added)
      */
-    public void addEntry(int ID, int key){
-        int j = -1;
-        synchronized (clients){
-            //find client's """port""" (logical port in this case, since java's implementation doesn't work that way)
-            for(int i = 0; i < clients.size(); i++){
-                if(clients.get(i).getID() == ID){
-                    j = i;
-                    break;
-                }
-            }
-        }
+    public long addEntry(int ID, int key){
+        int j = port(ID);
         //if for some reason the client isn't connected after sending the message, just don't do anything?
-        if(j==-1) return;
+        if(j==-1) return 0;
         //add entry to switch table
         synchronized (switchTable){
-            switchTable.add(new Integer[]{key, j});
+            Integer[] entry = lookup(switchTable, key);
+            if(entry != null) entry[1] = j;
+            else switchTable.add(new Integer[]{key, j});
+            replay(key, j);
+        }
+        //issue a session token, so the node can come back to this entry if its connection drops
+        long token = 0;
+        while(token == 0) token = ThreadLocalRandom.current().nextLong();
+        synchronized (sessions){
+            sessions.put(token, key);
         }
+        return token;
     }
 
     /**
-     * helper function
-     * <p>checks whether all clients are done sending messages
+     * Thread-safe helper function; reattaches a resuming node's session to its new communication thread
+     * <p>Called in NodeThread when a node reconnects with a session token. The node's existing switch table entry
+     * is pointed at the new thread, so the node doesn't need to be relearned (or flooded to).
+     * @param ID new communication thread identifier
+     * @param token session token presented by the node
+     * @return the communication thread previously serving the session, or null if the token is unknown
      */
-    public void checkFinished() {
-        try {
-            //check 1
-            for(NodeThread thread: this.clients){
-                if(!thread.finished()) return;
-            }
-            //sleep for 1 second
-            Thread.sleep(1000);
-            //check again
-            for(NodeThread thread: this.clients){
-                if(!thread.finished()) return;
+    public NodeThread resume(int ID, long token){
+        Integer key;
+        synchronized (sessions){
+            key = sessions.get(token);
+        }
+        if(key == null) return null;
+        int j = port(ID);
+        if(j == -1) return null;
+        synchronized (switchTable){
+            Integer[] entry = lookup(switchTable, key);
+            if(entry == null) return null;
+            NodeThread previous = clients.get(entry[1]);
+            entry[1] = j;
+            if(debugInfo) System.out.println("Server " + netID + ": node " + key + " resumed on NodeThread " + ID);
+            replay(key, j);
+            return previous;
+        }
+    }
+
+    //find client's """port""" (logical port in this case, since java's implementation doesn't work that way)
+    private int port(int ID){
+        synchronized (clients){
+            for(int i = 0; i < clients.size(); i++){
+                if(clients.get(i).getID() == ID) return i;
             }
-            //reasonably certain that all nodes that will connect have connected and have finished.
+        }
+        return -1;
+    }
+
+    //the destination's port is up: deliver anything spooled for it. Callers hold the table lock, so
+    //the manager can't slip a newer frame in ahead of the spooled ones.
+    private void replay(int key, int j){
+        if(spool == null) return;
+        for(Frame f: spool.replay(key)){
+            EventLog.log(EventLog.SWITCH, EventLog.REPLAYED, netID, 0, f, clients.get(j).getID());
+            f.stamp(System.nanoTime());
+            clients.get(j).newMessage(f);
+            sent(f);
+        }
+    }
+
+    /**
+     * Thread-safe helper function; records a node's fin
+     * <p>Called in NodeThread once per node. When the last expected node is done, the master is told right away.
+     * @param key node ID (or -thread ID if the node never identified itself)
+     */
+    public void nodeFinished(int key) {
+        synchronized (done){
+            if(!done.add(key) || done.size() < expected || finished) return;
             this.finished = true;
-            //inform master we are finished
+        }
+        if(debugInfo) System.out.println("Server " + netID + ": all " + expected + " nodes finished");
+        //inform master we are finished
+        try{
             synchronized (out){
                 out.write(new Frame(netID, 0, 0, 0, 0, 5).encode());
                 out.flush();
             }
-        } catch (InterruptedException e){
-            System.out.println("Server " + netID + ":Unknown system interrupt encountered... retrying...");
-            checkFinished();
         } catch (IOException e){
             System.out.println("Server " + netID + ": Unknown IO exception encountered");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Thread-safe helper function; adds a node to a multicast group
+     * <p>Called in NodeThread on a join (code 9). The network's first member of a group joins the master's group on
+     * the network's behalf, so the group's frames from elsewhere cross the trunk to this switch (once each).
+     * @param group group number
+     * @param node node ID
+     */
+    public void join(int group, int node){
+        if(!groups.join(group, node)) return;
+        if(debugInfo) System.out.println("Server " + netID + ": joining group " + group + " at master");
+        try{
+            trunk(Frame.join(netID, 0, group));
+        } catch (IOException e){
+            System.out.println("Server " + netID + ": could not join group " + group + " at master");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Helper function; forwards a group frame. A frame from one of this network's nodes goes up the trunk once (the
+     * master sends it on to the other networks with members) and to every local member but its sender; a frame from
+     * the master goes to every local member. Firewalled nodes don't get group frames from other networks; no nack,
+     * since the other members still get theirs.
+     * @param message group frame
+     */
+    private void multicast(Frame message){
+        boolean local = message.getSource()[0] == netID;
+        if(local){
+            try{
+                trunk(message);
+                EventLog.log(EventLog.SWITCH, EventLog.TRUNKED, netID, 0, message, 0);
+                FrameEvent.forwarded("Switch", netID, message, "trunked", 0);
+            } catch (IOException e){
+                System.out.println("Server " + netID + ": Could not send group traffic " + message);
+                e.printStackTrace();
+            }
+        }
+        int copies = 0;
+        synchronized (switchTable){
+            for(int node: groups.members(message.getDest()[1])){
+                if(local ? node == message.getSource()[1] : firewall.contains(node)) continue;
+                Integer[] entry = lookup(switchTable, node);
+                if(entry == null || !clients.get(entry[1]).isOnline()) continue;
+                //every member gets the same Frame, written out as it is (the trunk queue keeps its own time for it)
+                clients.get(entry[1]).newMessage(message);
+                sent(message);
+                copies++;
+            }
+        }
+        groupCopies.add(copies);
+        EventLog.log(EventLog.SWITCH, EventLog.MULTICAST, netID, 0, message, copies);
+        FrameEvent.forwarded("Switch", netID, message, "multicast", copies);
+    }
+
+    /**
+     * Helper function; checks a frame for this network against its firewall
+     * <p>Acks and traffic from inside the network pass; data from another network to a firewalled node doesn't.
+     * Shared with Simulator, so the simulated switch filters exactly like this one.
+     * @param firewall firewalled node IDs
+     * @param netID this network's ID
+     * @param message frame
+     * @return true if the frame must be bounced with a nack
+     */
+    public static boolean firewalled(ArrayList<Integer> firewall, int netID, Frame message){
+        if(message.getSize() == 0 || message.getSource()[0] == netID) return false;
+        return firewall.contains(message.getDest()[1]);
+    }
+
+    /**
+     * Helper function; writes a credit frame, in pieces of up to 255 credits (the sequence number is one byte)
+     * @param out stream to write to
+     * @param sourceNet source network of the credit frame
+     * @param destNet destination network of the credit frame
+     * @param credits credits to grant
+     */
+    public static void grant(BufferedOutputStream out, int sourceNet, int destNet, int credits) throws IOException{
+        synchronized (out){
+            for(; credits > 0; credits -= 255){
+                out.write(new Frame(sourceNet, 0, destNet, 0, Math.min(credits, 255), Frame.CREDIT).encode());
+            }
+            out.flush();
+        }
+    }
+
+    //send a frame to the master, or hold it until the master has granted a credit for it
+    private void trunk(Frame message) throws IOException{
+        synchronized (trunkQueue){
+            if(trunkCredits > 0 && PriorityBuffer.isBulk(message)){
+                if(credits == 0 || !trunkQueue.isEmpty()){
+                    if(trunkPending.contains(message)){
+                        coalesce(message);
+                    } else if(egress.admit(message, trunkQueue.size())){
+                        trunkQueue.add(new Waiting(message, System.nanoTime()));
+                        trunkPending.add(message);
+                    } else {
+                        bounce(shed(message, 0));
+                    }
+                    return;
+                }
+                credits--;
+            }
+            write(message);
+        }
+    }
+
+    private void write(Frame message) throws IOException{
+        synchronized (out){
+            out.write(message.encode());
+            out.flush();
+        }
+        sent(message);
+    }
+
+    //a frame waiting for trunk credits, and when it was queued for the trunk (kept here rather than on the frame, which
+    //the local members of its group or the ports it was flooded to may hold too)
+    private static class Waiting {
+        private final Frame frame;
+        private final long queued;
+
+        private Waiting(Frame frame, long queued){
+            this.frame = frame;
+            this.queued = queued;
+        }
+    }
+
+    //credits granted by the master: send what was waiting for them
+    private void credited(int n) throws IOException{
+        synchronized (trunkQueue){
+            credits += n;
+            long now = System.nanoTime();
+            while(credits > 0 && !trunkQueue.isEmpty()){
+                Waiting w = trunkQueue.poll();
+                Frame message = w.frame;
+                trunkPending.remove(message);
+                if(egress.depart(message, now - w.queued, trunkQueue.size(), now)){
+                    bounce(shed(message, now - w.queued));
+                    continue;
+                }
+                credits--;
+                write(message);
+            }
+        }
+    }
+
+    //a frame from the master has left the buffer; its credit goes back in batches
+    private void release(){
+        if(trunkCredits > 0 && owed.incrementAndGet() >= Math.max(1, trunkCredits / 4)) flushCredits();
+    }
+
+    private void flushCredits(){
+        if(owed.get() == 0) return;
+        try{
+            grant(out, netID, 0, owed.getAndSet(0));
+        } catch (IOException e){
+            System.out.println("Server " + netID + ": could not return credits to master");
+            e.printStackTrace();
+        }
+    }
+
+    //count a frame going out of the switch
+    private void sent(Frame message){
+        framesOut.increment();
+        bytesOut.add(message.length());
+    }
+
+    /**
+     * Helper function; finds a node's entry in a switch table. The caller holds the table's lock.
+     * @param switchTable entries of form {node ID, logical port}
+     * @param node node ID
+     * @return the node's entry, or null if it has none
+     */
+    public static Integer[] lookup(ArrayList<Integer[]> switchTable, int node){
+        for(Integer[] entry : switchTable){
+            if(entry[0] == node) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Helper function; appends a frame for a local destination to the spool
+     * @param message frame
+     * @return true if spooled, false if it could not be (the caller falls back to the old behavior)
+     */
+    private boolean spool(Frame message){
+        try{
+            EventLog.log(EventLog.SWITCH, EventLog.SPOOLED, netID, 0, message, 0);
+            FrameEvent.forwarded("Switch", netID, message, "spooled", 0);
+            spool.append(message.getDest()[1], message);
+            spooled.increment();
+            return true;
+        } catch (IOException e){
+            System.out.println("Server " + netID + ": could not spool " + message);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     @Override
     public void run() {
+        metrics.register();
         //connect to master and retrieve firewall rules
         try {
             //check if the port exists
@@ -141,15 +635,7 @@ public class Switch extends Thread{
                 return;
             }
             //connect until it works
-            boolean flag = true;
-            do{
-                try {
-                    master = new Socket("localhost", masterPort);
-                    flag = false;
-                } catch (ConnectException e) {
-                    //if(debugInfo) System.out.println("Server " + netID + ": Connection failed, retrying...");
-                }
-            } while(flag);
+            master = Backoff.connect(transport, masterPort, 10000);
             if(debugInfo) System.out.println("Server " + netID + ": master socket connected");
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -171,6 +657,16 @@ public class Switch extends Thread{
                             flag = false;
                             if(debugInfo) System.out.println("Server " + netID + ": Ack 1 received. Setting up node connections." +
                                     " Firewall: " + firewall);
+                            //register with master right away, so traffic for this network doesn't have to wait
+                            //until this switch happens to send something
+                            synchronized (out){
+                                out.write(new Frame(netID, 0, 0, 0, 0, 1).encode());
+                                out.flush();
+                            }
+                            //and let the master send node frames up to this switch's share of the buffer
+                            if(trunkCredits > 0) grant(out, netID, 0, trunkCredits);
+                            //anything after this is regular traffic, for the central thread
+                            break;
                         }
                         //not control, so it's firewall info
                         else {
@@ -191,6 +687,16 @@ public class Switch extends Thread{
             e.printStackTrace();
         }
 
+        //open spool
+        if(spoolEnabled){
+            try{
+                spool = new Spool(new File("switch" + netID + ".spool"), 1 << 20, spoolBytes, spoolAge, "Server " + netID);
+            } catch (IOException e){
+                System.out.println("Server " + netID + ": could not open spool; unknown destinations will be flooded");
+                e.printStackTrace();
+            }
+        }
+
         //switch performance
         //this contains 3 threads. the new one talks to master switch
 
@@ -199,16 +705,18 @@ public class Switch extends Thread{
         //Thread 1: accepts incoming connections, creates NodeThreads to handle communication.
         //this is an abstract class, as I have to override interrupt as well as run to terminate it on cleanup.
         Thread acceptor = new Thread(){
-            private ServerSocket serverSocket;
+            private Listener serverSocket;
             @Override
             public void run() {
                 //set up server socket
                 try {
-                    serverSocket = new ServerSocket(port);
+                    serverSocket = transport.listen(port);
+                    //nodes can connect from here on
+                    ready.countDown();
                     //deadloop -- listen for client connection and handle it
                     while (!completed) {
                         //wait for client connection
-                        Socket client = serverSocket.accept();
+                        Connection client = serverSocket.accept();
                         if(debugInfo) System.out.println("Server " + netID + ": New client connected");
                         NodeThread nodeThread = new NodeThread(self, client, debugInfo);
                         nodeThread.start();
@@ -222,6 +730,9 @@ public class Switch extends Thread{
                 } catch (IOException e) {
                     System.out.println("Server " + netID + ": unknown IOException encountered");
                     e.printStackTrace();
+                } finally {
+                    //could not listen; don't leave anyone waiting on this switch
+                    ready.countDown();
                 }
             }
             @Override
@@ -238,27 +749,48 @@ public class Switch extends Thread{
         //Thread 2: Manages buffer and switching messages to correct client
         //this one is a lambda, because it's cleaner, and I only need to implement run() here
         Thread manager = new Thread(() -> {
-            while(!completed){
+            //keep going after the master's fin until the buffer is drained, so nothing queued before it is lost
+            while(!completed || !buffer.isEmpty()){
                 //skip over until there is data to send
                 if(buffer.isEmpty()) {
+                    //idle: hand back any credits still owed, rather than waiting for a full batch
+                    flushCredits();
                     Thread.yield();
                     continue;
                 }
                 //if(debugInfo) System.out.println("Server " + netID + ": message found in buffer");
                 Frame message = dequeueMessage();
-                if(debugInfo) System.out.println("Server " + netID + ": found message (may be flooded)" + message);
+                //the frame is out of the buffer, so the master may send another
+                if(message.getIngress() == TRUNK) release();
+                long now = System.nanoTime();
+                forwarding.record(now - message.getQueued());
+                //queued too long (see Aqm): shed it, and send its congestion nack on instead
+                if(queue.depart(message, now - message.getQueued(), buffer.bulkSize(), now)){
+                    message = shed(message, now - message.getQueued());
+                }
+                if(message.getSize() == 0 && message.getAck() == 2) crcErrors.increment();
+                if(message.getSize() == 0 && message.getAck() == 4) nacks.increment();
+                if(firstForward.get() == 0) firstForward.compareAndSet(0, now);
+                EventLog.log(EventLog.SWITCH, EventLog.FORWARDING, netID, 0, message, now - message.getQueued());
+                FrameEvent.dequeued("Switch", netID, message, now - message.getQueued());
                 //Note that the NodeThread automatically informs Switch of unidentified clients (see addEntry)
                 //The switch object therefore adds entries to the switching table in that method automatically
                 //That is why adding entries to the switch table is not handled in this block
 
+                //multicast traffic, from a local node or from the master
+                if(message.isGroup()){
+                    multicast(message);
+                    continue;
+                }
+
                 //this handles outgoing traffic
                 if(message.getDest()[0] != netID) {
                     //frame is local traffic going out of this network; send the message to global switch
                     try{
-                        synchronized (out){
-                            out.write(message.encode());
-                            out.flush();
-                        }
+                        message.stamp(System.nanoTime());
+                        trunk(message);
+                        EventLog.log(EventLog.SWITCH, EventLog.TRUNKED, netID, 0, message, 0);
+                        FrameEvent.forwarded("Switch", netID, message, "trunked", 0);
                     } catch (IOException e){
                         System.out.println("Server " + netID + ": Could not send global traffic " + message);
                         e.printStackTrace();
@@ -269,59 +801,64 @@ public class Switch extends Thread{
 
                 //this handles local or incoming traffic.
                 //check for firewall; if local node is firewalled, nack
-                boolean flag = false;
-                for(int i: firewall){
-                    if(message.getDest()[1] == i){
-                        //firewall found
-                        //acks need to pass through the firewall
-                        if(message.getSize() == 0) break;
-                        //local messages need to pass through the firewall
-                        if(message.getSource()[0] == netID) break;
-                        //send a nack message
-                        if(debugInfo) System.out.println("Server " + netID + ": message firewalled, sending nack " + message);
-                        try{
-                            flag = true;
-                            synchronized (out){
-                                out.write(new Frame(netID, message.getDest()[1], message.getSource()[0], message.getSource()[1],
-                                        message.getSN(), 4).encode());
-                                out.flush();
-                            }
-                            break;
-                        } catch (IOException e){
-                            System.out.println("Server " + netID + ": Unknown IO error encountered");
-                            e.printStackTrace();
-                        }
+                if(firewalled(firewall, netID, message)){
+                    //send a nack message
+                    EventLog.log(EventLog.SWITCH, EventLog.FIREWALLED, netID, 0, message, 0);
+                    FrameEvent.forwarded("Switch", netID, message, "firewalled", 0);
+                    firewallDrops.increment();
+                    nacks.increment();
+                    try{
+                        trunk(message.nack());
+                    } catch (IOException e){
+                        System.out.println("Server " + netID + ": Unknown IO error encountered");
+                        e.printStackTrace();
                     }
+                    //this line here is what actually firewalls things
+                    continue;
                 }
-                //check if nack was sent. if so, do not pass along message. otherwise, move on
-                //this line here is what actually firewalls things
-                if(flag) continue;
 
                 //Message is both for this network and is not firewalled.
                 //check switch table for sending area
                 boolean found = false;
                 int key = -1;
                 synchronized (switchTable){
-                    for(Integer[] entry : switchTable){
-                        //look for destination in table
-                        if(message.getDest()[1] == entry[0]){
+                    //look for destination in table
+                    Integer[] entry = lookup(switchTable, message.getDest()[1]);
+                    if(entry != null){
+                        NodeThread port = clients.get(entry[1]);
+                        //known destination, but its connection is down: hold the frame until it is back
+                        if(spool != null && !port.isOnline()) found = spool(message);
+                        if(!found){
                             //pass along the message
-                            if(debugInfo) System.out.println("Server " + netID + ": message switched " + message);
-                            clients.get(entry[1]).newMessage(message);
+                            EventLog.log(EventLog.SWITCH, EventLog.SWITCHED, netID, 0, message, port.getID());
+                            FrameEvent.forwarded("Switch", netID, message, "switched", port.getID());
+                            message.stamp(System.nanoTime());
+                            port.newMessage(message);
+                            sent(message);
                             found = true;
-                            break;
                         }
-                        //this is for next block for flooding purposes; it isn't used if dest is present in the table
-                        if(message.getSource()[1] == entry[0]) key = entry[1];
+                    } else {
+                        //this is for next block for flooding purposes; the source's port is skipped
+                        Integer[] source = lookup(switchTable, message.getSource()[1]);
+                        if(source != null) key = source[1];
+                        //destination hasn't registered yet: node traffic is spooled rather than flooded and lost.
+                        //control traffic is still flooded.
+                        if(spool != null && message.getSource()[0] > 0 && message.getDest()[1] != 0){
+                            found = spool(message);
+                        }
                     }
                 }
                 if(found) continue;
                 //this block will only be reached if the target not found in switch table, so here we flood
-                if(debugInfo) System.out.println("Server " + netID + ": message will be flooded " + message);
+                floods.increment();
+                message.stamp(System.nanoTime());
                 synchronized (clients){
+                    EventLog.log(EventLog.SWITCH, EventLog.FLOODED, netID, 0, message, clients.size() - (key < 0 ? 0 : 1));
+                    FrameEvent.forwarded("Switch", netID, message, "flooded", clients.size() - (key < 0 ? 0 : 1));
                     for(int i = 0; i < clients.size(); i++){
                         if(i == key) continue;
                         clients.get(i).newMessage(message);
+                        sent(message);
                     }
                 }
             }
@@ -343,20 +880,23 @@ public class Switch extends Thread{
                     while(in.available() > 0){
                         try{
                             Frame msg = Frame.decodeFromChannel(in);
-                            if(debugInfo) System.out.println("Switch " + netID + ": received global " + msg);
+                            EventLog.log(EventLog.SWITCH, EventLog.PORT_IN, netID, 0, msg, 0);
                             //check for control message
-                            if(msg.getAck() == 6){
+                            if(msg.getSize() == 0 && msg.getAck() == Frame.CREDIT) credited(msg.getSN());
+                            else if(msg.getAck() == 6){
                                 if(debugInfo) System.out.println("Switch " + netID + ": fin received");
                                 this.completed = true;
                                 out.write(new Frame(0, 0, 0, 0, 0, 3).encode());
                                 out.flush();
                             }
-                            //check for flooded message; if so, ignore it and move on
-                            else if(msg.getDest()[0] != netID) continue;
+                            //check for flooded message; if so, ignore it (handing its credit straight back) and move on
+                            else if(msg.getDest()[0] != netID && !msg.isGroup()){
+                                if(PriorityBuffer.isBulk(msg)) release();
+                            }
                             //must be some message to the network, then
                             else {
-                               //if(debugInfo) System.out.println("Switch " + netID + ": received global " + msg);
-                               enqueueMessage(msg);
+                                if(PriorityBuffer.isBulk(msg)) msg.setIngress(TRUNK);
+                                enqueueMessage(msg);
                             }
                         } catch (FrameLostException e){
                             System.out.println("Switch " + netID + ": data loss detected when talking to master");
@@ -371,7 +911,8 @@ public class Switch extends Thread{
                 e.printStackTrace();
             } finally {
                 try{
-                    Thread.sleep(2000);
+                    //the master waits for this socket to close; do it as soon as the manager has drained
+                    manager.join();
                     master.close();
                 } catch (InterruptedException e){
                     System.out.println("Server " + netID + "Unknown system interrupt encountered");
@@ -387,5 +928,16 @@ public class Switch extends Thread{
         central.start();
         acceptor.start();
         manager.start();
+        //this thread stays alive until everything it started has shut down, so callers can join it
+        try{
+            central.join();
+            acceptor.join();
+            manager.join();
+            for(NodeThread t: clients){
+                t.join();
+            }
+        } catch (InterruptedException e){
+            System.out.println("Server " + netID + ": interrupted while shutting down");
+        }
     }
 }
\ No newline at end of file
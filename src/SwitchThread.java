@@ -1,18 +1,37 @@
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class SwitchThread extends Thread{
     private static final AtomicInteger counter;
     private final CentralSwitch server;
-    private final Socket client;
+    private final Connection client;
     private final int ID;
     private final BufferedOutputStream out;
     private final DataInputStream in;
-    private volatile boolean identified, finished, terminated, initialized;
+    private volatile boolean identified, finished, terminated, initialized, disconnected;
+    //network ID of the paired switch, once identified
+    private int key;
     private final boolean debugInfo;
+    //metrics of this port (network:type=SwitchThread,port=ID): frames from the switch, and frames sent to it
+    private final Metrics metrics;
+    private final LongAdder framesIn, framesOut, bytesIn, bytesOut, policed;
+    //ingress policer for the network's data (null for none, see CentralSwitch.setPolicer)
+    private final Policer policer;
+    //trunk flow control (see CentralSwitch.setTrunkCredits): credits granted by the switch, node frames waiting for
+    //them (with the time each was queued here: a flooded or group frame is the same Frame on every port, so the
+    //time can't go on the frame), and credits owed back to the switch
+    private int credits;
+    private final ArrayDeque<Waiting> waiting;
+    private final PendingIndex pending;
+    private final AtomicInteger owed;
+    //overload shedding for the frames waiting for credits (see CentralSwitch.setQueuePolicy)
+    private final Aqm egress;
     //static initializer block for atomicInt counter. This variable gives unique IDs to each SwitchThread that is created.
     static {counter = new AtomicInteger();}
 
@@ -20,15 +39,34 @@ public class SwitchThread extends Thread{
      * Client thread constructor
      * @param server Switch server
      */
-    public SwitchThread(CentralSwitch server, Socket client, boolean debugInfo) {
+    public SwitchThread(CentralSwitch server, Connection client, boolean debugInfo) {
         this.debugInfo = debugInfo;
         this.identified = false;
         this.finished = false;
         this.terminated = false;
         this.initialized = false;
+        this.disconnected = false;
         this.server = server;
         this.ID = counter.incrementAndGet();
         this.client = client;
+        this.metrics = new Metrics("type=SwitchThread,port=" + ID);
+        this.framesIn = metrics.counter("FramesIn");
+        this.framesOut = metrics.counter("FramesOut");
+        this.bytesIn = metrics.counter("BytesIn");
+        this.bytesOut = metrics.counter("BytesOut");
+        this.policed = metrics.counter("Policed");
+        this.policer = server.getPolicer() != null ? server.getPolicer().copy() : null;
+        this.waiting = new ArrayDeque<>();
+        this.pending = new PendingIndex(1024);
+        this.owed = new AtomicInteger();
+        this.egress = server.getEgressPolicy().copy();
+        metrics.gauge("Credits", () -> credits);
+        metrics.gauge("Waiting", waiting::size);
+        metrics.gauge("WaitingAgeMicros", () -> {
+            long since = waitingSince();
+            return since == 0 ? 0 : (System.nanoTime() - since) / 1000;
+        });
+        metrics.gauge("WaitingDrops", egress::getDrops);
         try {
             out = new BufferedOutputStream(client.getOutputStream(), 257);
             in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
@@ -46,6 +84,14 @@ public class SwitchThread extends Thread{
         return finished;
     }
 
+    /**
+     * Check whether frames can be delivered to the paired switch right now
+     * @return true once the thread is running, until the connection ends
+     */
+    public boolean isOnline() {
+        return initialized && !disconnected;
+    }
+
     /**
      * Helper function: navigates closing connection with client
      */
@@ -84,12 +130,142 @@ public class SwitchThread extends Thread{
      */
     public void newMessage(Frame message){
         if(!this.initialized) Thread.onSpinWait();
+        //node data needs one of the switch's credits; without one it waits (in order) for the next grant, unless too
+        //much is waiting already. Acks and control frames go straight out, ahead of any waiting data.
+        Frame nack = null, copy = null;
+        synchronized (waiting){
+            if(server.getTrunkCredits() > 0 && PriorityBuffer.isBulk(message)){
+                if(credits == 0 || !waiting.isEmpty()){
+                    if(pending.contains(message)){
+                        //a retransmission of a frame still waiting here
+                        copy = message;
+                    } else if(egress.admit(message, waiting.size())){
+                        waiting.add(new Waiting(message, System.nanoTime()));
+                        pending.add(message);
+                    } else {
+                        nack = server.shed(message, 0);
+                    }
+                    message = null;
+                } else {
+                    credits--;
+                }
+            }
+            if(message != null) write(message);
+        }
+        //(outside the lock: returning the credit takes the master's port list lock, and a shed frame's nack goes
+        //back through the master's buffer)
+        if(message != null) server.release(message);
+        if(nack != null) server.bounce(nack);
+        if(copy != null) server.coalesce(copy);
+    }
+
+    //credits granted by the switch: send what was waiting for them
+    private void credited(int n){
+        ArrayList<Frame> sent = new ArrayList<>(), shed = new ArrayList<>();
+        synchronized (waiting){
+            credits += n;
+            long now = System.nanoTime();
+            while(credits > 0 && !waiting.isEmpty()){
+                Waiting w = waiting.poll();
+                Frame message = w.frame;
+                pending.remove(message);
+                //waited too long (see Aqm): shed it instead
+                if(egress.depart(message, now - w.queued, waiting.size(), now)){
+                    shed.add(server.shed(message, now - w.queued));
+                    continue;
+                }
+                credits--;
+                write(message);
+                sent.add(message);
+            }
+        }
+        for(Frame message: sent) server.release(message);
+        for(Frame nack: shed) server.bounce(nack);
+    }
+
+    /**
+     * Thread-safe; get the time the oldest frame waiting for credits was queued on this port
+     * @return System.nanoTime when it was queued, or 0 if nothing is waiting
+     */
+    public long waitingSince(){
+        synchronized (waiting){
+            Waiting w = waiting.peek();
+            return w == null ? 0 : w.queued;
+        }
+    }
+
+    //a frame waiting for credits, and when this port queued it
+    private static class Waiting {
+        private final Frame frame;
+        private final long queued;
+
+        private Waiting(Frame frame, long queued){
+            this.frame = frame;
+            this.queued = queued;
+        }
+    }
+
+    /**
+     * A frame from the paired switch has left the master; its credit goes back to the switch in batches
+     */
+    public void release(){
+        if(owed.incrementAndGet() >= Math.max(1, server.getTrunkCredits() / 4)) flushCredits();
+    }
+
+    /**
+     * Return any credits still owed to the paired switch
+     */
+    public void flushCredits(){
+        if(!identified || owed.get() == 0) return;
         try{
-            if(debugInfo) System.out.println("SwitchThread " + ID + ": sending: " + message);
+            Switch.grant(out, 0, key, owed.getAndSet(0));
+        } catch (IOException e){
+            System.out.println("Error: SwitchThread " + ID + ": could not return credits to client.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Helper function; polices a data frame from the switch (see Policer). A frame that isn't passed on hands its
+     * credit straight back (a nack carries it back instead).
+     * @param msg frame
+     * @return true to pass it on (delayed, if need be), false if it was dropped
+     */
+    private boolean police(Frame msg){
+        long early = policer.police(System.nanoTime());
+        if(early == 0) return true;
+        policed.increment();
+        EventLog.log(EventLog.SWITCH_THREAD, EventLog.POLICED, 0, ID, msg, early);
+        if(policer.getAction() == Policer.DELAY){
+            //stop reading until it conforms; the switch's frames back up behind it
+            while(early > 0){
+                LockSupport.parkNanos(early);
+                early = policer.police(System.nanoTime());
+            }
+            return true;
+        }
+        if(policer.getAction() == Policer.NACK){
+            Frame nack = msg.congested();
+            nack.setIngress(msg.getIngress());
+            newMessage(nack);
+        } else {
+            server.release(msg);
+        }
+        return false;
+    }
+
+    private void write(Frame message){
+        try{
+            EventLog.log(EventLog.SWITCH_THREAD, EventLog.PORT_OUT, 0, ID, message, 0);
+            if(server.getCapture() != null) server.getCapture().record(ID, Capture.OUT, message);
+            FrameEvent.PortWrite write = FrameEvent.beginWrite();
             synchronized (out){
                 out.write(message.encode());
                 out.flush();
             }
+            FrameEvent.endWrite(write, "SwitchThread", 0, ID, message);
+            framesOut.increment();
+            bytesOut.add(message.length());
         } catch (SocketException e) {
             System.out.println("Error: SwitchThread " + ID + ": could not send message to client: likely socket closed.");
             e.printStackTrace();
@@ -112,6 +288,7 @@ public class SwitchThread extends Thread{
      */
     @Override
     public void run() {
+        metrics.register();
         try {
             if(debugInfo) System.out.println("SwitchThread " + ID + ": Connection thread successfully established");
             this.initialized = true;
@@ -122,26 +299,50 @@ public class SwitchThread extends Thread{
                     try{
                         //this will decode one frame's worth of data and throw exceptions where needed
                         Frame msg = Frame.decodeFromChannel(in);
+                        if(server.getCapture() != null) server.getCapture().record(ID, Capture.IN, msg);
+                        framesIn.increment();
+                        bytesIn.add(msg.length());
                         //This basically does the job of """"learning"""" from incoming messages
                         if(!identified){
                             //add table entry (pass network ID; the central switch's table works on the network level)
-                            server.addEntry(ID, msg.getSource()[0]);
+                            key = msg.getSource()[0];
+                            server.addEntry(ID, key);
                             identified = true;
                             if(debugInfo) System.out.println("SwitchThread " + ID + ": connected client identified, " + msg.getSource()[0]);
                         }
                         //check for control message
-                        if(msg.getDest()[1] == 0){
-                            //the only implemented control message is "fin" so no need to check for others
-                            //node is done sending data, so we no longer need to do this loop
-                            this.finished = true;
-                            //inform switch
-                            if(debugInfo) System.out.println("SwitchThread " + ID + ": control message identified " + msg);
-                            server.checkFinished();
+                        if(msg.getDest()[1] == 0 && msg.getAck() == 1){
+                            //registration: the switch announces itself once it is set up. Identifying it (above)
+                            //is all that needs doing, besides granting it its share of the master's buffer.
+                            if(debugInfo) System.out.println("SwitchThread " + ID + ": switch registered " + msg);
+                            if(server.getTrunkCredits() > 0) Switch.grant(out, 0, key, server.getTrunkCredits());
+                        }
+                        else if(msg.getDest()[1] == 0 && msg.getSize() == 0 && msg.getAck() == Frame.CREDIT){
+                            credited(msg.getSN());
+                        }
+                        //the switch joins a multicast group for its network (see Switch.join)
+                        else if(msg.getSize() == 0 && msg.getAck() == Frame.JOIN){
+                            EventLog.log(EventLog.SWITCH_THREAD, EventLog.CONTROL, 0, ID, msg, 0);
+                            server.join(msg.getDest()[1], key);
+                        }
+                        else if(msg.getDest()[1] == 0){
+                            //the only other implemented control message is "fin"
+                            //switch is done sending data, so we no longer need to do this loop
+                            //inform switch (once; a repeated fin doesn't count again)
+                            EventLog.log(EventLog.SWITCH_THREAD, EventLog.CONTROL, 0, ID, msg, 0);
+                            if(!this.finished){
+                                this.finished = true;
+                                server.switchFinished(key);
+                            }
                         }
                         //not control, so it's an actual data message
                         else {
-                            if(debugInfo) System.out.println("SwitchThread " + ID + ": outgoing message sent to switch " + msg);
-                            //add it to the server's buffer to be switched as appropriate
+                            EventLog.log(EventLog.SWITCH_THREAD, EventLog.PORT_IN, 0, ID, msg, 0);
+                            //add it to the server's buffer to be switched as appropriate, remembering where its
+                            //credit goes back to
+                            if(server.getTrunkCredits() > 0 && PriorityBuffer.isBulk(msg)) msg.setIngress(ID);
+                            //over the network's rate: hold it back, or drop it
+                            if(policer != null && PriorityBuffer.isBulk(msg) && !police(msg)) continue;
                             this.server.enqueueMessage(msg);
                         }
                     } catch (FrameLostException e){
@@ -157,6 +358,7 @@ public class SwitchThread extends Thread{
                     + "  Stack trace is shown below.");
             e.printStackTrace();
         } finally {
+            this.disconnected = true;
             //close socket if not already closed
             try {
                 if(client != null){
@@ -171,7 +373,7 @@ public class SwitchThread extends Thread{
             //in case there was some error, mark as finished and inform server
             if(!this.finished){
                 this.finished = true;
-                server.checkFinished();
+                server.switchFinished(identified ? key : -ID);
             }
         }
     }
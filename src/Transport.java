@@ -0,0 +1,25 @@
+import java.io.IOException;
+
+/**
+ * How the parts of the network reach each other
+ * <p>Every hop (node to switch, switch to master, and the node init handshake) goes through a Transport.
+ * SocketTransport is loopback TCP, as before. MemoryTransport connects endpoints in the same JVM through lock-free
+ * ring buffers, so forwarding can be measured without the kernel's networking in the way.
+ * All parts of one network must share the same Transport.
+ */
+public interface Transport {
+    /**
+     * Start listening on a port
+     * @param port port number, or 0 for any free port
+     * @return listener
+     */
+    Listener listen(int port) throws IOException;
+
+    /**
+     * Make one attempt to connect to a port (see Backoff for retrying)
+     * @param port port number
+     * @return connection
+     * @throws java.net.ConnectException if nothing is listening on the port
+     */
+    Connection connect(int port) throws IOException;
+}
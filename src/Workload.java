@@ -0,0 +1,386 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Workload generator for a network of nodes
+ * <p>Decides, for every node, how many messages it sends, how big each payload is and where each message goes.
+ * The result can be written out as the nodes' input files (nodeX_Y.txt, in parallel, through buffered channels),
+ * or handed to the nodes directly as FrameSources, so no files are needed at all.
+ * <p>Every message is generated from the seed, the node and the message's index alone, so files and direct
+ * sources hold the same messages, a run can be repeated exactly, and a direct source can seek like a file.
+ * <p>Destinations: UNIFORM over all other nodes; ZIPF, where a few hot-spot nodes receive most of the traffic
+ * (node popularity follows a Zipf distribution, hot nodes chosen by the seed); or LOCAL, where a given fraction
+ * of messages stays in the sender's network and the rest go to other networks.
+ * <p>Payload sizes: FIXED, UNIFORM between a minimum and maximum, or EXPONENTIAL (mostly small, with a long tail
+ * up to the maximum). The data size field is 1 byte, so payloads are at most 255 bytes.
+ * <p>Multicast (off by default): every node joins one of a number of groups (dealt round robin, so each group spans
+ * the networks), and a given fraction of messages go to a random group (GROUP_group) instead of a node.
+ */
+public class Workload {
+    //destination distributions
+    public final static int UNIFORM = 0, ZIPF = 1, LOCAL = 2;
+    //payload size distributions (UNIFORM as above)
+    public final static int FIXED = 3, EXPONENTIAL = 4;
+    //output buffer per file being written
+    private final static int BUFFER = 1 << 16;
+    private final static byte[] ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".getBytes();
+    //Format: {network ID, node ID}, as made by Main.makeList (grouped by network)
+    private final ArrayList<int[]> list;
+    private final long seed;
+    private int minMessages, maxMessages;
+    private int payload, minPayload, maxPayload;
+    private int destinations;
+    private double zipfExponent, localRatio;
+    private int groups;
+    private double groupRatio;
+    //first index in list of each network's nodes (index netID - 1), plus one past the end
+    private final int[] netStart;
+    //cumulative Zipf weights by popularity rank, and the node at each rank (built by setDestinations, before any
+    //source is read, so the sources' threads only ever read them)
+    private double[] zipfCdf;
+    private int[] zipfRank;
+
+    /**
+     * Workload constructor. Defaults to 1 message per node, 32 byte payloads and uniform destinations.
+     * @param list nodes, of form {netID, nodeID}, grouped by network (see Main.makeList)
+     * @param seed random seed
+     */
+    public Workload(ArrayList<int[]> list, long seed){
+        this.list = list;
+        this.seed = seed;
+        this.minMessages = 1;
+        this.maxMessages = 1;
+        this.payload = FIXED;
+        this.minPayload = 32;
+        this.maxPayload = 32;
+        this.destinations = UNIFORM;
+        this.zipfExponent = 1;
+        this.localRatio = 0.5;
+        this.groups = 0;
+        this.groupRatio = 0;
+        int nets = 0;
+        for(int[] n: list) nets = Math.max(nets, n[0]);
+        this.netStart = new int[nets + 1];
+        for(int i = list.size() - 1; i >= 0; i--) netStart[list.get(i)[0] - 1] = i;
+        netStart[nets] = list.size();
+    }
+
+    /**
+     * Set how many messages each node sends: uniformly between min and max, inclusive
+     * @param min fewest messages
+     * @param max most messages
+     */
+    public void setMessages(int min, int max){
+        this.minMessages = Math.max(0, min);
+        this.maxMessages = Math.max(this.minMessages, max);
+    }
+
+    /**
+     * Set the payload size distribution
+     * @param distribution FIXED (always min), UNIFORM (min to max) or EXPONENTIAL (min plus an exponential tail with
+     *                     a mean of a quarter of the range, cut off at max)
+     * @param min smallest payload, in bytes (at least 1)
+     * @param max largest payload, in bytes (at most 255)
+     */
+    public void setPayload(int distribution, int min, int max){
+        this.payload = distribution;
+        this.minPayload = Math.max(1, Math.min(255, min));
+        this.maxPayload = Math.max(this.minPayload, Math.min(255, max));
+    }
+
+    /**
+     * Set the destination distribution
+     * @param distribution UNIFORM, ZIPF or LOCAL
+     * @param zipfExponent skew of the ZIPF hot spot (1 is classic Zipf; higher is more skewed)
+     * @param localRatio fraction of LOCAL messages that stay in the sender's network
+     */
+    public void setDestinations(int distribution, double zipfExponent, double localRatio){
+        this.destinations = distribution;
+        this.zipfExponent = zipfExponent;
+        this.localRatio = localRatio;
+        this.zipfCdf = null;
+        this.zipfRank = null;
+        if(distribution == ZIPF) zipf();
+    }
+
+    /**
+     * Set the multicast groups
+     * @param groups number of groups (0 for none, at most 255)
+     * @param groupRatio fraction of messages sent to a group
+     */
+    public void setGroups(int groups, double groupRatio){
+        this.groups = Math.max(0, Math.min(255, groups));
+        this.groupRatio = groupRatio;
+    }
+
+    /**
+     * Get the multicast group a node joins
+     * @param index node index in the list
+     * @return group number (0 if there are no groups)
+     */
+    public int group(int index){
+        return groups > 0 ? index % groups + 1 : 0;
+    }
+
+    /**
+     * Get the number of messages a node sends
+     * @param index node index in the list
+     * @return message count
+     */
+    public int count(int index){
+        SplittableRandom r = random(index, -1);
+        return minMessages + (maxMessages > minMessages ? r.nextInt(maxMessages - minMessages + 1) : 0);
+    }
+
+    /**
+     * Generate one message of a node
+     * @param index node index in the list
+     * @param i message index
+     * @return line as it appears in the node's input file, without the line ending
+     */
+    public String message(int index, int i){
+        SplittableRandom r = random(index, i);
+        int[] dest = target(index, r);
+        return dest[0] + "_" + dest[1] + ": " + data(dest, r);
+    }
+
+    //make a payload for a destination: a greeting, padded with random characters to a drawn size
+    private String data(int[] dest, SplittableRandom r){
+        int size = size(r);
+        StringBuilder b = new StringBuilder(size);
+        if(dest[0] == Frame.GROUP) b.append("To group ").append(dest[1]).append("; ");
+        else b.append("To node ").append(dest[0]).append('_').append(dest[1]).append("; ");
+        b.setLength(Math.min(size, b.length()));
+        while(b.length() < size) b.append((char) ALPHABET[r.nextInt(ALPHABET.length)]);
+        return b.toString();
+    }
+
+    /**
+     * Write every node's input file (nodeX_Y.txt), several files at a time
+     * @param threads number of writer threads
+     */
+    public void writeFiles(int threads) throws IOException{
+        AtomicInteger next = new AtomicInteger();
+        IOException[] failure = new IOException[1];
+        Thread[] writers = new Thread[Math.max(1, threads)];
+        for(int t = 0; t < writers.length; t++){
+            writers[t] = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+                int index;
+                while((index = next.getAndIncrement()) < list.size()){
+                    try{
+                        writeFile(index, buffer);
+                    } catch (IOException e){
+                        synchronized (failure){
+                            failure[0] = e;
+                        }
+                        return;
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for(Thread t: writers){
+            try{
+                t.join();
+            } catch (InterruptedException e){
+                throw new IOException("interrupted while writing input files");
+            }
+        }
+        synchronized (failure){
+            if(failure[0] != null) throw failure[0];
+        }
+    }
+
+    //write one node's file through a channel, a buffer at a time
+    private void writeFile(int index, ByteBuffer buffer) throws IOException{
+        int[] node = list.get(index);
+        File f = new File("node" + node[0] + "_" + node[1] + ".txt");
+        try(FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            buffer.clear();
+            int count = count(index);
+            for(int i = 0; i < count; i++){
+                byte[] line = (message(index, i) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+                if(buffer.remaining() < line.length){
+                    buffer.flip();
+                    while(buffer.hasRemaining()) channel.write(buffer);
+                    buffer.clear();
+                }
+                buffer.put(line);
+            }
+            buffer.flip();
+            while(buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    /**
+     * Get a node's messages as a FrameSource, for feeding the node without an input file
+     * @param index node index in the list
+     * @return source of the node's frames, ending with the completion frame
+     */
+    public FrameSource source(int index){
+        return new Generated(index);
+    }
+
+    //one generator per (node, message), so any message can be made again on its own
+    private SplittableRandom random(int index, int i){
+        long s = seed;
+        s = s * 0x9E3779B97F4A7C15L + index;
+        s = s * 0xBF58476D1CE4E5B9L + i;
+        return new SplittableRandom(s);
+    }
+
+    //pick where a message goes: a node, as {netID, nodeID}, or a group, as {GROUP, group}. Without groups, no draw
+    //is spent on the choice, so a seed gives the same messages it always did.
+    private int[] target(int index, SplittableRandom r){
+        if(groups > 0 && r.nextDouble() < groupRatio) return new int[]{Frame.GROUP, 1 + r.nextInt(groups)};
+        return list.get(destination(index, r));
+    }
+
+    //pick a destination node index (never the sender)
+    private int destination(int index, SplittableRandom r){
+        int n = list.size();
+        if(destinations == ZIPF){
+            while(true){
+                double u = r.nextDouble() * zipfCdf[n - 1];
+                int lo = 0, hi = n - 1;
+                while(lo < hi){
+                    int mid = (lo + hi) >>> 1;
+                    if(zipfCdf[mid] < u) lo = mid + 1;
+                    else hi = mid;
+                }
+                if(zipfRank[lo] != index) return zipfRank[lo];
+            }
+        }
+        if(destinations == LOCAL){
+            int net = list.get(index)[0];
+            int start = netStart[net - 1], end = netStart[net];
+            boolean local = r.nextDouble() < localRatio;
+            //nowhere to go on one side: use the other
+            if(local && end - start < 2) local = false;
+            if(!local && end - start == n) local = true;
+            if(local){
+                int d = start + r.nextInt(end - start - 1);
+                return d >= index ? d + 1 : d;
+            }
+            int d = r.nextInt(n - (end - start));
+            return d >= start ? d + (end - start) : d;
+        }
+        int d = r.nextInt(n - 1);
+        return d >= index ? d + 1 : d;
+    }
+
+    //build the Zipf table; which nodes are hot is decided by the seed
+    private void zipf(){
+        int n = list.size();
+        int[] rank = new int[n];
+        for(int i = 0; i < n; i++) rank[i] = i;
+        SplittableRandom r = new SplittableRandom(seed);
+        for(int i = n - 1; i > 0; i--){
+            int j = r.nextInt(i + 1);
+            int t = rank[i];
+            rank[i] = rank[j];
+            rank[j] = t;
+        }
+        double[] cdf = new double[n];
+        double total = 0;
+        for(int i = 0; i < n; i++){
+            total += 1 / Math.pow(i + 1, zipfExponent);
+            cdf[i] = total;
+        }
+        zipfRank = rank;
+        zipfCdf = cdf;
+    }
+
+    //pick a payload size
+    private int size(SplittableRandom r){
+        if(payload == UNIFORM) return minPayload + r.nextInt(maxPayload - minPayload + 1);
+        if(payload == EXPONENTIAL){
+            double mean = Math.max(1, (maxPayload - minPayload) / 4.0);
+            return (int) Math.min(maxPayload, minPayload - mean * Math.log(1 - r.nextDouble()));
+        }
+        return minPayload;
+    }
+
+    /**
+     * A node's messages, generated as the node asks for them. Offsets are message indexes.
+     */
+    private class Generated implements FrameSource {
+        private final int index, netID, ID, count;
+        //index of the next message, and of the one last handed out
+        private int i;
+        private long lastOffset;
+        private int SN;
+        private Frame peeked;
+
+        private Generated(int index){
+            this.index = index;
+            this.netID = list.get(index)[0];
+            this.ID = list.get(index)[1];
+            this.count = count(index);
+            this.i = 0;
+            this.SN = 0;
+            this.peeked = null;
+        }
+
+        @Override
+        public Frame peek(){
+            if(peeked == null){
+                if(i < count){
+                    SplittableRandom r = random(index, i);
+                    int[] dest = target(index, r);
+                    peeked = new Frame(netID, ID, dest[0], dest[1], SN, data(dest, r));
+                } else if(i == count){
+                    //add in completion control message
+                    peeked = new Frame(netID, ID, 0, 0, SN, 5);
+                }
+            }
+            return peeked;
+        }
+
+        @Override
+        public Frame next(){
+            Frame f = peek();
+            if(f == null) return null;
+            peeked = null;
+            lastOffset = i;
+            i++;
+            SN = (SN + 1) & 0xFF;
+            return f;
+        }
+
+        @Override
+        public long lastOffset(){return this.lastOffset;}
+
+        @Override
+        public long position(){return this.i;}
+
+        @Override
+        public int nextSN(){return this.SN;}
+
+        @Override
+        public void seek(long offset, int SN){
+            this.peeked = null;
+            this.i = (int) Math.min(offset, count);
+            this.SN = SN & 0xFF;
+        }
+
+        @Override
+        public boolean isEmpty(){
+            return peek() == null;
+        }
+
+        @Override
+        public void close(){
+            peeked = null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Aqm checks: what each policy sheds, and that acks and control frames are never shed
+ */
+public class AqmTest {
+    private final static long MS = 1_000_000L;
+    private final static Frame DATA = new Frame(1, 2, 1, 3, 0, "data");
+    private final static Frame ACK = new Frame(1, 3, 1, 2, 0, 3);
+
+    public static void main(String[] args){
+        none();
+        tail();
+        red();
+        codel();
+        System.out.println("AqmTest: ok");
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    private static void none(){
+        Aqm a = new Aqm(Aqm.NONE, 4, 5 * MS, 100 * MS);
+        check(a.admit(DATA, 1_000_000), "NONE shed a frame");
+        check(!a.depart(DATA, 1000 * MS, 1000, 1000 * MS), "NONE shed a departing frame");
+        check(a.getDrops() == 0, "NONE counted drops");
+    }
+
+    private static void tail(){
+        Aqm a = new Aqm(Aqm.TAIL, 4, 5 * MS, 100 * MS);
+        check(a.admit(DATA, 3), "TAIL shed below capacity");
+        check(!a.admit(DATA, 4), "TAIL admitted at capacity");
+        check(a.admit(ACK, 100), "TAIL shed an ack");
+        check(a.admit(new Frame(1, 2, 0, 0, 0, 5), 100), "TAIL shed a control frame");
+        check(a.getDrops() == 1, "TAIL drops " + a.getDrops());
+        check(a.copy().getDrops() == 0, "copy kept the drops");
+    }
+
+    private static void red(){
+        Aqm a = new Aqm(Aqm.RED, 1000, 5 * MS, 100 * MS);
+        //short sojourns: nothing shed below capacity
+        for(int i = 0; i < 100; i++) a.depart(DATA, MS, 10, i * MS);
+        for(int i = 0; i < 1000; i++) check(a.admit(DATA, 10), "RED shed under the target");
+        //sojourns well over twice the target: about MAX_P (10%) of arrivals are shed, but never into an empty queue
+        for(int i = 0; i < 100; i++) a.depart(DATA, 50 * MS, 10, i * MS);
+        int shed = 0;
+        for(int i = 0; i < 10_000; i++) if(!a.admit(DATA, 10)) shed++;
+        check(shed > 700 && shed < 1300, "RED shed " + shed + " of 10000");
+        for(int i = 0; i < 1000; i++) check(a.admit(DATA, 0), "RED shed into an empty queue");
+        for(int i = 0; i < 1000; i++) check(a.admit(ACK, 10), "RED shed an ack");
+    }
+
+    private static void codel(){
+        Aqm a = new Aqm(Aqm.CODEL, 1000, 5 * MS, 100 * MS);
+        long now = 0;
+        //a standing queue: shedding starts one interval after the sojourn time went over the target
+        check(!a.depart(DATA, 10 * MS, 10, now), "CoDel shed at once");
+        now += 50 * MS;
+        check(!a.depart(DATA, 10 * MS, 10, now), "CoDel shed within the interval");
+        now += 60 * MS;
+        check(a.depart(DATA, 10 * MS, 10, now), "CoDel didn't shed after the interval");
+        //then faster and faster while the queue stands
+        int shed = 0;
+        for(int i = 0; i < 1000; i++){
+            now += MS;
+            if(a.depart(DATA, 10 * MS, 10, now)) shed++;
+        }
+        check(shed > 10, "CoDel shed " + shed + " in a second");
+        check(!a.depart(ACK, 10 * MS, 10, now + 1000 * MS), "CoDel shed an ack");
+        //the last frame out of a queue isn't shed, and the sojourn time going back under the target stops shedding
+        check(!a.depart(DATA, 10 * MS, 0, now + 2000 * MS), "CoDel shed the last frame");
+        for(int i = 0; i < 50; i++){
+            now += MS;
+            check(!a.depart(DATA, MS, 10, now), "CoDel shed under the target");
+        }
+        check(a.getDrops() == shed + 1, "CoDel drops " + a.getDrops());
+    }
+}
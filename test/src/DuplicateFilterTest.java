@@ -0,0 +1,78 @@
+import java.nio.ByteBuffer;
+
+/**
+ * DuplicateFilter checks: sequence numbers wrapping around, retransmissions arriving late, runs of lost frames, and
+ * the saved state
+ */
+public class DuplicateFilterTest {
+    public static void main(String[] args){
+        wrapAround();
+        lateRetransmissions();
+        lostRun();
+        streams();
+        saveLoad();
+        System.out.println("DuplicateFilterTest: ok");
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    //several laps of the sequence space, each frame followed by a copy
+    private static void wrapAround(){
+        DuplicateFilter f = new DuplicateFilter();
+        for(int i = 0; i < 1000; i++){
+            check(f.accept(1, 2, 0, i & 0xFF), "new frame " + i + " rejected");
+            check(!f.accept(1, 2, 0, i & 0xFF), "copy of frame " + i + " accepted");
+        }
+    }
+
+    //copies of frames up to MAX_WINDOW behind the newest are still caught, across the wrap
+    private static void lateRetransmissions(){
+        DuplicateFilter f = new DuplicateFilter();
+        for(int i = 0; i < 300; i++) check(f.accept(1, 2, 0, i & 0xFF), "new frame " + i + " rejected");
+        for(int i = 300 - SendWindow.MAX_WINDOW; i < 300; i++){
+            check(!f.accept(1, 2, 0, i & 0xFF), "late copy of frame " + i + " accepted");
+        }
+        //a missing frame that turns up late is still new
+        f = new DuplicateFilter();
+        for(int i = 240; i < 270; i++) if(i != 250) check(f.accept(1, 2, 0, i & 0xFF), "new frame " + i + " rejected");
+        check(f.accept(1, 2, 0, 250), "late first copy rejected");
+        check(!f.accept(1, 2, 0, 250), "second copy accepted");
+    }
+
+    //a sender gives up on a run of frames: the numbers after the gap were last seen a lap ago, and are new again
+    private static void lostRun(){
+        DuplicateFilter f = new DuplicateFilter();
+        for(int i = 0; i <= 150; i++) check(f.accept(1, 2, 0, i), "new frame " + i + " rejected");
+        for(int i = 256; i < 256 + 150; i++) check(f.accept(1, 2, 0, i & 0xFF), "frame " + i + " after the gap rejected");
+        check(!f.accept(1, 2, 0, 149), "copy after the gap accepted");
+    }
+
+    //every source, and each group a source sends to, is numbered separately
+    private static void streams(){
+        DuplicateFilter f = new DuplicateFilter();
+        check(f.accept(1, 2, 0, 7), "first source rejected");
+        check(f.accept(1, 3, 0, 7), "second source rejected");
+        check(f.accept(2, 2, 0, 7), "second network rejected");
+        check(f.accept(1, 2, 5, 7), "group frame rejected");
+        check(!f.accept(1, 2, 5, 7), "group copy accepted");
+        check(!f.accept(1, 2, 0, 7), "unicast copy accepted");
+    }
+
+    //a restarted node carries on where it left off
+    private static void saveLoad(){
+        DuplicateFilter f = new DuplicateFilter();
+        for(int i = 0; i < 300; i++) f.accept(1, 2, 0, i & 0xFF);
+        f.accept(3, 4, 9, 17);
+        ByteBuffer b = ByteBuffer.allocate(f.savedSize());
+        f.save(b);
+        check(!b.hasRemaining(), "savedSize doesn't match save");
+        b.flip();
+        DuplicateFilter g = new DuplicateFilter();
+        g.load(b);
+        check(!g.accept(1, 2, 0, 299 & 0xFF), "copy accepted after load");
+        check(!g.accept(3, 4, 9, 17), "group copy accepted after load");
+        check(g.accept(1, 2, 0, 300 & 0xFF), "new frame rejected after load");
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Master egress checks for group frames: one group frame waiting for trunk credits on two member networks' ports at
+ * once. Each port keeps its own time for it, and sends it when its own switch grants credits.
+ */
+public class GroupEgressTest {
+    private final static int PORT = 7000;
+
+    public static void main(String[] args) throws Exception{
+        File firewall = File.createTempFile("firewall", ".txt");
+        firewall.deleteOnExit();
+        CentralSwitch master = new CentralSwitch(PORT, 2, firewall, false);
+        master.setTrunkCredits(4);
+        MemoryTransport transport = new MemoryTransport();
+        Listener listener = transport.listen(PORT);
+        //the two member networks' switches, and the master's ports to them
+        Connection net2 = transport.connect(PORT), net3 = transport.connect(PORT);
+        SwitchThread port2 = new SwitchThread(master, listener.accept(), false);
+        SwitchThread port3 = new SwitchThread(master, listener.accept(), false);
+        port2.start();
+        port3.start();
+        write(net2, Frame.join(2, 0, 5));
+        write(net3, Frame.join(3, 0, 5));
+        Thread.sleep(100);
+
+        //no credits granted yet: the frame waits on both ports, the same Frame on each (as CentralSwitch.multicast
+        //hands it out)
+        Frame group = new Frame(1, 1, Frame.GROUP, 5, 0, "to group 5");
+        port2.newMessage(group);
+        long queued2 = port2.waitingSince();
+        check(queued2 != 0, "frame not waiting on the first port");
+        Thread.sleep(20);
+        port3.newMessage(group);
+        long queued3 = port3.waitingSince();
+        check(queued3 - queued2 >= 20_000_000L, "second port's time " + (queued3 - queued2) + " ns after the first's");
+        check(port2.waitingSince() == queued2, "second port changed the first port's time");
+        check(group.getQueued() == 0, "ports wrote their time on the shared frame");
+
+        //credits for one network send its copy only
+        write(net2, new Frame(2, 0, 0, 0, 4, Frame.CREDIT));
+        check(read(net2).getData().equals(group.getData()), "first port sent something else");
+        check(port2.waitingSince() == 0, "frame still waiting on the first port");
+        check(port3.waitingSince() == queued3, "first port's credits moved the second port's frame");
+        write(net3, new Frame(3, 0, 0, 0, 4, Frame.CREDIT));
+        check(read(net3).getData().equals(group.getData()), "second port sent something else");
+        check(port3.waitingSince() == 0, "frame still waiting on the second port");
+
+        port2.interrupt();
+        port3.interrupt();
+        net2.close();
+        net3.close();
+        listener.close();
+        System.out.println("GroupEgressTest: ok");
+        System.exit(0);
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    private static void write(Connection c, Frame f) throws IOException{
+        OutputStream out = c.getOutputStream();
+        out.write(f.encode());
+        out.flush();
+    }
+
+    //next frame from the master, waiting up to a second for it
+    private static Frame read(Connection c) throws Exception{
+        DataInputStream in = new DataInputStream(c.getInputStream());
+        for(int i = 0; i < 1000 && in.available() == 0; i++) Thread.sleep(1);
+        check(in.available() > 0, "nothing sent");
+        return Frame.decodeFromChannel(in);
+    }
+}
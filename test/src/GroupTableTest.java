@@ -0,0 +1,47 @@
+/**
+ * GroupTable checks: joining, the first member, group numbers out of range, and member arrays not changing under a
+ * reader
+ */
+public class GroupTableTest {
+    public static void main(String[] args){
+        joins();
+        range();
+        snapshots();
+        System.out.println("GroupTableTest: ok");
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    private static void joins(){
+        GroupTable g = new GroupTable();
+        check(g.members(5).length == 0 && g.size() == 0, "new table not empty");
+        check(g.join(5, 2), "first member not reported as first");
+        check(!g.join(5, 3), "second member reported as first");
+        check(!g.join(5, 2), "joining twice reported as first");
+        int[] m = g.members(5);
+        check(m.length == 2 && m[0] == 2 && m[1] == 3, "members out of join order, or joined twice");
+        check(g.join(7, 2), "first member of another group not reported as first");
+        check(g.size() == 2, "size " + g.size());
+    }
+
+    private static void range(){
+        GroupTable g = new GroupTable();
+        check(!g.join(0, 1) && !g.join(256, 1) && !g.join(-1, 1), "group out of range joined");
+        check(g.members(0).length == 0 && g.members(256).length == 0, "group out of range has members");
+        check(g.join(1, 1) && g.join(255, 1), "group at the end of the range not joined");
+        check(g.size() == 2, "size " + g.size());
+    }
+
+    //a member array handed out earlier stays as it was
+    private static void snapshots(){
+        GroupTable g = new GroupTable();
+        g.join(9, 1);
+        int[] before = g.members(9);
+        g.join(9, 2);
+        check(before.length == 1 && before[0] == 1, "member array changed after a join");
+        check(g.members(9).length == 2, "join not seen");
+        check(g.members(9) == g.members(9), "member array copied on read");
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Histogram checks: counts and means, percentile error, small values, merging and resetting
+ */
+public class HistogramTest {
+    public static void main(String[] args){
+        summary();
+        percentiles();
+        smallValues();
+        addReset();
+        System.out.println("HistogramTest: ok");
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    private static void summary(){
+        Histogram h = new Histogram();
+        check(h.count() == 0 && h.mean() == 0 && h.percentile(0.5) == 0, "empty histogram not empty");
+        for(int i = 1; i <= 1000; i++) h.record(i);
+        check(h.count() == 1000, "count " + h.count());
+        check(h.mean() == 500, "mean " + h.mean());
+        check(h.max() == 1000, "max " + h.max());
+        h.record(-5);
+        check(h.count() == 1001 && h.percentile(0) == 0, "negative value not counted as 0");
+    }
+
+    //any percentile is within one bucket (12.5%) of the true value, and never above the max
+    private static void percentiles(){
+        Histogram h = new Histogram();
+        for(long v = 1; v <= 1_000_000; v++) h.record(v * 1000);
+        for(double p: new double[]{0.01, 0.5, 0.9, 0.99, 0.999}){
+            double exact = p * 1_000_000 * 1000;
+            long got = h.percentile(p);
+            check(Math.abs(got - exact) <= exact / 8, "p" + p + " " + got + ", exact " + (long) exact);
+        }
+        long top = h.percentile(1);
+        check(top <= h.max() && top >= h.max() / 8 * 7, "p100 " + top + " not near the max");
+        Histogram big = new Histogram();
+        big.record(Long.MAX_VALUE);
+        //the top bucket doesn't overflow
+        check(big.percentile(0.5) >= Long.MAX_VALUE / 8 * 7, "largest value read as " + big.percentile(0.5));
+    }
+
+    //values below 8 each get a bucket of their own
+    private static void smallValues(){
+        Histogram h = new Histogram();
+        for(int v = 0; v < 8; v++) h.record(v);
+        for(int v = 0; v < 8; v++){
+            check(h.percentile((v + 1) / 8.0) == v, "small value " + v + " read as " + h.percentile((v + 1) / 8.0));
+        }
+    }
+
+    private static void addReset(){
+        Histogram a = new Histogram(), b = new Histogram();
+        for(int i = 0; i < 100; i++) a.record(10);
+        for(int i = 0; i < 100; i++) b.record(1000);
+        a.add(b);
+        check(a.count() == 200 && a.mean() == 505 && a.max() == 1000, "merge wrong");
+        check(b.count() == 100, "merge changed its source");
+        a.reset();
+        check(a.count() == 0 && a.mean() == 0 && a.max() == 0, "reset left values behind");
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * PendingIndex checks: what counts as a copy, deletes in the middle of a probe run, and the fill limit
+ */
+public class PendingIndexTest {
+    public static void main(String[] args){
+        copies();
+        probeRuns();
+        full();
+        System.out.println("PendingIndexTest: ok");
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    //a copy has the same source, destination, sequence number and data
+    private static void copies(){
+        PendingIndex p = new PendingIndex(16);
+        Frame f = new Frame(1, 2, 3, 4, 5, "data");
+        p.add(f);
+        check(p.contains(new Frame(1, 2, 3, 4, 5, "data")), "copy not found");
+        check(!p.contains(new Frame(1, 2, 3, 4, 6, "data")), "other sequence number found");
+        check(!p.contains(new Frame(1, 3, 3, 4, 5, "data")), "other source found");
+        check(!p.contains(new Frame(1, 2, 3, 5, 5, "data")), "other destination found");
+        check(!p.contains(new Frame(1, 2, 3, 4, 5, "other")), "other data found");
+        //only the indexed frame itself is removed, not a copy of it
+        p.remove(new Frame(1, 2, 3, 4, 5, "data"));
+        check(p.size() == 1, "copy removed the indexed frame");
+        p.remove(f);
+        check(p.size() == 0 && !p.contains(f), "frame not removed");
+    }
+
+    //fill a small index so frames share probe runs, then remove them in a scattered order
+    private static void probeRuns(){
+        PendingIndex p = new PendingIndex(64);
+        Frame[] frames = new Frame[40];
+        for(int i = 0; i < frames.length; i++){
+            frames[i] = new Frame(1, 1 + i % 5, 2, 1, i, "frame " + i);
+            p.add(frames[i]);
+        }
+        check(p.size() == frames.length, "size " + p.size() + " after adding " + frames.length);
+        for(int i = 0; i < frames.length; i += 3) p.remove(frames[i]);
+        for(int i = 0; i < frames.length; i++){
+            check(p.contains(frames[i]) == (i % 3 != 0), "frame " + i + " found wrongly after removes");
+        }
+        for(int i = 0; i < frames.length; i++) p.remove(frames[i]);
+        check(p.size() == 0, "size " + p.size() + " after removing everything");
+    }
+
+    //past 3/4 full, frames aren't indexed, and nothing else changes
+    private static void full(){
+        PendingIndex p = new PendingIndex(16);
+        for(int i = 0; i < 20; i++) p.add(new Frame(1, 1, 2, 1, i, "x"));
+        check(p.size() == 12, "size " + p.size() + " past the limit");
+        check(p.contains(new Frame(1, 1, 2, 1, 11, "x")), "indexed frame lost");
+        check(!p.contains(new Frame(1, 1, 2, 1, 12, "x")), "frame past the limit indexed");
+    }
+}
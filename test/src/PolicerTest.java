@@ -0,0 +1,48 @@
+/**
+ * Policer checks: the burst, the sustained rate, and excess frames taking no tokens
+ */
+public class PolicerTest {
+    private final static long MS = 1_000_000L;
+
+    public static void main(String[] args){
+        burst();
+        rate();
+        excess();
+        System.out.println("PolicerTest: ok");
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    //a full bucket lets the burst through back to back, then the next frame waits one interval
+    private static void burst(){
+        Policer p = new Policer(1000, 10, Policer.DELAY);
+        long now = 5000 * MS;
+        for(int i = 0; i < 10; i++) check(p.police(now) == 0, "frame " + i + " of the burst held back");
+        long wait = p.police(now);
+        check(wait > 0 && wait <= MS, "frame after the burst waits " + wait);
+        check(p.police(now + wait) == 0, "frame still held back once it conforms");
+        check(p.copy().police(now) == 0, "copy doesn't start with a full bucket");
+    }
+
+    //frames on schedule all conform; over a second, no more than rate plus burst get through
+    private static void rate(){
+        Policer p = new Policer(1000, 10, Policer.DROP);
+        long now = 0;
+        for(int i = 0; i < 1000; i++, now += MS) check(p.police(now) == 0, "frame " + i + " on schedule held back");
+        p = new Policer(1000, 10, Policer.DROP);
+        int passed = 0;
+        for(long t = 0; t < 1000 * MS; t += MS / 10) if(p.police(t) == 0) passed++;
+        check(passed >= 1000 && passed <= 1010, passed + " frames passed in a second");
+    }
+
+    //dropped frames don't use up the bucket
+    private static void excess(){
+        Policer p = new Policer(100, 1, Policer.NACK);
+        check(p.police(0) == 0, "first frame held back");
+        for(int i = 0; i < 100; i++) check(p.police(MS) > 0, "excess frame passed");
+        check(p.police(10 * MS) == 0, "excess frames used up tokens");
+        check(p.getAction() == Policer.NACK, "action");
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * SendWindow checks: matching replies to frames numbered per destination, and the cap on the span of the frames in
+ * flight
+ */
+public class SendWindowTest {
+    private final static long MS = 1_000_000L;
+
+    public static void main(String[] args){
+        replies();
+        span();
+        System.out.println("SendWindowTest: ok");
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok) throw new AssertionError(what);
+    }
+
+    //grow the window to its cap: send a frame and ack it, over and over
+    private static long grow(SendWindow w, long now, int[] slot){
+        while(w.getWindow() < SendWindow.MAX_WINDOW){
+            check(w.canSend(now), "window closed while growing");
+            Frame f = new Frame(1, 1, 1, 2, slot[0], "x");
+            w.sent(f, slot[0], now);
+            now += MS;
+            check(w.acknowledge(w.find(1, 2, slot[0]), now) == f, "ack not matched while growing");
+            slot[0] = (slot[0] + 1) & 0xFF;
+        }
+        return now;
+    }
+
+    //two destinations both have a frame numbered 0 in flight
+    private static void replies(){
+        SendWindow w = new SendWindow(6000, 3);
+        int[] slot = new int[1];
+        long now = grow(w, 0, slot);
+        check(w.find(1, 2, 0) < 0, "released frame still found");
+        Frame a = new Frame(1, 1, 1, 2, 0, "a");
+        Frame b = new Frame(1, 1, 1, 3, 0, "b");
+        int first = slot[0], second = (slot[0] + 1) & 0xFF;
+        w.sent(a, first, now);
+        w.sent(b, second, now);
+        check(w.find(1, 2, 0) == first && w.slot(a) == first, "reply from 1:2 not matched");
+        check(w.find(1, 3, 0) == second && w.slot(b) == second, "reply from 1:3 not matched");
+        check(w.find(1, 4, 0) < 0, "reply from a node nothing was sent to matched");
+        check(w.acknowledge(w.find(1, 3, 0), now + MS) == b, "wrong frame acked");
+        check(w.acknowledge(w.find(1, 3, 0), now + MS) == null, "duplicate ack matched");
+        check(w.release(w.find(1, 2, 0)) == a, "wrong frame released");
+        check(w.inFlight() == 0, "frames left in flight");
+    }
+
+    //a frame stuck in flight holds new frames back once they would span MAX_WINDOW slots
+    private static void span(){
+        SendWindow w = new SendWindow(6000, 3);
+        int[] slot = new int[1];
+        long now = grow(w, 0, slot);
+        int stuck = slot[0];
+        w.sent(new Frame(1, 1, 1, 9, 0, "stuck"), stuck, now);
+        slot[0] = (slot[0] + 1) & 0xFF;
+        int sent = 0;
+        for(int i = 0; i < 200; i++){
+            now += MS;
+            if(!w.canSend(now)) continue;
+            w.sent(new Frame(1, 1, 1, 2, slot[0], "x"), slot[0], now);
+            check(w.acknowledge(w.find(1, 2, slot[0]), now) != null, "ack not matched");
+            slot[0] = (slot[0] + 1) & 0xFF;
+            sent++;
+        }
+        check(sent == SendWindow.MAX_WINDOW - 1, "sent " + sent + " frames past a stuck one");
+        check(w.oldest() == stuck, "stuck frame isn't the oldest");
+        check(w.release(w.find(1, 9, 0)) != null, "stuck frame not found");
+        check(w.canSend(now + MS), "window still closed once the stuck frame is gone");
+    }
+}